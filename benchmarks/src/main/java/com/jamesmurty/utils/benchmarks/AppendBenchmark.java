@@ -0,0 +1,74 @@
+/*
+ * Copyright 2008-2014 James Murty (www.jamesmurty.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is available from the GitHub code repository at:
+ * https://github.com/jmurty/java-xmlbuilder
+ */
+package com.jamesmurty.utils.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jamesmurty.utils.XMLBuilder;
+import com.jamesmurty.utils.XMLCursor;
+
+/**
+ * Measures appending a growing number of child elements to a single parent.
+ * The time per operation should grow linearly with the number of rows; a
+ * quadratic increase means each append is re-examining earlier siblings.
+ * Building with an {@link XMLCursor} shows the saving from not creating a
+ * builder node for every step.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AppendBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int rows;
+
+    @Benchmark
+    public XMLBuilder appendRows() throws Exception {
+        XMLBuilder parent = XMLBuilder.create("Rows");
+        for (int i = 0; i < rows; i++) {
+            parent.e("Row").t("Row number " + i);
+        }
+        return parent;
+    }
+
+    @Benchmark
+    public XMLCursor appendRowsWithCursor() throws Exception {
+        XMLCursor cursor = XMLBuilder.create("Rows").cursor();
+        for (int i = 0; i < rows; i++) {
+            cursor.e("Row").t("Row number " + i).up();
+        }
+        return cursor;
+    }
+
+}
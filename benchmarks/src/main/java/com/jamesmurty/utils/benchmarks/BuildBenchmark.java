@@ -0,0 +1,61 @@
+/*
+ * Copyright 2008-2014 James Murty (www.jamesmurty.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is available from the GitHub code repository at:
+ * https://github.com/jmurty/java-xmlbuilder
+ */
+package com.jamesmurty.utils.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jamesmurty.utils.XMLBuilder;
+
+/**
+ * Measures building each document shape from scratch with the
+ * <code>create</code>, <code>element</code>, <code>attribute</code>,
+ * <code>text</code> and <code>cdata</code> methods.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BuildBenchmark {
+
+    @Param
+    public DocumentShape shape;
+
+    @Param({"100", "1000"})
+    public int size;
+
+    @Benchmark
+    public XMLBuilder build() throws Exception {
+        return shape.build(size);
+    }
+
+}
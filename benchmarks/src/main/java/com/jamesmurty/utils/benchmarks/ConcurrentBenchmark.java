@@ -0,0 +1,89 @@
+/*
+ * Copyright 2008-2014 James Murty (www.jamesmurty.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is available from the GitHub code repository at:
+ * https://github.com/jmurty/java-xmlbuilder
+ */
+package com.jamesmurty.utils.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jamesmurty.utils.XMLBuilder;
+import com.jamesmurty.utils.XMLBuilderContext;
+
+/**
+ * Measures a typical request cycle, which parses and queries an inbound
+ * document then builds and serializes a response, on one thread and on all
+ * available cores sharing a single {@link XMLBuilderContext}. With per-thread
+ * parsers, serializers and compiled expressions, the all-threads throughput
+ * should be close to the single-thread throughput times the number of cores.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConcurrentBenchmark {
+
+    @Param({"100"})
+    public int size;
+
+    private XMLBuilderContext context;
+
+    private String request;
+
+    @Setup
+    public void setUp() throws Exception {
+        context = XMLBuilderContext.newInstance();
+        request = DocumentShape.WIDE_FLAT.build(size).asString();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String singleThread() throws Exception {
+        return requestCycle();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String allThreads() throws Exception {
+        return requestCycle();
+    }
+
+    private String requestCycle() throws Exception {
+        XMLBuilder found = XMLBuilder.parse(request, context)
+            .xpathFind(DocumentShape.WIDE_FLAT.getXPath());
+        return XMLBuilder.create("Response", null, context)
+            .e("Found").t(found.getElement().getTextContent()).up()
+            .e("Status").t("OK")
+            .asString();
+    }
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2008-2014 James Murty (www.jamesmurty.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is available from the GitHub code repository at:
+ * https://github.com/jmurty/java-xmlbuilder
+ */
+package com.jamesmurty.utils.benchmarks;
+
+import java.util.Random;
+
+import com.jamesmurty.utils.XMLBuilder;
+
+/**
+ * Representative document shapes exercised by the benchmarks, each of which
+ * can be built at any size and comes with an XPath expression that finds an
+ * element deep within the document.
+ */
+public enum DocumentShape {
+
+    /**
+     * A root element with <code>size</code> small sibling rows.
+     */
+    WIDE_FLAT("/Rows/Row[last()]") {
+        @Override
+        public XMLBuilder build(int size) throws Exception {
+            XMLBuilder builder = XMLBuilder.create("Rows");
+            for (int i = 0; i < size; i++) {
+                builder.e("Row").a("id", "r" + i).t("Row number " + i).up();
+            }
+            return builder;
+        }
+    },
+
+    /**
+     * A chain of <code>size</code> elements, each nested inside the last.
+     */
+    DEEP_NESTED("//Level[not(Level)]") {
+        @Override
+        public XMLBuilder build(int size) throws Exception {
+            XMLBuilder builder = XMLBuilder.create("Levels");
+            XMLBuilder level = builder;
+            for (int i = 0; i < size; i++) {
+                level = level.e("Level").a("depth", String.valueOf(i));
+            }
+            level.t("Bottom");
+            return builder;
+        }
+    },
+
+    /**
+     * <code>size</code> elements that each carry many attributes, some of
+     * which need escaping.
+     */
+    ATTRIBUTE_HEAVY("//Item[@a9 = 'value 9 & more'][last()]") {
+        @Override
+        public XMLBuilder build(int size) throws Exception {
+            XMLBuilder builder = XMLBuilder.create("Items");
+            for (int i = 0; i < size; i++) {
+                XMLBuilder item = builder.e("Item");
+                for (int a = 0; a < 10; a++) {
+                    item.a("a" + a, "value " + a + (a % 3 == 0 ? " & more" : ""));
+                }
+            }
+            return builder;
+        }
+    },
+
+    /**
+     * <code>size</code> elements spread across several prefixed namespaces,
+     * with namespaced attributes.
+     */
+    NAMESPACE_HEAVY("//ns4:Item[last()]") {
+        @Override
+        public XMLBuilder build(int size) throws Exception {
+            XMLBuilder builder = XMLBuilder.create("Items", "urn:default");
+            for (int n = 0; n < NAMESPACE_COUNT; n++) {
+                builder.namespace("ns" + n, "urn:ns" + n);
+            }
+            for (int i = 0; i < size; i++) {
+                String prefix = "ns" + (i % NAMESPACE_COUNT);
+                builder.e(prefix + ":Item")
+                    .a(prefix + ":id", String.valueOf(i))
+                    .e("Value").t("Item " + i).up()
+                    .up();
+            }
+            return builder;
+        }
+    },
+
+    /**
+     * A chain of <code>size</code> nested elements, each with a child in
+     * every prefixed namespace, where the prefixes are only declared on the
+     * root element.
+     */
+    DEEP_NAMESPACED("(//ns4:Value)[last()]") {
+        @Override
+        public XMLBuilder build(int size) throws Exception {
+            XMLBuilder builder = XMLBuilder.create("Levels", "urn:default");
+            for (int n = 0; n < NAMESPACE_COUNT; n++) {
+                builder.namespace("ns" + n, "urn:ns" + n);
+            }
+            XMLBuilder level = builder;
+            for (int i = 0; i < size; i++) {
+                level = level.e("Level");
+                for (int n = 0; n < NAMESPACE_COUNT; n++) {
+                    level.e("ns" + n + ":Value").t(String.valueOf(i)).up();
+                }
+            }
+            return builder;
+        }
+    },
+
+    /**
+     * <code>size</code> elements that each contain a Base64-encoded block of
+     * binary data in a CDATA section.
+     */
+    CDATA_HEAVY("/Blobs/Blob[last()]") {
+        @Override
+        public XMLBuilder build(int size) throws Exception {
+            XMLBuilder builder = XMLBuilder.create("Blobs");
+            Random random = new Random(size);
+            byte[] data = new byte[BLOB_SIZE];
+            for (int i = 0; i < size; i++) {
+                random.nextBytes(data);
+                builder.e("Blob").a("id", String.valueOf(i)).cdata(data).up();
+            }
+            return builder;
+        }
+    };
+
+    static final int NAMESPACE_COUNT = 5;
+
+    static final int BLOB_SIZE = 1024;
+
+    private final String xpath;
+
+    private DocumentShape(String xpath) {
+        this.xpath = xpath;
+    }
+
+    /**
+     * @param size
+     * the number of rows, levels or items in the document.
+     * @return
+     * a builder for the root element of a new document of this shape.
+     * @throws Exception
+     */
+    public abstract XMLBuilder build(int size) throws Exception;
+
+    /**
+     * @return
+     * an XPath expression that finds an element near the end of a document
+     * of this shape.
+     */
+    public String getXPath() {
+        return this.xpath;
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2008-2014 James Murty (www.jamesmurty.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is available from the GitHub code repository at:
+ * https://github.com/jmurty/java-xmlbuilder
+ */
+package com.jamesmurty.utils.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jamesmurty.utils.HistogramMetricsListener;
+import com.jamesmurty.utils.XMLBuilder;
+import com.jamesmurty.utils.XMLBuilderContext;
+
+/**
+ * Measures the cost of reporting metrics when parsing, querying and
+ * serializing a small document, with no listener installed and with a
+ * {@link HistogramMetricsListener}.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+
+    @Param({"none", "histogram"})
+    public String listener;
+
+    private XMLBuilderContext context;
+
+    private String xml;
+
+    private XMLBuilder builder;
+
+    @Setup
+    public void setUp() throws Exception {
+        context = XMLBuilderContext.newInstance();
+        if ("histogram".equals(listener)) {
+            context = context.withMetricsListener(new HistogramMetricsListener());
+        }
+        xml = DocumentShape.WIDE_FLAT.build(100).asString();
+        builder = XMLBuilder.parse(xml, context);
+    }
+
+    @Benchmark
+    public XMLBuilder parse() throws Exception {
+        return XMLBuilder.parse(xml, context);
+    }
+
+    @Benchmark
+    public XMLBuilder xpathFind() throws Exception {
+        return builder.xpathFind(DocumentShape.WIDE_FLAT.getXPath());
+    }
+
+    @Benchmark
+    public String asString() throws Exception {
+        return builder.asString();
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2008-2014 James Murty (www.jamesmurty.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is available from the GitHub code repository at:
+ * https://github.com/jmurty/java-xmlbuilder
+ */
+package com.jamesmurty.utils.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jamesmurty.utils.XMLBuilder;
+import com.jamesmurty.utils.XMLBuilderContext;
+
+/**
+ * Measures assembling a wide report from thousands of independent sections,
+ * building the sections one after another and in parallel on pools of
+ * increasing size. On a machine with 8 or more cores the parallel time should
+ * fall close to the sequential time divided by the pool's parallelism, with
+ * the remainder spent adopting the sections into the report.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParallelAssemblyBenchmark {
+
+    @Param({"1000", "5000"})
+    public int sections;
+
+    @Param({"1", "2", "4", "8", "16"})
+    public int parallelism;
+
+    private static final int ROWS_PER_SECTION = 20;
+
+    private XMLBuilderContext context;
+
+    private ForkJoinPool pool;
+
+    private List<Callable<XMLBuilder>> tasks;
+
+    @Setup
+    public void setUp() {
+        context = XMLBuilderContext.newInstance();
+        pool = new ForkJoinPool(parallelism);
+        tasks = new ArrayList<Callable<XMLBuilder>>(sections);
+        for (int i = 0; i < sections; i++) {
+            final int index = i;
+            tasks.add(new Callable<XMLBuilder>() {
+                public XMLBuilder call() throws Exception {
+                    return buildSection(index);
+                }
+            });
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public XMLBuilder sequential() throws Exception {
+        XMLBuilder report = XMLBuilder.create("Report", null, context);
+        for (int i = 0; i < sections; i++) {
+            report.adoptXMLBuilder(buildSection(i));
+        }
+        return report;
+    }
+
+    @Benchmark
+    public XMLBuilder parallel() throws Exception {
+        return XMLBuilder.create("Report", null, context)
+            .assembleFragments(tasks, pool);
+    }
+
+    private XMLBuilder buildSection(int index) throws Exception {
+        XMLBuilder section = XMLBuilder.create("Section", null, context)
+            .a("id", "s" + index);
+        for (int row = 0; row < ROWS_PER_SECTION; row++) {
+            section.e("Row").a("n", String.valueOf(row))
+                .t("Section " + index + " row " + row);
+        }
+        return section;
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2008-2014 James Murty (www.jamesmurty.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is available from the GitHub code repository at:
+ * https://github.com/jmurty/java-xmlbuilder
+ */
+package com.jamesmurty.utils.benchmarks;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.transform.OutputKeys;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jamesmurty.utils.XMLBuilder;
+import com.jamesmurty.utils.XMLParseOption;
+
+/**
+ * Measures parsing the serialized form of each document shape, and parsing
+ * an indented form of it with whitespace stripped either after parsing or
+ * while parsing with {@link XMLParseOption#STRIP_WHITESPACE_ONLY_TEXT}.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+
+    @Param
+    public DocumentShape shape;
+
+    @Param({"100", "1000"})
+    public int size;
+
+    private String xml;
+
+    private String indentedXml;
+
+    @Setup
+    public void setUp() throws Exception {
+        XMLBuilder builder = shape.build(size);
+        xml = builder.asString();
+        Properties outputProperties = new Properties();
+        outputProperties.put(OutputKeys.INDENT, "yes");
+        indentedXml = builder.asString(outputProperties);
+    }
+
+    @Benchmark
+    public XMLBuilder parse() throws Exception {
+        return XMLBuilder.parse(xml);
+    }
+
+    @Benchmark
+    public XMLBuilder parseIndentedThenStrip() throws Exception {
+        return XMLBuilder.parse(indentedXml).stripWhitespaceOnlyTextNodes();
+    }
+
+    @Benchmark
+    public XMLBuilder parseIndentedFiltered() throws Exception {
+        return XMLBuilder.parse(indentedXml, null,
+            XMLParseOption.STRIP_WHITESPACE_ONLY_TEXT);
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2008-2014 James Murty (www.jamesmurty.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is available from the GitHub code repository at:
+ * https://github.com/jmurty/java-xmlbuilder
+ */
+package com.jamesmurty.utils.benchmarks;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.xpath.XPathConstants;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+import com.jamesmurty.utils.XMLBuilder;
+import com.jamesmurty.utils.XMLRecordReader;
+
+/**
+ * Compares picking a few small subtrees out of a large feed by parsing the
+ * whole document and querying it with XPath, against streaming through the
+ * feed with {@link XMLBuilder#parseMatching(InputSource,
+ * com.jamesmurty.utils.XMLBuilderContext, String...)}. The record reader
+ * benchmark splits the same feed into one small document per item. Run with
+ * the GC profiler to compare the allocation rates.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SelectiveParseBenchmark {
+
+    @Param({"1000", "100000"})
+    public int items;
+
+    private String xml;
+
+    @Setup
+    public void setUp() throws Exception {
+        XMLBuilder feed = XMLBuilder.create("Feed");
+        for (int i = 0; i < items; i++) {
+            XMLBuilder item = feed.e("Item").a("id", String.valueOf(i));
+            item.e("Title").t("Item title " + i);
+            item.e("Description").t("A longer description of item " + i
+                + " that is never needed by the consumer of this feed");
+            if (i % 100 == 0) {
+                item.e("Price").a("currency", "USD").t(i + ".99");
+            }
+        }
+        xml = feed.asString();
+    }
+
+    @Benchmark
+    public NodeList parseAllThenQuery() throws Exception {
+        return (NodeList) XMLBuilder.parse(xml).xpathQuery(
+            "/Feed/Item/Price", XPathConstants.NODESET);
+    }
+
+    @Benchmark
+    public List<XMLBuilder> parseMatching() throws Exception {
+        return XMLBuilder.parseMatching(
+            new InputSource(new StringReader(xml)), null, "/Feed/Item/Price");
+    }
+
+    @Benchmark
+    public int readRecords() throws Exception {
+        XMLRecordReader records = new XMLRecordReader(
+            new InputSource(new StringReader(xml)), null, "/Feed/Item");
+        int count = 0;
+        try {
+            while (records.hasNext()) {
+                records.next();
+                count++;
+            }
+        } finally {
+            records.close();
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2008-2014 James Murty (www.jamesmurty.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is available from the GitHub code repository at:
+ * https://github.com/jmurty/java-xmlbuilder
+ */
+package com.jamesmurty.utils.benchmarks;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jamesmurty.utils.DirectSerializer;
+import com.jamesmurty.utils.TransformerSerializer;
+import com.jamesmurty.utils.XMLBuilder;
+
+/**
+ * Measures serializing each document shape with <code>asString</code>, and
+ * to UTF-8 bytes by encoding that string or with <code>asBytes</code>, using
+ * both the default {@link TransformerSerializer} and the
+ * {@link DirectSerializer}.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializeBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Param
+    public DocumentShape shape;
+
+    @Param({"100", "1000"})
+    public int size;
+
+    @Param({"transformer", "direct"})
+    public String serializer;
+
+    private XMLBuilder builder;
+
+    @Setup
+    public void setUp() throws Exception {
+        builder = shape.build(size);
+        XMLBuilder.setSerializer("direct".equals(serializer)
+            ? new DirectSerializer()
+            : new TransformerSerializer());
+    }
+
+    @TearDown
+    public void tearDown() {
+        XMLBuilder.setSerializer(null);
+    }
+
+    @Benchmark
+    public String asString() throws Exception {
+        return builder.asString();
+    }
+
+    @Benchmark
+    public byte[] asStringThenBytes() throws Exception {
+        return builder.asString().getBytes(UTF_8);
+    }
+
+    @Benchmark
+    public byte[] asBytes() throws Exception {
+        return builder.asBytes();
+    }
+
+}
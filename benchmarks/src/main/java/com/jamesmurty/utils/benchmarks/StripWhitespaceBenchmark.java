@@ -0,0 +1,105 @@
+/*
+ * Copyright 2008-2014 James Murty (www.jamesmurty.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is available from the GitHub code repository at:
+ * https://github.com/jmurty/java-xmlbuilder
+ */
+package com.jamesmurty.utils.benchmarks;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import com.jamesmurty.utils.XMLBuilder;
+
+/**
+ * Compares stripping whitespace-only text from an indented, parsed document
+ * by walking the tree with {@link XMLBuilder#stripWhitespaceOnlyTextNodes()}
+ * against the earlier approach of finding the nodes with a freshly compiled
+ * XPath expression. Each operation strips a new copy of the document, and the
+ * <code>copyOnly</code> benchmark measures the cost of the copy alone.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StripWhitespaceBenchmark {
+
+    @Param
+    public DocumentShape shape;
+
+    @Param({"100", "1000"})
+    public int size;
+
+    private Document indented;
+
+    @Setup
+    public void setUp() throws Exception {
+        Properties outputProperties = new Properties();
+        outputProperties.put(OutputKeys.INDENT, "yes");
+        indented = XMLBuilder.parse(shape.build(size).asString(outputProperties))
+            .getDocument();
+    }
+
+    @Benchmark
+    public Document copyOnly() {
+        return (Document) indented.cloneNode(true);
+    }
+
+    @Benchmark
+    public Document treeWalk() throws Exception {
+        Document document = (Document) indented.cloneNode(true);
+        // Wrap the copy with the protected constructor
+        new XMLBuilder(document) {}.stripWhitespaceOnlyTextNodes();
+        return document;
+    }
+
+    @Benchmark
+    public Document xpath() throws Exception {
+        Document document = (Document) indented.cloneNode(true);
+        XPathExpression xpathExp = XPathFactory.newInstance().newXPath().compile(
+            "//text()[normalize-space(.) = '']");
+        NodeList emptyTextNodes = (NodeList) xpathExp.evaluate(
+            document, XPathConstants.NODESET);
+        for (int i = 0; i < emptyTextNodes.getLength(); i++) {
+            Node emptyTextNode = emptyTextNodes.item(i);
+            emptyTextNode.getParentNode().removeChild(emptyTextNode);
+        }
+        return document;
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2008-2014 James Murty (www.jamesmurty.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is available from the GitHub code repository at:
+ * https://github.com/jmurty/java-xmlbuilder
+ */
+package com.jamesmurty.utils.benchmarks;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jamesmurty.utils.XMLBuilder;
+
+/**
+ * Measures exporting a table with {@link #COLUMNS} attribute columns per
+ * row, adding each attribute and row with its own call compared to the bulk
+ * <code>attributes</code> and <code>elements</code> methods.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TableBenchmark {
+
+    static final int COLUMNS = 50;
+
+    @Param({"100", "1000"})
+    public int rows;
+
+    private List<Map<String, String>> records;
+
+    private List<String[]> pairs;
+
+    @Setup
+    public void setUp() {
+        records = new ArrayList<Map<String, String>>(rows);
+        pairs = new ArrayList<String[]>(rows);
+        for (int r = 0; r < rows; r++) {
+            Map<String, String> record = new LinkedHashMap<String, String>();
+            String[] namesAndValues = new String[COLUMNS * 2];
+            for (int c = 0; c < COLUMNS; c++) {
+                String value = "r" + r + "c" + c;
+                record.put("c" + c, value);
+                namesAndValues[c * 2] = "c" + c;
+                namesAndValues[c * 2 + 1] = value;
+            }
+            records.add(record);
+            pairs.add(namesAndValues);
+        }
+    }
+
+    @Benchmark
+    public XMLBuilder perAttribute() throws Exception {
+        XMLBuilder table = XMLBuilder.create("Table");
+        for (Map<String, String> record : records) {
+            XMLBuilder row = table.e("Row");
+            for (Map.Entry<String, String> entry : record.entrySet()) {
+                row.a(entry.getKey(), entry.getValue());
+            }
+        }
+        return table;
+    }
+
+    @Benchmark
+    public XMLBuilder attributeMaps() throws Exception {
+        return XMLBuilder.create("Table").elements("Row", records,
+            new BiConsumer<XMLBuilder, Map<String, String>>() {
+                public void accept(XMLBuilder row, Map<String, String> record) {
+                    row.attributes(record);
+                }
+            });
+    }
+
+    @Benchmark
+    public XMLBuilder attributePairs() throws Exception {
+        return XMLBuilder.create("Table").elements("Row", pairs,
+            new BiConsumer<XMLBuilder, String[]>() {
+                public void accept(XMLBuilder row, String[] namesAndValues) {
+                    row.attributes(namesAndValues);
+                }
+            });
+    }
+
+}
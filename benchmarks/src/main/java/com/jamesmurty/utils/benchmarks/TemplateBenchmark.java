@@ -0,0 +1,123 @@
+/*
+ * Copyright 2008-2014 James Murty (www.jamesmurty.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is available from the GitHub code repository at:
+ * https://github.com/jmurty/java-xmlbuilder
+ */
+package com.jamesmurty.utils.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStreamWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jamesmurty.utils.XMLBuilder;
+import com.jamesmurty.utils.XMLRenderPlan;
+import com.jamesmurty.utils.XMLTemplate;
+
+/**
+ * Compares building a response document from scratch with filling a
+ * precompiled {@link XMLTemplate} of the same document, for responses with
+ * a varying number of fixed sections around a handful of slots. The output
+ * benchmarks compare serializing a filled document with rendering bytes
+ * directly from an {@link XMLRenderPlan}.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TemplateBenchmark {
+
+    @Param({"10", "100"})
+    public int sections;
+
+    private XMLTemplate template;
+
+    private XMLRenderPlan renderPlan;
+
+    private Map<String, Object> values;
+
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    @Setup
+    public void setUp() throws Exception {
+        values = new HashMap<String, Object>();
+        values.put("status", "OK");
+        values.put("requestId", "b7e3c2a4");
+        values.put("name", "World");
+        template = XMLTemplate.compile(buildResponse(
+            "${status}", "${requestId}", "${name}"));
+        renderPlan = template.toRenderPlan();
+    }
+
+    @Benchmark
+    public XMLBuilder rebuild() throws Exception {
+        return buildResponse((String) values.get("status"),
+            (String) values.get("requestId"), (String) values.get("name"));
+    }
+
+    @Benchmark
+    public XMLBuilder fill() throws Exception {
+        return template.fill(values);
+    }
+
+    @Benchmark
+    public int fillAndSerialize() throws Exception {
+        output.reset();
+        OutputStreamWriter writer = new OutputStreamWriter(output, "UTF-8");
+        template.fill(values).toWriter(true, writer, null);
+        writer.flush();
+        return output.size();
+    }
+
+    @Benchmark
+    public int render() throws Exception {
+        output.reset();
+        renderPlan.render(values, output);
+        return output.size();
+    }
+
+    private XMLBuilder buildResponse(String status, String requestId,
+        String name) throws Exception
+    {
+        XMLBuilder response = XMLBuilder.create("Response")
+            .a("status", status)
+            .e("RequestId").t(requestId).up()
+            .e("Message").t("Hello " + name).up();
+        for (int i = 0; i < sections; i++) {
+            response.e("Section").a("index", String.valueOf(i))
+                .e("Title").t("Section title").up()
+                .e("Body").t("Fixed section content");
+        }
+        return response;
+    }
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2008-2014 James Murty (www.jamesmurty.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is available from the GitHub code repository at:
+ * https://github.com/jmurty/java-xmlbuilder
+ */
+package com.jamesmurty.utils.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.namespace.NamespaceContext;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jamesmurty.utils.NamespaceContextImpl;
+import com.jamesmurty.utils.XMLBuilder;
+
+/**
+ * Measures finding an element near the end of a parsed document of each shape
+ * with <code>xpathFind</code>, and resolving the document's namespace
+ * prefixes against a snapshot context and against a context that looks them
+ * up in the DOM on every call.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class XPathBenchmark {
+
+    @Param
+    public DocumentShape shape;
+
+    @Param({"100", "1000"})
+    public int size;
+
+    private XMLBuilder builder;
+
+    private NamespaceContext nsContext;
+
+    private NamespaceContext elementNsContext;
+
+    private String[] prefixes;
+
+    @Setup
+    public void setUp() throws Exception {
+        builder = XMLBuilder.parse(shape.build(size).asString());
+        nsContext = builder.buildDocumentNamespaceContext();
+        elementNsContext = new NamespaceContextImpl(builder.getElement());
+        prefixes = new String[DocumentShape.NAMESPACE_COUNT + 1];
+        for (int n = 0; n < DocumentShape.NAMESPACE_COUNT; n++) {
+            prefixes[n] = "ns" + n;
+        }
+        prefixes[DocumentShape.NAMESPACE_COUNT] = "";
+    }
+
+    @Benchmark
+    public XMLBuilder xpathFind() throws Exception {
+        return builder.xpathFind(shape.getXPath(), nsContext);
+    }
+
+    @Benchmark
+    public int snapshotLookups() {
+        return lookUpAll(nsContext);
+    }
+
+    @Benchmark
+    public int elementLookups() {
+        return lookUpAll(elementNsContext);
+    }
+
+    @Benchmark
+    public NamespaceContext buildSnapshot() {
+        return builder.buildDocumentNamespaceContext();
+    }
+
+    private int lookUpAll(NamespaceContext context) {
+        int found = 0;
+        for (String prefix : prefixes) {
+            String uri = context.getNamespaceURI(prefix);
+            if (uri != null && context.getPrefix(uri) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2008-2014 James Murty (www.jamesmurty.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is available from the GitHub code repository at:
+ * https://github.com/jmurty/java-xmlbuilder
+ */
+package com.jamesmurty.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import net.iharder.Base64;
+
+/**
+ * Reads binary data from a stream in fixed-size chunks and Base64-encodes
+ * each chunk in turn, so large payloads can be encoded without first holding
+ * all of the raw bytes in memory.
+ * <p>
+ * Every chunk except the last is a multiple of three bytes long, so no
+ * padding appears between chunks and the concatenated chunks are identical to
+ * the encoding of the whole payload in one go.
+ * </p>
+ */
+class Base64ChunkEncoder {
+
+    /**
+     * Number of raw bytes encoded per chunk, which produces 64K characters of
+     * Base64 text.
+     */
+    static final int CHUNK_SIZE = 3 * 16 * 1024;
+
+    private final InputStream inputStream;
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+    private boolean endOfStream = false;
+
+    /**
+     * @param inputStream
+     * the stream of data to encode, which is read to the end but not closed.
+     */
+    Base64ChunkEncoder(InputStream inputStream) {
+        this.inputStream = inputStream;
+    }
+
+    /**
+     * @return
+     * the Base64 encoding of the next chunk of data, or null if the stream
+     * has been fully read.
+     * @throws IOException
+     */
+    String nextChunk() throws IOException {
+        if (this.endOfStream) {
+            return null;
+        }
+        int length = 0;
+        while (length < CHUNK_SIZE) {
+            int count = this.inputStream.read(this.chunk, length, CHUNK_SIZE - length);
+            if (count < 0) {
+                this.endOfStream = true;
+                break;
+            }
+            length += count;
+        }
+        if (length == 0) {
+            return null;
+        }
+        return Base64.encodeBytes(this.chunk, 0, length);
+    }
+
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2008-2014 James Murty (www.jamesmurty.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is available from the GitHub code repository at:
+ * https://github.com/jmurty/java-xmlbuilder
+ */
+package com.jamesmurty.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * An InputStream that feeds bytes from an NIO channel to an XML parser, so
+ * the parser can detect the document's encoding itself.
+ * <p>
+ * Channels are read through a direct buffer that each thread reuses between
+ * streams, while large files can instead be read through read-only memory
+ * mappings so their content is never copied into an intermediate buffer.
+ * Closing the stream returns its buffer to the pool but never closes the
+ * underlying channel, which remains the caller's responsibility.
+ * </p>
+ */
+class ChannelInputStream extends InputStream {
+
+    /**
+     * Size of the pooled direct buffers used to read channels.
+     */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Maximum size of each memory-mapped region of a file.
+     */
+    static final long MAPPED_REGION_SIZE = 256L * 1024 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> pooledBuffers =
+        new ThreadLocal<ByteBuffer>();
+
+    private final ReadableByteChannel channel;
+    private final boolean mapped;
+    private long mappedPosition;
+    private final long mappedEnd;
+    private ByteBuffer buffer;
+    private boolean endOfStream = false;
+
+    private ChannelInputStream(ReadableByteChannel channel, boolean mapped,
+        long mappedPosition, long mappedEnd, ByteBuffer buffer)
+    {
+        this.channel = channel;
+        this.mapped = mapped;
+        this.mappedPosition = mappedPosition;
+        this.mappedEnd = mappedEnd;
+        this.buffer = buffer;
+    }
+
+    /**
+     * @param channel
+     * a blocking channel to read from its current position until
+     * end-of-stream.
+     * @return
+     * a stream that reads the channel through a pooled direct buffer.
+     */
+    static ChannelInputStream buffered(ReadableByteChannel channel) {
+        ByteBuffer buffer = pooledBuffers.get();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        } else {
+            // Take the buffer out of the pool while in use, in case
+            // another stream is opened by this thread in the meantime.
+            pooledBuffers.remove();
+        }
+        // Calls go through Buffer so the compiled code also runs on Java 8
+        ((Buffer) buffer).clear();
+        ((Buffer) buffer).limit(0);
+        return new ChannelInputStream(channel, false, 0, 0, buffer);
+    }
+
+    /**
+     * @param channel
+     * a file channel to read from its current position until the given end.
+     * @param end
+     * the position in the file at which to stop reading.
+     * @return
+     * a stream that reads the file through read-only memory mappings.
+     */
+    static ChannelInputStream mapped(FileChannel channel, long end)
+        throws IOException
+    {
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        return new ChannelInputStream(channel, true, channel.position(), end, empty);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return this.buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int count = Math.min(length, this.buffer.remaining());
+        this.buffer.get(bytes, offset, count);
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (this.buffer == null ? 0 : this.buffer.remaining());
+    }
+
+    @Override
+    public void close() {
+        ByteBuffer released = this.buffer;
+        this.buffer = null;
+        this.endOfStream = true;
+        if (released != null && !this.mapped) {
+            pooledBuffers.set(released);
+        }
+    }
+
+    /**
+     * Ensure the buffer has bytes remaining, refilling it from the channel
+     * or mapping the next region of the file as necessary.
+     *
+     * @return
+     * false if there are no more bytes to read.
+     */
+    private boolean fill() throws IOException {
+        if (this.buffer == null) {
+            throw new IOException("Stream closed");
+        }
+        while (!this.buffer.hasRemaining()) {
+            if (this.endOfStream) {
+                return false;
+            }
+            if (this.mapped) {
+                long size = Math.min(this.mappedEnd - this.mappedPosition,
+                    MAPPED_REGION_SIZE);
+                if (size <= 0) {
+                    this.endOfStream = true;
+                    return false;
+                }
+                this.buffer = ((FileChannel) this.channel).map(
+                    FileChannel.MapMode.READ_ONLY, this.mappedPosition, size);
+                this.mappedPosition += size;
+            } else {
+                ((Buffer) this.buffer).clear();
+                int count = this.channel.read(this.buffer);
+                ((Buffer) this.buffer).flip();
+                if (count < 0) {
+                    this.endOfStream = true;
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+}
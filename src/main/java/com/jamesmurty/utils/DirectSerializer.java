@@ -0,0 +1,845 @@
+/*
+ * Copyright 2008-2014 James Murty (www.jamesmurty.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is available from the GitHub code repository at:
+ * https://github.com/jmurty/java-xmlbuilder
+ */
+package com.jamesmurty.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.Properties;
+
+import javax.xml.XMLConstants;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.TransformerException;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * An {@link XMLSerializer} that writes XML markup by walking the DOM tree
+ * directly, rather than sending it through the generic
+ * <code>javax.xml.transform</code> pipeline. This is considerably faster for
+ * the small and medium sized documents typically built with
+ * {@link XMLBuilder}.
+ * <p>
+ * The output matches that of the default identity Transformer with the
+ * "xml" output method for the node types XMLBuilder creates: elements,
+ * attributes, text, CDATA sections, comments, processing instructions,
+ * entity references and namespace declarations, including the declarations
+ * needed for namespaced nodes that were created without explicit
+ * <code>xmlns</code> attributes. Unlike the Transformer, entity references
+ * are written as references rather than being dropped, and indenting always
+ * follows the same simple rules: child nodes are indented unless their
+ * parent element contains non-whitespace text.
+ * </p>
+ * <p>
+ * The following output properties are supported: {@link OutputKeys#METHOD}
+ * "xml", {@link OutputKeys#OMIT_XML_DECLARATION}, {@link OutputKeys#INDENT},
+ * {@link OutputKeys#ENCODING}, {@link OutputKeys#STANDALONE},
+ * {@link OutputKeys#VERSION} and the Apache "indent-amount" extension.
+ * Characters that cannot be represented in the output encoding are written
+ * as character references. When serializing to an {@link OutputStream},
+ * UTF-8, US-ASCII and ISO-8859-1 output is encoded directly into a reusable
+ * per-thread byte buffer. Serialization requests with any other output
+ * property are passed on to a fallback serializer, by default a
+ * {@link TransformerSerializer}.
+ * </p>
+ */
+public class DirectSerializer implements XMLSerializer {
+
+    protected static final String XALAN_INDENT_AMOUNT =
+        "{http://xml.apache.org/xslt}indent-amount";
+
+    protected static final String XALAN_INDENT_AMOUNT_ALT =
+        "{http://xml.apache.org/xalan}indent-amount";
+
+    protected static final int DEFAULT_INDENT_AMOUNT = 4;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final XMLSerializer fallbackSerializer;
+
+    /**
+     * Create a serializer that falls back to a {@link TransformerSerializer}
+     * for unsupported output properties.
+     */
+    public DirectSerializer() {
+        this(new TransformerSerializer());
+    }
+
+    /**
+     * @param fallbackSerializer
+     * the serializer used when output properties this class does not
+     * support are requested.
+     */
+    public DirectSerializer(XMLSerializer fallbackSerializer) {
+        this.fallbackSerializer = fallbackSerializer;
+    }
+
+    public void serialize(Node node, Writer writer, Properties outputProperties)
+        throws TransformerException
+    {
+        Settings settings = Settings.parse(outputProperties);
+        if (settings == null) {
+            fallbackSerializer.serialize(node, writer, outputProperties);
+            return;
+        }
+        try {
+            serialize(node, new Output(writer, settings), settings);
+        } catch (IOException e) {
+            throw new TransformerException(e);
+        }
+    }
+
+    public void serialize(Node node, OutputStream outputStream,
+        Properties outputProperties) throws TransformerException
+    {
+        Settings settings = Settings.parse(outputProperties);
+        if (settings == null) {
+            fallbackSerializer.serialize(node, outputStream, outputProperties);
+            return;
+        }
+        try {
+            Output out = (Output.canEncode(settings)
+                ? new Output(outputStream, settings)
+                : new Output(new OutputStreamWriter(outputStream, settings.encoding), settings));
+            try {
+                serialize(node, out, settings);
+            } finally {
+                out.release();
+            }
+        } catch (IOException e) {
+            throw new TransformerException(e);
+        }
+    }
+
+    /**
+     * Serialize a Document or Element node, and all its descendants, to the
+     * given appendable character sequence, such as a {@link StringBuilder}.
+     *
+     * @param node
+     * the Document or Element node to serialize.
+     * @param appendable
+     * the destination of the serialized XML.
+     * @param outputProperties
+     * output settings named by the {@link OutputKeys} constants, may be null.
+     *
+     * @throws IOException
+     * if the appendable fails.
+     * @throws TransformerException
+     * if the fallback serializer fails, or cannot write to the appendable.
+     */
+    public void serialize(Node node, Appendable appendable, Properties outputProperties)
+        throws IOException, TransformerException
+    {
+        if (appendable instanceof Writer) {
+            serialize(node, (Writer) appendable, outputProperties);
+            return;
+        }
+        Settings settings = Settings.parse(outputProperties);
+        if (settings == null) {
+            Writer writer = new AppendableWriter(appendable);
+            fallbackSerializer.serialize(node, writer, outputProperties);
+            return;
+        }
+        serialize(node, new Output(appendable, settings), settings);
+    }
+
+    /**
+     * Serialize a node using an output buffer, then flush the buffer.
+     */
+    protected void serialize(Node node, Output out, Settings settings)
+        throws IOException
+    {
+        if (!settings.omitXmlDeclaration) {
+            writeXmlDeclaration(node, out, settings);
+            if (settings.indent) {
+                out.write('\n');
+            }
+        }
+        NamespaceScope scope = new NamespaceScope();
+        if (node.getNodeType() == Node.DOCUMENT_NODE) {
+            for (Node child = node.getFirstChild(); child != null;
+                child = child.getNextSibling())
+            {
+                writeNode(child, out, scope, settings, 0);
+            }
+            if (settings.indent) {
+                out.write('\n');
+            }
+        } else {
+            writeNode(node, out, scope, settings, 0);
+        }
+        out.flush();
+    }
+
+    protected void writeXmlDeclaration(Node node, Output out, Settings settings)
+        throws IOException
+    {
+        out.write("<?xml version=\"");
+        out.write(settings.version);
+        out.write("\" encoding=\"");
+        out.write(settings.encoding);
+        out.write('"');
+        String standalone = settings.standalone;
+        if (standalone == null && node.getNodeType() == Node.DOCUMENT_NODE
+            && !((Document) node).getXmlStandalone())
+        {
+            standalone = "no";
+        }
+        if (standalone != null) {
+            out.write(" standalone=\"");
+            out.write(standalone);
+            out.write('"');
+        }
+        out.write("?>");
+    }
+
+    protected void writeNode(Node node, Output out, NamespaceScope scope,
+        Settings settings, int depth) throws IOException
+    {
+        switch (node.getNodeType()) {
+        case Node.ELEMENT_NODE:
+            writeElement(node, out, scope, settings, depth);
+            break;
+        case Node.TEXT_NODE:
+            writeText(node, out);
+            break;
+        case Node.CDATA_SECTION_NODE:
+            writeCDATASection(node.getNodeValue(), out);
+            break;
+        case Node.COMMENT_NODE:
+            out.write("<!--");
+            out.write(node.getNodeValue());
+            out.write("-->");
+            break;
+        case Node.PROCESSING_INSTRUCTION_NODE:
+            out.write("<?");
+            out.write(node.getNodeName());
+            String data = node.getNodeValue();
+            if (data != null && data.length() > 0) {
+                out.write(' ');
+                out.write(data);
+            }
+            out.write("?>");
+            break;
+        case Node.ENTITY_REFERENCE_NODE:
+            out.write('&');
+            out.write(node.getNodeName());
+            out.write(';');
+            break;
+        case Node.DOCUMENT_FRAGMENT_NODE:
+            for (Node child = node.getFirstChild(); child != null;
+                child = child.getNextSibling())
+            {
+                writeNode(child, out, scope, settings, depth);
+            }
+            break;
+        default:
+            // Document type declarations and other node types are not output
+            break;
+        }
+    }
+
+    protected void writeElement(Node element, Output out, NamespaceScope scope,
+        Settings settings, int depth) throws IOException
+    {
+        String qname = element.getNodeName();
+        String namespaceURI = element.getNamespaceURI();
+        // DOM Level 1 nodes, created without namespace support, have no local name
+        boolean isNamespaced = (element.getLocalName() != null);
+        NamedNodeMap attributes = element.getAttributes();
+        int attributeCount = attributes.getLength();
+
+        scope.push();
+        out.write('<');
+        out.write(qname);
+
+        // Write explicit namespace declarations first, then other attributes
+        // and finally any declaration needed for the element's own namespace,
+        // in the same order as the identity Transformer.
+        for (int i = 0; i < attributeCount; i++) {
+            Node attr = attributes.item(i);
+            String prefix = declaredPrefixOf(attr.getNodeName());
+            if (prefix != null) {
+                String uri = attr.getNodeValue();
+                if (!uri.equals(scope.lookup(prefix))) {
+                    writeNamespaceDeclaration(prefix, uri, out, scope);
+                }
+            }
+        }
+
+        int generatedPrefixCount = 0;
+        for (int i = 0; i < attributeCount; i++) {
+            Attr attr = (Attr) attributes.item(i);
+            String name = attr.getNodeName();
+            if (declaredPrefixOf(name) != null) {
+                continue;
+            }
+            String attrNamespaceURI = attr.getNamespaceURI();
+            if (attrNamespaceURI != null && attrNamespaceURI.length() > 0
+                && attr.getLocalName() != null)
+            {
+                String prefix = prefixOf(name);
+                if (prefix.length() == 0) {
+                    // Namespaced attributes need a prefix, so generate one
+                    prefix = "ns" + generatedPrefixCount++;
+                    name = prefix + ":" + name;
+                }
+                if (!attrNamespaceURI.equals(scope.lookup(prefix))) {
+                    writeNamespaceDeclaration(prefix, attrNamespaceURI, out, scope);
+                }
+            }
+            out.write(' ');
+            out.write(name);
+            out.write("=\"");
+            writeAttributeValue(attr, out);
+            out.write('"');
+        }
+
+        if (isNamespaced) {
+            String prefix = prefixOf(qname);
+            String uri = (namespaceURI == null ? "" : namespaceURI);
+            if (!uri.equals(scope.lookup(prefix))) {
+                writeNamespaceDeclaration(prefix, uri, out, scope);
+            }
+        }
+
+        Node firstChild = element.getFirstChild();
+        if (firstChild == null) {
+            out.write("/>");
+        } else {
+            out.write('>');
+            boolean indentChildren = settings.indent && !hasNonWhitespaceText(element);
+            for (Node child = firstChild; child != null; child = child.getNextSibling()) {
+                if (indentChildren) {
+                    if (child.getNodeType() == Node.TEXT_NODE) {
+                        // Whitespace-only text is replaced by indenting
+                        continue;
+                    }
+                    writeIndent(out, settings, depth + 1);
+                }
+                writeNode(child, out, scope, settings, depth + 1);
+            }
+            if (indentChildren) {
+                writeIndent(out, settings, depth);
+            }
+            out.write("</");
+            out.write(qname);
+            out.write('>');
+        }
+        scope.pop();
+    }
+
+    /**
+     * Write the escaped value of a text node. Subclasses may override this
+     * method to change how specific text nodes are output.
+     */
+    protected void writeText(Node text, Output out) throws IOException {
+        out.writeEscaped(text.getNodeValue(), false);
+    }
+
+    /**
+     * Write the escaped value of an attribute, excluding the surrounding
+     * quotes. Subclasses may override this method to change how specific
+     * attribute values are output.
+     */
+    protected void writeAttributeValue(Attr attr, Output out) throws IOException {
+        out.writeEscaped(attr.getNodeValue(), true);
+    }
+
+    protected void writeCDATASection(String data, Output out) throws IOException {
+        out.write("<![CDATA[");
+        int start = 0;
+        int end;
+        // Split the section around any "]]>" sequences it contains
+        while ((end = data.indexOf("]]>", start)) >= 0) {
+            out.write(data, start, end + 2);
+            out.write("]]><![CDATA[");
+            start = end + 2;
+        }
+        out.write(data, start, data.length());
+        out.write("]]>");
+    }
+
+    protected void writeIndent(Output out, Settings settings, int depth)
+        throws IOException
+    {
+        out.write('\n');
+        for (int i = depth * settings.indentAmount; i > 0; i--) {
+            out.write(' ');
+        }
+    }
+
+    private void writeNamespaceDeclaration(String prefix, String uri,
+        Output out, NamespaceScope scope) throws IOException
+    {
+        out.write(' ');
+        out.write(XMLConstants.XMLNS_ATTRIBUTE);
+        if (prefix.length() > 0) {
+            out.write(':');
+            out.write(prefix);
+        }
+        out.write("=\"");
+        out.writeEscaped(uri, true);
+        out.write('"');
+        scope.declare(prefix, uri);
+    }
+
+    /**
+     * @return
+     * the prefix declared by an attribute with the given name, an empty
+     * string for a default namespace declaration, or null if the attribute
+     * is not a namespace declaration.
+     */
+    private static String declaredPrefixOf(String attributeName) {
+        if (!attributeName.startsWith(XMLConstants.XMLNS_ATTRIBUTE)) {
+            return null;
+        } else if (attributeName.length() == 5) {
+            return "";
+        } else if (attributeName.charAt(5) == ':') {
+            return attributeName.substring(6);
+        } else {
+            return null;
+        }
+    }
+
+    private static String prefixOf(String qname) {
+        int colonPos = qname.indexOf(':');
+        return (colonPos > 0 ? qname.substring(0, colonPos) : "");
+    }
+
+    private static boolean hasNonWhitespaceText(Node element) {
+        for (Node child = element.getFirstChild(); child != null;
+            child = child.getNextSibling())
+        {
+            if (child.getNodeType() == Node.TEXT_NODE
+                && !XMLBuilder.isWhitespaceOnly(child.getNodeValue()))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Output settings recognized by this serializer.
+     */
+    protected static class Settings {
+        protected boolean omitXmlDeclaration = false;
+        protected boolean indent = false;
+        protected int indentAmount = DEFAULT_INDENT_AMOUNT;
+        protected String encoding = "UTF-8";
+        protected String version = "1.0";
+        protected String standalone = null;
+        protected CharsetEncoder encoder = null;
+
+        /**
+         * @return
+         * settings parsed from the given properties, or null if the
+         * properties include settings this serializer does not support.
+         */
+        protected static Settings parse(Properties outputProperties) {
+            Settings settings = new Settings();
+            if (outputProperties == null || outputProperties.isEmpty()) {
+                return settings;
+            }
+            Iterator<Entry<Object, Object>> iter = outputProperties.entrySet().iterator();
+            while (iter.hasNext()) {
+                Entry<Object, Object> entry = iter.next();
+                String key = (String) entry.getKey();
+                String value = ((String) entry.getValue()).trim();
+                if (OutputKeys.METHOD.equals(key)) {
+                    if (!"xml".equals(value)) {
+                        return null;
+                    }
+                } else if (OutputKeys.OMIT_XML_DECLARATION.equals(key)) {
+                    settings.omitXmlDeclaration = "yes".equals(value);
+                } else if (OutputKeys.INDENT.equals(key)) {
+                    settings.indent = "yes".equals(value);
+                } else if (OutputKeys.ENCODING.equals(key)) {
+                    settings.encoding = value;
+                } else if (OutputKeys.VERSION.equals(key)) {
+                    settings.version = value;
+                } else if (OutputKeys.STANDALONE.equals(key)) {
+                    settings.standalone = value;
+                } else if (XALAN_INDENT_AMOUNT.equals(key)
+                    || XALAN_INDENT_AMOUNT_ALT.equals(key))
+                {
+                    try {
+                        settings.indentAmount = Integer.parseInt(value);
+                    } catch (NumberFormatException e) {
+                        return null;
+                    }
+                } else {
+                    return null;
+                }
+            }
+            String upperEncoding = settings.encoding.toUpperCase();
+            if (!upperEncoding.startsWith("UTF-")) {
+                try {
+                    settings.encoder = Charset.forName(settings.encoding).newEncoder();
+                } catch (RuntimeException e) {
+                    // Leave unknown encodings to the fallback serializer
+                    return null;
+                }
+            }
+            return settings;
+        }
+    }
+
+    /**
+     * Scope of namespace prefix bindings in effect while serializing.
+     */
+    protected static class NamespaceScope {
+        private String[] prefixes = new String[16];
+        private String[] uris = new String[16];
+        private int[] scopeStarts = new int[16];
+        private int count = 0;
+        private int depth = 0;
+
+        protected NamespaceScope() {
+            declare("", "");
+            declare(XMLConstants.XML_NS_PREFIX, XMLConstants.XML_NS_URI);
+        }
+
+        protected void push() {
+            if (depth == scopeStarts.length) {
+                int[] expanded = new int[depth * 2];
+                System.arraycopy(scopeStarts, 0, expanded, 0, depth);
+                scopeStarts = expanded;
+            }
+            scopeStarts[depth++] = count;
+        }
+
+        protected void pop() {
+            count = scopeStarts[--depth];
+        }
+
+        protected void declare(String prefix, String uri) {
+            if (count == prefixes.length) {
+                String[] expandedPrefixes = new String[count * 2];
+                String[] expandedUris = new String[count * 2];
+                System.arraycopy(prefixes, 0, expandedPrefixes, 0, count);
+                System.arraycopy(uris, 0, expandedUris, 0, count);
+                prefixes = expandedPrefixes;
+                uris = expandedUris;
+            }
+            prefixes[count] = prefix;
+            uris[count] = uri;
+            count++;
+        }
+
+        protected String lookup(String prefix) {
+            for (int i = count - 1; i >= 0; i--) {
+                if (prefixes[i].equals(prefix)) {
+                    return uris[i];
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Buffered character output that escapes markup characters, and any
+     * characters the output encoding cannot represent.
+     * <p>
+     * Output to an {@link OutputStream} is encoded by this class, which only
+     * supports the encodings accepted by {@link #canEncode(Settings)}. Its
+     * byte buffer is borrowed from a per-thread pool and must be handed back
+     * with {@link #release()}.
+     * </p>
+     */
+    protected static class Output {
+
+        /**
+         * Room for a full character buffer encoded as UTF-8, which needs at
+         * most three bytes per char.
+         */
+        private static final int BYTE_BUFFER_SIZE = BUFFER_SIZE * 3;
+
+        private static final ThreadLocal<byte[]> pooledBytes = new ThreadLocal<byte[]>();
+
+        private final Appendable appendable;
+        private final Writer writer;
+        private final OutputStream stream;
+        private final CharsetEncoder encoder;
+        private final char[] buffer = new char[BUFFER_SIZE];
+        private int position = 0;
+
+        /**
+         * Highest char written to the stream as a single byte of the same
+         * value: 0x7F for UTF-8 and US-ASCII, 0xFF for ISO-8859-1.
+         */
+        private final int singleByteLimit;
+
+        private final boolean utf8;
+
+        private byte[] bytes;
+
+        protected Output(Appendable appendable, Settings settings) {
+            this.appendable = appendable;
+            this.writer = (appendable instanceof Writer ? (Writer) appendable : null);
+            this.stream = null;
+            this.encoder = settings.encoder;
+            this.singleByteLimit = 0;
+            this.utf8 = false;
+        }
+
+        /**
+         * @throws IllegalArgumentException
+         * if the output encoding is not supported by {@link #canEncode(Settings)}.
+         */
+        protected Output(OutputStream stream, Settings settings) {
+            String charsetName = charsetName(settings);
+            this.appendable = null;
+            this.writer = null;
+            this.stream = stream;
+            this.encoder = settings.encoder;
+            this.utf8 = "UTF-8".equals(charsetName);
+            if (this.utf8 || "US-ASCII".equals(charsetName)) {
+                this.singleByteLimit = 0x7F;
+            } else if ("ISO-8859-1".equals(charsetName)) {
+                this.singleByteLimit = 0xFF;
+            } else {
+                throw new IllegalArgumentException(
+                    "Cannot encode output directly as " + settings.encoding);
+            }
+            this.bytes = pooledBytes.get();
+            if (this.bytes == null) {
+                this.bytes = new byte[BYTE_BUFFER_SIZE];
+            } else {
+                pooledBytes.set(null);
+            }
+        }
+
+        /**
+         * @return
+         * true if output with the given settings can be encoded directly to an
+         * OutputStream, which is the case for UTF-8, US-ASCII and ISO-8859-1.
+         */
+        protected static boolean canEncode(Settings settings) {
+            String charsetName = charsetName(settings);
+            return "UTF-8".equals(charsetName)
+                || "US-ASCII".equals(charsetName)
+                || "ISO-8859-1".equals(charsetName);
+        }
+
+        private static String charsetName(Settings settings) {
+            if (settings.encoder != null) {
+                return settings.encoder.charset().name();
+            }
+            try {
+                return Charset.forName(settings.encoding).name();
+            } catch (RuntimeException e) {
+                return null;
+            }
+        }
+
+        protected void write(char c) throws IOException {
+            if (position == buffer.length) {
+                flushBuffer();
+            }
+            buffer[position++] = c;
+        }
+
+        protected void write(String s) throws IOException {
+            write(s, 0, s.length());
+        }
+
+        protected void write(String s, int start, int end) throws IOException {
+            while (start < end) {
+                if (position == buffer.length) {
+                    flushBuffer();
+                }
+                int length = Math.min(end - start, buffer.length - position);
+                s.getChars(start, start + length, buffer, position);
+                position += length;
+                start += length;
+            }
+        }
+
+        protected void writeEscaped(String s, boolean isAttribute) throws IOException {
+            int length = s.length();
+            int start = 0;
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(i);
+                String replacement = null;
+                switch (c) {
+                case '&': replacement = "&amp;"; break;
+                case '<': replacement = "&lt;"; break;
+                case '>': replacement = "&gt;"; break;
+                case '\r': replacement = "&#13;"; break;
+                case '"': if (isAttribute) replacement = "&quot;"; break;
+                case '\n': if (isAttribute) replacement = "&#10;"; break;
+                case '\t': if (isAttribute) replacement = "&#9;"; break;
+                default:
+                    if (c > 0x7F && encoder != null && !encoder.canEncode(c)) {
+                        write(s, start, i);
+                        int codePoint = s.codePointAt(i);
+                        if (Character.isSupplementaryCodePoint(codePoint)) {
+                            i++;
+                        }
+                        write("&#");
+                        write(Integer.toString(codePoint));
+                        write(';');
+                        start = i + 1;
+                    }
+                    break;
+                }
+                if (replacement != null) {
+                    write(s, start, i);
+                    write(replacement);
+                    start = i + 1;
+                }
+            }
+            write(s, start, length);
+        }
+
+        protected void flush() throws IOException {
+            flushBuffer(true);
+            if (writer != null) {
+                writer.flush();
+            } else if (stream != null) {
+                stream.flush();
+            }
+        }
+
+        /**
+         * Return this output's byte buffer, if it has one, to the calling
+         * thread's pool. The output must not be used afterwards.
+         */
+        protected void release() {
+            if (bytes != null) {
+                pooledBytes.set(bytes);
+                bytes = null;
+            }
+        }
+
+        private void flushBuffer() throws IOException {
+            flushBuffer(false);
+        }
+
+        /**
+         * @param complete
+         * if false, a high surrogate at the end of the buffer is kept back
+         * until its low surrogate arrives.
+         */
+        private void flushBuffer(boolean complete) throws IOException {
+            if (position == 0) {
+                return;
+            }
+            if (stream != null) {
+                int end = position;
+                if (!complete && Character.isHighSurrogate(buffer[end - 1])) {
+                    end--;
+                }
+                stream.write(bytes, 0, encode(end));
+                if (end < position) {
+                    buffer[0] = buffer[end];
+                    position = 1;
+                } else {
+                    position = 0;
+                }
+                return;
+            }
+            if (writer != null) {
+                writer.write(buffer, 0, position);
+            } else if (appendable instanceof StringBuilder) {
+                ((StringBuilder) appendable).append(buffer, 0, position);
+            } else {
+                appendable.append(CharBuffer.wrap(buffer, 0, position));
+            }
+            position = 0;
+        }
+
+        /**
+         * Encode the first <code>end</code> chars of the buffer into the byte
+         * buffer. Characters the encoding cannot represent have already been
+         * escaped, except in markup such as names, where they become '?'.
+         *
+         * @return
+         * the number of bytes written to the byte buffer.
+         */
+        private int encode(int end) {
+            byte[] out = bytes;
+            int length = 0;
+            for (int i = 0; i < end; i++) {
+                char c = buffer[i];
+                if (c <= singleByteLimit) {
+                    out[length++] = (byte) c;
+                } else if (!utf8) {
+                    out[length++] = (byte) '?';
+                } else if (c < 0x800) {
+                    out[length++] = (byte) (0xC0 | (c >> 6));
+                    out[length++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < end
+                    && Character.isLowSurrogate(buffer[i + 1]))
+                {
+                    int codePoint = Character.toCodePoint(c, buffer[++i]);
+                    out[length++] = (byte) (0xF0 | (codePoint >> 18));
+                    out[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    out[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    out[length++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    // Unpaired surrogates cannot be encoded
+                    out[length++] = (byte) '?';
+                } else {
+                    out[length++] = (byte) (0xE0 | (c >> 12));
+                    out[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    out[length++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            return length;
+        }
+    }
+
+    /**
+     * Adapts an Appendable to the Writer interface for the fallback serializer.
+     */
+    private static class AppendableWriter extends Writer {
+        private final Appendable appendable;
+
+        private AppendableWriter(Appendable appendable) {
+            this.appendable = appendable;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            appendable.append(CharBuffer.wrap(cbuf, off, len));
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+}
@@ -0,0 +1,540 @@
+/*
+ * Copyright 2008-2014 James Murty (www.jamesmurty.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is available from the GitHub code repository at:
+ * https://github.com/jmurty/java-xmlbuilder
+ */
+package com.jamesmurty.utils;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.FactoryConfigurationError;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLInputFactory;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
+import org.xml.sax.XMLReader;
+
+/**
+ * Caches a configured {@link DocumentBuilderFactory} and hands out one
+ * reusable {@link DocumentBuilder} per thread, so documents can be created
+ * and parsed without repeating the JAXP factory lookup and parser set-up
+ * for every document.
+ * <p>
+ * A pool is safe to share between threads. Each thread's DocumentBuilder is
+ * reset after every use, so settings such as entity resolvers and error
+ * handlers applied by one caller do not leak into the next.
+ * </p>
+ */
+public class DocumentBuilderPool {
+
+    private static final String DISALLOW_DOCTYPE_DECL_FEATURE =
+        "http://apache.org/xml/features/disallow-doctype-decl";
+
+    private static final String EXTERNAL_GENERAL_ENTITIES_FEATURE =
+        "http://xml.org/sax/features/external-general-entities";
+
+    /**
+     * Parser features that affect security and entity handling, copied from
+     * the DocumentBuilderFactory to a derived SAXParserFactory.
+     */
+    private static final String[] SHARED_FEATURES = {
+        XMLConstants.FEATURE_SECURE_PROCESSING,
+        DISALLOW_DOCTYPE_DECL_FEATURE,
+        EXTERNAL_GENERAL_ENTITIES_FEATURE,
+        "http://xml.org/sax/features/external-parameter-entities",
+        "http://apache.org/xml/features/nonvalidating/load-external-dtd"
+    };
+
+    /**
+     * Asks the JDK's StAX implementation to report CDATA sections as such,
+     * rather than as plain character data.
+     */
+    private static final String REPORT_CDATA_EVENT =
+        "http://java.sun.com/xml/stream/properties/report-cdata-event";
+
+    /**
+     * Parser attributes copied from the DocumentBuilderFactory to the
+     * SAXParsers of a derived SAXParserFactory.
+     */
+    private static final String[] SHARED_ATTRIBUTES = {
+        XMLConstants.ACCESS_EXTERNAL_DTD,
+        XMLConstants.ACCESS_EXTERNAL_SCHEMA
+    };
+
+    private final DocumentBuilderFactory factory;
+
+    private final ThreadLocal<DocumentBuilder> threadBuilders =
+        new ThreadLocal<DocumentBuilder>();
+
+    private volatile SAXParserFactory saxParserFactory;
+
+    /**
+     * Values of the {@link #SHARED_ATTRIBUTES} to give each SAXParser of a
+     * derived SAXParserFactory, read from the DocumentBuilderFactory once.
+     */
+    private volatile Object[] saxParserAttributes;
+
+    private volatile XMLInputFactory xmlInputFactory;
+
+    private volatile Boolean doctypeDisallowed;
+
+    private final ThreadLocal<SAXParser> threadSAXParsers =
+        new ThreadLocal<SAXParser>();
+
+    /**
+     * Create a pool that hands out DocumentBuilders created by the given
+     * factory. The factory must be fully configured before it is passed to
+     * this constructor, and must not be modified afterwards.
+     *
+     * @param factory
+     * a configured document builder factory.
+     */
+    public DocumentBuilderPool(DocumentBuilderFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Create a pool that hands out DocumentBuilders created by the given
+     * factory, and parses documents with {@link XMLParseOption}s using
+     * SAXParsers created by the given SAX factory. Use this constructor when
+     * the document builder factory has settings that cannot be copied to a
+     * SAX factory automatically. Both factories must be fully configured
+     * before they are passed to this constructor, and must not be modified
+     * afterwards.
+     *
+     * @param factory
+     * a configured document builder factory.
+     * @param saxParserFactory
+     * a SAX parser factory configured to match the document builder factory.
+     */
+    public DocumentBuilderPool(DocumentBuilderFactory factory,
+        SAXParserFactory saxParserFactory)
+    {
+        this.factory = factory;
+        this.saxParserFactory = saxParserFactory;
+    }
+
+    /**
+     * Create a pool using the platform's default {@link DocumentBuilderFactory}.
+     * The JAXP factory lookup is performed once, when this method is called.
+     *
+     * @param namespaceAware
+     * true if the factory should produce namespace-aware builders.
+     * @return
+     * a pool of builders created by the default factory.
+     *
+     * @throws FactoryConfigurationError
+     */
+    public static DocumentBuilderPool newInstance(boolean namespaceAware)
+        throws FactoryConfigurationError
+    {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(namespaceAware);
+        return new DocumentBuilderPool(factory);
+    }
+
+    /**
+     * Create a pool using a specific {@link DocumentBuilderFactory}
+     * implementation class, which avoids the JAXP classpath lookup entirely.
+     *
+     * @param factoryClassName
+     * the fully qualified name of a DocumentBuilderFactory implementation,
+     * e.g. "com.sun.org.apache.xerces.internal.jaxp.DocumentBuilderFactoryImpl".
+     * @param classLoader
+     * the class loader used to load the factory class, or null to use the
+     * context class loader.
+     * @param namespaceAware
+     * true if the factory should produce namespace-aware builders.
+     * @return
+     * a pool of builders created by the given factory implementation.
+     *
+     * @throws FactoryConfigurationError
+     */
+    public static DocumentBuilderPool newInstance(String factoryClassName,
+        ClassLoader classLoader, boolean namespaceAware)
+        throws FactoryConfigurationError
+    {
+        DocumentBuilderFactory factory =
+            DocumentBuilderFactory.newInstance(factoryClassName, classLoader);
+        factory.setNamespaceAware(namespaceAware);
+        return new DocumentBuilderPool(factory);
+    }
+
+    /**
+     * @return
+     * the factory used to create this pool's DocumentBuilders.
+     */
+    public DocumentBuilderFactory getFactory() {
+        return this.factory;
+    }
+
+    /**
+     * @return
+     * true if this pool's builders are namespace-aware.
+     */
+    public boolean isNamespaceAware() {
+        return this.factory.isNamespaceAware();
+    }
+
+    /**
+     * @return
+     * a new, empty DOM Document.
+     *
+     * @throws ParserConfigurationException
+     */
+    public Document newDocument() throws ParserConfigurationException {
+        // Creating an empty document does not change the builder's state,
+        // so there is no need to reset it afterwards.
+        return getDocumentBuilder().newDocument();
+    }
+
+    /**
+     * Parse the given input source into a DOM Document using this thread's
+     * DocumentBuilder.
+     *
+     * @param inputSource
+     * an XML document input source that will be parsed into a DOM.
+     * @return
+     * the parsed document.
+     *
+     * @throws ParserConfigurationException
+     * @throws SAXException
+     * @throws IOException
+     */
+    public Document parse(InputSource inputSource)
+        throws ParserConfigurationException, SAXException, IOException
+    {
+        DocumentBuilder builder = getDocumentBuilder();
+        // Remove the builder while it is in use, in case parsing re-enters
+        // this pool on the same thread, e.g. from an entity resolver.
+        threadBuilders.remove();
+        try {
+            return builder.parse(inputSource);
+        } finally {
+            builder.reset();
+            threadBuilders.set(builder);
+        }
+    }
+
+    /**
+     * Parse the given input source into a DOM Document, leaving out the
+     * kinds of node named by the given options. Without options this method
+     * is the same as {@link #parse(InputSource)}. With options, the document is
+     * built from the events of a SAX parser configured like this pool's
+     * factory, as described for {@link #getSAXParserFactory()}, and the
+     * filtered nodes are never created. Document type declarations and
+     * entity reference nodes are not included in documents built this way.
+     *
+     * @param inputSource
+     * an XML document input source that will be parsed into a DOM.
+     * @param options
+     * options that filter out nodes while the document is parsed.
+     * @return
+     * the parsed document.
+     *
+     * @throws ParserConfigurationException
+     * @throws SAXException
+     * @throws IOException
+     */
+    public Document parse(InputSource inputSource, XMLParseOption... options)
+        throws ParserConfigurationException, SAXException, IOException
+    {
+        if (options == null || options.length == 0) {
+            return parse(inputSource);
+        }
+        Set<XMLParseOption> optionSet = EnumSet.copyOf(Arrays.asList(options));
+        Document document = newDocument();
+        FilteringDocumentHandler handler = new FilteringDocumentHandler(
+            document, this.factory.isNamespaceAware(),
+            optionSet.contains(XMLParseOption.STRIP_WHITESPACE_ONLY_TEXT),
+            optionSet.contains(XMLParseOption.STRIP_COMMENTS)
+                || this.factory.isIgnoringComments(),
+            optionSet.contains(XMLParseOption.STRIP_PROCESSING_INSTRUCTIONS),
+            this.factory.isCoalescing());
+
+        SAXParser parser = getSAXParser();
+        // Remove the parser while it is in use, as for DocumentBuilders
+        threadSAXParsers.remove();
+        try {
+            XMLReader reader = parser.getXMLReader();
+            reader.setContentHandler(handler);
+            reader.setProperty(
+                "http://xml.org/sax/properties/lexical-handler", handler);
+            reader.parse(inputSource);
+        } finally {
+            parser.reset();
+            threadSAXParsers.set(parser);
+        }
+        document.setDocumentURI(inputSource.getSystemId());
+        return document;
+    }
+
+    /**
+     * @return
+     * the DocumentBuilder belonging to the current thread, created on first use.
+     *
+     * @throws ParserConfigurationException
+     */
+    protected DocumentBuilder getDocumentBuilder() throws ParserConfigurationException {
+        DocumentBuilder builder = threadBuilders.get();
+        if (builder == null) {
+            // DocumentBuilderFactory is not guaranteed to be thread-safe
+            synchronized (this.factory) {
+                builder = this.factory.newDocumentBuilder();
+            }
+            threadBuilders.set(builder);
+        }
+        return builder;
+    }
+
+    /**
+     * Return the factory of the SAXParsers used to parse documents with
+     * {@link XMLParseOption}s. Unless a SAX factory was given to the
+     * constructor, it is created on first use by {@link #newSAXParserFactory()}.
+     *
+     * @return
+     * the SAX parser factory used by this pool.
+     *
+     * @throws ParserConfigurationException
+     * if the DocumentBuilderFactory's settings cannot be applied to it.
+     */
+    public SAXParserFactory getSAXParserFactory() throws ParserConfigurationException {
+        SAXParserFactory parserFactory = this.saxParserFactory;
+        if (parserFactory == null) {
+            // DocumentBuilderFactory is not guaranteed to be thread-safe
+            synchronized (this.factory) {
+                parserFactory = this.saxParserFactory;
+                if (parserFactory == null) {
+                    parserFactory = newSAXParserFactory();
+                    this.saxParserAttributes = readSharedAttributes();
+                    this.saxParserFactory = parserFactory;
+                }
+            }
+        }
+        return parserFactory;
+    }
+
+    /**
+     * Create a SAXParserFactory with the same settings as this pool's
+     * DocumentBuilderFactory. The factory copies namespace awareness,
+     * validation, XInclude awareness, the schema, secure processing, the
+     * <code>disallow-doctype-decl</code>, external entity and external DTD
+     * loading features, and the SAXParsers it creates are given the
+     * {@link XMLConstants#ACCESS_EXTERNAL_DTD} and
+     * {@link XMLConstants#ACCESS_EXTERNAL_SCHEMA} attributes. Other
+     * vendor-specific features and attributes cannot be discovered and are
+     * not copied. Entity resolvers and error handlers set on DocumentBuilders
+     * do not apply either. Override this method, or give the pool a SAX
+     * factory when it is created, if parsing with options needs any of them.
+     *
+     * @return
+     * a new SAX parser factory.
+     *
+     * @throws ParserConfigurationException
+     * if a setting of the DocumentBuilderFactory is not supported by the SAX
+     * parser factory.
+     */
+    protected SAXParserFactory newSAXParserFactory() throws ParserConfigurationException {
+        SAXParserFactory parserFactory = SAXParserFactory.newInstance();
+        parserFactory.setNamespaceAware(this.factory.isNamespaceAware());
+        parserFactory.setValidating(this.factory.isValidating());
+        parserFactory.setXIncludeAware(this.factory.isXIncludeAware());
+        parserFactory.setSchema(this.factory.getSchema());
+        for (String feature : SHARED_FEATURES) {
+            boolean value;
+            try {
+                value = this.factory.getFeature(feature);
+            } catch (ParserConfigurationException e) {
+                // Not supported by the DOM parser, so nothing to copy
+                continue;
+            }
+            try {
+                // Only set features that differ, as setting some features
+                // explicitly has side-effects, such as secure processing
+                // restricting external access
+                if (parserFactory.getFeature(feature) != value) {
+                    parserFactory.setFeature(feature, value);
+                }
+            } catch (SAXNotRecognizedException e) {
+                throw newConfigurationException(feature, e);
+            } catch (SAXNotSupportedException e) {
+                throw newConfigurationException(feature, e);
+            }
+        }
+        return parserFactory;
+    }
+
+    /**
+     * Return the StAX factory used to stream through documents for
+     * {@link XMLBuilder#parseMatching(InputSource, XMLBuilderContext, String...)}
+     * and {@link XMLRecordReader}, created on first use by
+     * {@link #newXMLInputFactory()}.
+     *
+     * @return
+     * the StAX input factory used by this pool.
+     */
+    public XMLInputFactory getXMLInputFactory() {
+        XMLInputFactory inputFactory = this.xmlInputFactory;
+        if (inputFactory == null) {
+            // DocumentBuilderFactory is not guaranteed to be thread-safe
+            synchronized (this.factory) {
+                inputFactory = this.xmlInputFactory;
+                if (inputFactory == null) {
+                    inputFactory = newXMLInputFactory();
+                    this.xmlInputFactory = inputFactory;
+                }
+            }
+        }
+        return inputFactory;
+    }
+
+    /**
+     * Create a StAX XMLInputFactory with the same settings as this pool's
+     * DocumentBuilderFactory, as far as StAX allows. The factory copies
+     * namespace awareness, turns off DTD support if the
+     * <code>disallow-doctype-decl</code> feature is set, turns off external
+     * entities if the <code>external-general-entities</code> feature is unset,
+     * and copies the {@link XMLConstants#ACCESS_EXTERNAL_DTD} attribute.
+     * Documents with a document type declaration are rejected when the
+     * <code>disallow-doctype-decl</code> feature is set. Validation, schemas
+     * and other features and attributes have no StAX equivalent and are not
+     * copied. Override this method if streaming needs other settings.
+     *
+     * @return
+     * a new StAX input factory.
+     */
+    protected XMLInputFactory newXMLInputFactory() {
+        XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE,
+            this.factory.isNamespaceAware());
+        if (inputFactory.isPropertySupported(REPORT_CDATA_EVENT)) {
+            inputFactory.setProperty(REPORT_CDATA_EVENT, Boolean.TRUE);
+        }
+        if (isDoctypeDisallowed()) {
+            inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        }
+        if (!getFactoryFeature(EXTERNAL_GENERAL_ENTITIES_FEATURE, true)) {
+            inputFactory.setProperty(
+                XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        }
+        Object accessExternalDTD = readSharedAttributes()[0];
+        if (accessExternalDTD != null
+            && inputFactory.isPropertySupported(XMLConstants.ACCESS_EXTERNAL_DTD))
+        {
+            inputFactory.setProperty(XMLConstants.ACCESS_EXTERNAL_DTD, accessExternalDTD);
+        }
+        return inputFactory;
+    }
+
+    /**
+     * @return
+     * true if this pool's DocumentBuilderFactory rejects documents with a
+     * document type declaration.
+     */
+    boolean isDoctypeDisallowed() {
+        Boolean disallowed = this.doctypeDisallowed;
+        if (disallowed == null) {
+            synchronized (this.factory) {
+                disallowed = getFactoryFeature(DISALLOW_DOCTYPE_DECL_FEATURE, false);
+            }
+            this.doctypeDisallowed = disallowed;
+        }
+        return disallowed;
+    }
+
+    private boolean getFactoryFeature(String feature, boolean defaultValue) {
+        try {
+            return this.factory.getFeature(feature);
+        } catch (ParserConfigurationException e) {
+            return defaultValue;
+        }
+    }
+
+    private static ParserConfigurationException newConfigurationException(
+        String feature, Exception cause)
+    {
+        ParserConfigurationException e = new ParserConfigurationException(
+            "SAX parser does not support feature " + feature + ": " + cause.getMessage());
+        e.initCause(cause);
+        return e;
+    }
+
+    /**
+     * @return
+     * the SAXParser belonging to the current thread, created on first use by
+     * the factory returned by {@link #getSAXParserFactory()}.
+     *
+     * @throws ParserConfigurationException
+     * @throws SAXException
+     */
+    protected SAXParser getSAXParser()
+        throws ParserConfigurationException, SAXException
+    {
+        SAXParser parser = threadSAXParsers.get();
+        if (parser == null) {
+            SAXParserFactory parserFactory = getSAXParserFactory();
+            // SAXParserFactory is not guaranteed to be thread-safe
+            synchronized (parserFactory) {
+                parser = parserFactory.newSAXParser();
+            }
+            threadSAXParsers.set(parser);
+        }
+        // Resetting a parser after use also resets its properties
+        Object[] attributes = this.saxParserAttributes;
+        if (attributes != null) {
+            for (int i = 0; i < attributes.length; i++) {
+                if (attributes[i] != null) {
+                    parser.setProperty(SHARED_ATTRIBUTES[i], attributes[i]);
+                }
+            }
+        }
+        return parser;
+    }
+
+    /**
+     * @return
+     * the DocumentBuilderFactory's values of the {@link #SHARED_ATTRIBUTES},
+     * with null for those it does not support.
+     */
+    private Object[] readSharedAttributes() {
+        Object[] values = new Object[SHARED_ATTRIBUTES.length];
+        for (int i = 0; i < values.length; i++) {
+            try {
+                values[i] = this.factory.getAttribute(SHARED_ATTRIBUTES[i]);
+            } catch (IllegalArgumentException e) {
+                // Not supported by the DOM parser, so nothing to copy
+            } catch (NullPointerException e) {
+                // The JDK's factory fails like this when no attributes have
+                // been set, leaving the same defaults as the SAX parser
+            }
+        }
+        return values;
+    }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2008-2014 James Murty (www.jamesmurty.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is available from the GitHub code repository at:
+ * https://github.com/jmurty/java-xmlbuilder
+ */
+package com.jamesmurty.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
+import org.xml.sax.ext.DefaultHandler2;
+
+/**
+ * Builds a DOM Document from SAX events, leaving out the kinds of node
+ * named by a set of {@link XMLParseOption}s before they are ever created.
+ * <p>
+ * Character data is held back until the end of each run of adjacent text and
+ * CDATA sections, so that a run containing only whitespace can be dropped as
+ * a whole.
+ * </p>
+ */
+class FilteringDocumentHandler extends DefaultHandler2 {
+
+    private final Document document;
+    private final boolean namespaceAware;
+    private final boolean stripWhitespace;
+    private final boolean stripComments;
+    private final boolean stripInstructions;
+    private final boolean coalescing;
+
+    private Node current;
+
+    /**
+     * Namespace declarations to add to the next element started.
+     */
+    private final List<String> pendingPrefixMappings = new ArrayList<String>();
+
+    /**
+     * The character data of the current run of text.
+     */
+    private final StringBuilder text = new StringBuilder();
+
+    /**
+     * The offsets within the current run at which CDATA sections start and
+     * end, in pairs.
+     */
+    private final List<Integer> cdataBounds = new ArrayList<Integer>();
+
+    private boolean inCDATA = false;
+
+    private boolean inDTD = false;
+
+    FilteringDocumentHandler(Document document, boolean namespaceAware,
+        boolean stripWhitespace, boolean stripComments,
+        boolean stripInstructions, boolean coalescing)
+    {
+        this.document = document;
+        this.current = document;
+        this.namespaceAware = namespaceAware;
+        this.stripWhitespace = stripWhitespace;
+        this.stripComments = stripComments;
+        this.stripInstructions = stripInstructions;
+        this.coalescing = coalescing;
+    }
+
+    @Override
+    public void startPrefixMapping(String prefix, String uri) {
+        this.pendingPrefixMappings.add(prefix);
+        this.pendingPrefixMappings.add(uri);
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName,
+        Attributes attributes)
+    {
+        flushText();
+        Element element;
+        if (this.namespaceAware) {
+            element = this.document.createElementNS(
+                (uri.length() > 0 ? uri : null), qName);
+            for (int i = 0; i < this.pendingPrefixMappings.size(); i += 2) {
+                String prefix = this.pendingPrefixMappings.get(i);
+                element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+                    (prefix.length() > 0
+                        ? XMLConstants.XMLNS_ATTRIBUTE + ":" + prefix
+                        : XMLConstants.XMLNS_ATTRIBUTE),
+                    this.pendingPrefixMappings.get(i + 1));
+            }
+            this.pendingPrefixMappings.clear();
+            for (int i = 0; i < attributes.getLength(); i++) {
+                String attributeURI = attributes.getURI(i);
+                element.setAttributeNS(
+                    (attributeURI.length() > 0 ? attributeURI : null),
+                    attributes.getQName(i), attributes.getValue(i));
+            }
+        } else {
+            element = this.document.createElement(qName);
+            for (int i = 0; i < attributes.getLength(); i++) {
+                element.setAttribute(attributes.getQName(i), attributes.getValue(i));
+            }
+        }
+        this.current.appendChild(element);
+        this.current = element;
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) {
+        flushText();
+        this.current = this.current.getParentNode();
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+        this.text.append(ch, start, length);
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) {
+        this.text.append(ch, start, length);
+    }
+
+    @Override
+    public void startCDATA() {
+        if (!this.coalescing) {
+            this.cdataBounds.add(this.text.length());
+            this.inCDATA = true;
+        }
+    }
+
+    @Override
+    public void endCDATA() {
+        if (this.inCDATA) {
+            this.cdataBounds.add(this.text.length());
+            this.inCDATA = false;
+        }
+    }
+
+    @Override
+    public void comment(char[] ch, int start, int length) {
+        // Comments in the DTD are not part of the document
+        if (!this.stripComments && !this.inDTD) {
+            flushText();
+            this.current.appendChild(
+                this.document.createComment(new String(ch, start, length)));
+        }
+    }
+
+    @Override
+    public void processingInstruction(String target, String data) {
+        if (!this.stripInstructions) {
+            flushText();
+            this.current.appendChild(
+                this.document.createProcessingInstruction(target, data));
+        }
+    }
+
+    @Override
+    public void startDTD(String name, String publicId, String systemId) {
+        this.inDTD = true;
+    }
+
+    @Override
+    public void endDTD() {
+        this.inDTD = false;
+    }
+
+    @Override
+    public void endDocument() {
+        flushText();
+    }
+
+    /**
+     * Add the current run of text to the document as text and CDATA nodes,
+     * unless it is whitespace-only text to be left out.
+     */
+    private void flushText() {
+        if (this.text.length() == 0 && this.cdataBounds.isEmpty()) {
+            return;
+        }
+        if (!this.stripWhitespace || !XMLBuilder.isWhitespaceOnly(this.text)) {
+            int start = 0;
+            for (int i = 0; i < this.cdataBounds.size(); i += 2) {
+                int cdataStart = this.cdataBounds.get(i);
+                int cdataEnd = this.cdataBounds.get(i + 1);
+                if (cdataStart > start) {
+                    this.current.appendChild(this.document.createTextNode(
+                        this.text.substring(start, cdataStart)));
+                }
+                this.current.appendChild(this.document.createCDATASection(
+                    this.text.substring(cdataStart, cdataEnd)));
+                start = cdataEnd;
+            }
+            if (start < this.text.length()) {
+                this.current.appendChild(this.document.createTextNode(
+                    this.text.substring(start)));
+            }
+        }
+        this.text.setLength(0);
+        this.cdataBounds.clear();
+    }
+
+}
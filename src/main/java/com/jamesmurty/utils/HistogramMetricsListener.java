@@ -0,0 +1,284 @@
+/*
+ * Copyright 2008-2014 James Murty (www.jamesmurty.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is available from the GitHub code repository at:
+ * https://github.com/jmurty/java-xmlbuilder
+ */
+package com.jamesmurty.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An {@link XMLMetricsListener} that keeps simple in-memory histograms of
+ * its measurements, for use in tests, diagnostics, or where no metrics
+ * library is available.
+ * <p>
+ * Each {@link Histogram} records values in buckets whose width is at most an
+ * eighth of their lower bound, so percentiles are accurate to within 12.5%
+ * while recording stays lock-free and allocation-free. This listener is
+ * thread-safe.
+ * </p>
+ */
+public class HistogramMetricsListener implements XMLMetricsListener {
+
+    private final Histogram parseTimes = new Histogram();
+
+    private final Histogram parsedNodeCounts = new Histogram();
+
+    private final Histogram buildTimes = new Histogram();
+
+    private final Histogram builtNodeCounts = new Histogram();
+
+    private final Histogram xpathTimes = new Histogram();
+
+    private final Histogram serializeTimes = new Histogram();
+
+    private final Histogram outputLengths = new Histogram();
+
+    private final AtomicLong xpathCacheHits = new AtomicLong();
+
+    private final AtomicLong xpathCacheMisses = new AtomicLong();
+
+    public void documentParsed(long elapsedNanos, long nodeCount) {
+        parseTimes.record(elapsedNanos);
+        parsedNodeCounts.record(nodeCount);
+    }
+
+    public void documentBuilt(long elapsedNanos, long nodeCount) {
+        buildTimes.record(elapsedNanos);
+        builtNodeCounts.record(nodeCount);
+    }
+
+    public void xpathEvaluated(long elapsedNanos) {
+        xpathTimes.record(elapsedNanos);
+    }
+
+    public void xpathCacheLookup(boolean hit) {
+        (hit ? xpathCacheHits : xpathCacheMisses).incrementAndGet();
+    }
+
+    public void documentSerialized(long elapsedNanos, long outputLength) {
+        serializeTimes.record(elapsedNanos);
+        outputLengths.record(outputLength);
+    }
+
+    /**
+     * @return
+     * the time taken to parse each document, in nanoseconds.
+     */
+    public Histogram getParseTimes() {
+        return parseTimes;
+    }
+
+    /**
+     * @return
+     * the number of nodes in each parsed document.
+     */
+    public Histogram getParsedNodeCounts() {
+        return parsedNodeCounts;
+    }
+
+    /**
+     * @return
+     * the time taken by each template fill or fragment assembly, in
+     * nanoseconds.
+     */
+    public Histogram getBuildTimes() {
+        return buildTimes;
+    }
+
+    /**
+     * @return
+     * the number of nodes added by each template fill or fragment assembly.
+     */
+    public Histogram getBuiltNodeCounts() {
+        return builtNodeCounts;
+    }
+
+    /**
+     * @return
+     * the time taken to evaluate each XPath expression, in nanoseconds.
+     */
+    public Histogram getXPathTimes() {
+        return xpathTimes;
+    }
+
+    /**
+     * @return
+     * the time taken to serialize each document or element, in nanoseconds.
+     */
+    public Histogram getSerializeTimes() {
+        return serializeTimes;
+    }
+
+    /**
+     * @return
+     * the number of characters or bytes written by each serialization.
+     */
+    public Histogram getOutputLengths() {
+        return outputLengths;
+    }
+
+    /**
+     * @return
+     * the number of XPath expressions found in the expression cache.
+     */
+    public long getXPathCacheHitCount() {
+        return xpathCacheHits.get();
+    }
+
+    /**
+     * @return
+     * the number of XPath expressions that had to be compiled.
+     */
+    public long getXPathCacheMissCount() {
+        return xpathCacheMisses.get();
+    }
+
+    /**
+     * @return
+     * the fraction of XPath expression lookups that were found in the cache,
+     * or 0 if there have been none.
+     */
+    public double getXPathCacheHitRate() {
+        long hits = xpathCacheHits.get();
+        long total = hits + xpathCacheMisses.get();
+        return (total == 0 ? 0.0 : (double) hits / total);
+    }
+
+    /**
+     * A thread-safe histogram of non-negative long values.
+     */
+    public static class Histogram {
+
+        /**
+         * Number of buckets per power of two, as a power of two.
+         */
+        private static final int SUB_BUCKET_BITS = 3;
+
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final AtomicLongArray counts =
+            new AtomicLongArray(SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS);
+
+        private final AtomicLong count = new AtomicLong();
+
+        private final AtomicLong total = new AtomicLong();
+
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * @param value
+         * the value to record, where negative values are recorded as 0.
+         */
+        public void record(long value) {
+            long v = Math.max(0, value);
+            counts.incrementAndGet(bucketIndex(v));
+            count.incrementAndGet();
+            total.addAndGet(v);
+            long currentMax;
+            while (v > (currentMax = max.get()) && !max.compareAndSet(currentMax, v)) {
+                // Retry until this value is recorded or a larger one is seen
+            }
+        }
+
+        /**
+         * @return
+         * the number of values recorded.
+         */
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * @return
+         * the sum of the values recorded.
+         */
+        public long getTotal() {
+            return total.get();
+        }
+
+        /**
+         * @return
+         * the largest value recorded, or 0 if there are none.
+         */
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * @return
+         * the mean of the values recorded, or 0 if there are none.
+         */
+        public double getMean() {
+            long n = count.get();
+            return (n == 0 ? 0.0 : (double) total.get() / n);
+        }
+
+        /**
+         * @param percentile
+         * a percentile between 0 and 100, such as 99 for the 99th percentile.
+         * @return
+         * an upper bound of the given percentile of the values recorded,
+         * within 12.5% of the exact value, or 0 if there are none.
+         *
+         * @throws IllegalArgumentException
+         * if the percentile is outside the range 0 to 100.
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException(
+                    "Percentile must be between 0 and 100: " + percentile);
+            }
+            long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Math.min(bucketUpperBound(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        private static int bucketIndex(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int shift = exponent - SUB_BUCKET_BITS;
+            int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+            return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+        }
+
+        private static long bucketUpperBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+            int subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+            long upperBound = ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+            // The highest buckets reach beyond the range of long
+            return (upperBound < 0 ? Long.MAX_VALUE : upperBound);
+        }
+    }
+
+}
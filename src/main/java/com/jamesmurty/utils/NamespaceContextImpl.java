@@ -1,15 +1,23 @@
 package com.jamesmurty.utils;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import javax.xml.XMLConstants;
 import javax.xml.namespace.NamespaceContext;
 
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
 
 /**
  * Mappings between prefix strings and namespace URI strings, as required to
@@ -21,11 +29,20 @@ public class NamespaceContextImpl implements NamespaceContext {
     protected Element element = null;
     protected Map<String, String> prefixToNsUriMap = new HashMap<String, String>();
     protected Map<String, Set<String>> nsUriToPrefixesMap = new HashMap<String, Set<String>>();
+    private volatile Bindings bindings = null;
+
+    /**
+     * Immutable bindings found in a document when this context was created.
+     */
+    private final Map<String, String> snapshotPrefixToNsUriMap;
+    private final Map<String, List<String>> snapshotNsUriToPrefixesMap;
 
     /**
      * Create an empty namespace context.
      */
     public NamespaceContextImpl() {
+        this.snapshotPrefixToNsUriMap = Collections.emptyMap();
+        this.snapshotNsUriToPrefixesMap = Collections.emptyMap();
     }
 
     /**
@@ -33,9 +50,97 @@ public class NamespaceContextImpl implements NamespaceContext {
      * information in the given element.
      */
     public NamespaceContextImpl(Element element) {
+        this();
         this.element = element;
     }
 
+    /**
+     * Create a namespace context holding a snapshot of every prefix and
+     * namespace URI binding used in the given document, found in a single
+     * scan of the document. Where a prefix is bound to different namespaces
+     * in different parts of the document, the first binding in document
+     * order is used. Later changes to the document are not reflected in
+     * the context.
+     * <p>
+     * The snapshot answers all lookups with a hash table lookup, and a
+     * context that is not changed with {@link #addNamespace(String, String)}
+     * after it is created is safe to share between threads.
+     * </p>
+     *
+     * @param document
+     * the document whose namespace bindings are captured.
+     */
+    public NamespaceContextImpl(Document document) {
+        Map<String, String> prefixToNsUri = new HashMap<String, String>();
+        prefixToNsUri.put(XMLConstants.XML_NS_PREFIX, XMLConstants.XML_NS_URI);
+        prefixToNsUri.put(XMLConstants.XMLNS_ATTRIBUTE, XMLConstants.XMLNS_ATTRIBUTE_NS_URI);
+
+        // Walk the document's elements without recursion
+        Node node = document.getDocumentElement();
+        while (node != null) {
+            if (node.getNodeType() == Node.ELEMENT_NODE) {
+                addSnapshotBinding(prefixToNsUri, node.getPrefix(), node.getNamespaceURI());
+                NamedNodeMap attributes = node.getAttributes();
+                for (int i = 0; i < attributes.getLength(); i++) {
+                    Attr attr = (Attr) attributes.item(i);
+                    if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attr.getNamespaceURI())
+                        || XMLConstants.XMLNS_ATTRIBUTE.equals(attr.getName()))
+                    {
+                        // A namespace declaration, e.g. xmlns:prefix="uri"
+                        String name = attr.getName();
+                        addSnapshotBinding(prefixToNsUri,
+                            (name.length() > 6 ? name.substring(6) : null),
+                            attr.getValue());
+                    } else if (attr.getPrefix() != null) {
+                        addSnapshotBinding(prefixToNsUri, attr.getPrefix(),
+                            attr.getNamespaceURI());
+                    }
+                }
+            }
+            Node next = (node.getNodeType() == Node.ELEMENT_NODE
+                ? node.getFirstChild() : null);
+            while (next == null && node != null) {
+                next = node.getNextSibling();
+                if (next == null) {
+                    node = node.getParentNode();
+                    if (node == null || node.getNodeType() == Node.DOCUMENT_NODE) {
+                        node = null;
+                    }
+                }
+            }
+            node = next;
+        }
+
+        Map<String, List<String>> nsUriToPrefixes = new HashMap<String, List<String>>();
+        for (Map.Entry<String, String> entry : prefixToNsUri.entrySet()) {
+            List<String> prefixes = nsUriToPrefixes.get(entry.getValue());
+            if (prefixes == null) {
+                prefixes = new ArrayList<String>(1);
+                nsUriToPrefixes.put(entry.getValue(), prefixes);
+            }
+            prefixes.add(entry.getKey());
+        }
+        for (Map.Entry<String, List<String>> entry : nsUriToPrefixes.entrySet()) {
+            Collections.sort(entry.getValue());
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+        this.snapshotPrefixToNsUriMap = Collections.unmodifiableMap(prefixToNsUri);
+        this.snapshotNsUriToPrefixesMap = Collections.unmodifiableMap(nsUriToPrefixes);
+    }
+
+    private static void addSnapshotBinding(Map<String, String> prefixToNsUri,
+        String prefix, String namespaceURI)
+    {
+        if (namespaceURI == null || namespaceURI.length() == 0) {
+            // Un-declaring a default namespace does not bind anything
+            return;
+        }
+        String key = (prefix == null ? XMLConstants.DEFAULT_NS_PREFIX : prefix);
+        if (!prefixToNsUri.containsKey(key)) {
+            prefixToNsUri.put(key, namespaceURI);
+        }
+    }
+
     /**
      * Add a custom mapping from prefix to a namespace. This mapping will
      * override any mappings present in this class's XML Element (if provided).
@@ -52,10 +157,37 @@ public class NamespaceContextImpl implements NamespaceContext {
             this.nsUriToPrefixesMap.put(namespaceURI, new HashSet<String>());
         }
         this.nsUriToPrefixesMap.get(namespaceURI).add(prefix);
+        this.bindings = null;
+    }
+
+    /**
+     * @return
+     * an immutable value of this context's custom and snapshot mappings that
+     * equals the value of any other context with the same mappings, or null
+     * if this context looks up namespaces in an element or is a subclass,
+     * which may resolve prefixes in its own way. This lets
+     * {@link XPathExpressionCache} share compiled expressions between
+     * contexts with the same mappings without holding on to the contexts
+     * themselves.
+     */
+    Object getBindings() {
+        if (this.element != null || getClass() != NamespaceContextImpl.class) {
+            return null;
+        }
+        Bindings current = this.bindings;
+        if (current == null) {
+            current = new Bindings(this.snapshotPrefixToNsUriMap,
+                new HashMap<String, String>(this.prefixToNsUriMap));
+            this.bindings = current;
+        }
+        return current;
     }
 
     public String getNamespaceURI(String prefix) {
         String namespaceURI = this.prefixToNsUriMap.get(prefix);
+        if (namespaceURI == null) {
+            namespaceURI = this.snapshotPrefixToNsUriMap.get(prefix);
+        }
         if (namespaceURI == null && this.element != null) {
             // Need null to find default namespace, not an empty string
             if (prefix != null && prefix.length() == 0) {
@@ -71,16 +203,85 @@ public class NamespaceContextImpl implements NamespaceContext {
         if (prefixes != null && prefixes.size() > 0) {
             return prefixes.iterator().next();
         }
+        List<String> snapshotPrefixes = this.snapshotNsUriToPrefixesMap.get(namespaceURI);
+        if (snapshotPrefixes != null) {
+            for (String prefix : snapshotPrefixes) {
+                // Custom mappings may have re-bound the snapshot's prefix
+                if (!this.prefixToNsUriMap.containsKey(prefix)) {
+                    return prefix;
+                }
+            }
+        }
         if (this.element != null) {
             return this.element.lookupPrefix(namespaceURI);
         }
         return null;
     }
 
-    // No implemented
-    @SuppressWarnings("unchecked")
+    /**
+     * @return
+     * all the prefixes bound to the given namespace URI by custom mappings,
+     * a document snapshot or this context's element.
+     */
+    @SuppressWarnings("rawtypes")
     public Iterator getPrefixes(String namespaceURI) {
-        return Collections.EMPTY_LIST.iterator();
+        Set<String> customPrefixes = this.nsUriToPrefixesMap.get(namespaceURI);
+        List<String> snapshotPrefixes = this.snapshotNsUriToPrefixesMap.get(namespaceURI);
+        if (this.prefixToNsUriMap.isEmpty() && this.element == null) {
+            // The common case of a pure snapshot needs no copying
+            return (snapshotPrefixes != null ? snapshotPrefixes
+                : Collections.<String>emptyList()).iterator();
+        }
+        Set<String> prefixes = new LinkedHashSet<String>();
+        if (customPrefixes != null) {
+            prefixes.addAll(customPrefixes);
+        }
+        if (snapshotPrefixes != null) {
+            for (String prefix : snapshotPrefixes) {
+                if (!this.prefixToNsUriMap.containsKey(prefix)) {
+                    prefixes.add(prefix);
+                }
+            }
+        }
+        if (this.element != null) {
+            String elementPrefix = this.element.lookupPrefix(namespaceURI);
+            if (elementPrefix != null) {
+                prefixes.add(elementPrefix);
+            }
+        }
+        return Collections.unmodifiableSet(prefixes).iterator();
+    }
+
+    private static final class Bindings {
+        private final Map<String, String> snapshotPrefixToNsUriMap;
+        private final Map<String, String> prefixToNsUriMap;
+        private final int hashCode;
+
+        private Bindings(Map<String, String> snapshotPrefixToNsUriMap,
+            Map<String, String> prefixToNsUriMap)
+        {
+            this.snapshotPrefixToNsUriMap = snapshotPrefixToNsUriMap;
+            this.prefixToNsUriMap = prefixToNsUriMap;
+            this.hashCode = snapshotPrefixToNsUriMap.hashCode() * 31
+                + prefixToNsUriMap.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Bindings)) {
+                return false;
+            }
+            Bindings other = (Bindings) obj;
+            return this.hashCode == other.hashCode
+                && this.prefixToNsUriMap.equals(other.prefixToNsUriMap)
+                && (this.snapshotPrefixToNsUriMap == other.snapshotPrefixToNsUriMap
+                    || this.snapshotPrefixToNsUriMap.equals(other.snapshotPrefixToNsUriMap));
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hashCode;
+        }
     }
 
 }
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2008-2014 James Murty (www.jamesmurty.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is available from the GitHub code repository at:
+ * https://github.com/jmurty/java-xmlbuilder
+ */
+package com.jamesmurty.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A simple location path that selects elements by their ancestry, used to
+ * pick out subtrees while streaming through a document.
+ * <p>
+ * A path is a list of element name steps, each preceded by <code>/</code> to
+ * match a child of the previous step, or by <code>//</code> to match a
+ * descendant at any depth. A path must start with <code>/</code> or
+ * <code>//</code>. A step is an element name or <code>*</code> to match any
+ * element. Steps with a prefix, such as <code>f:Item</code>, match the
+ * element's qualified name as written in the document; steps without a prefix
+ * match the element's local name in any namespace. Predicates, attributes
+ * and other XPath syntax are not supported. For example:
+ * </p>
+ * <ul>
+ * <li><code>/Feed/Item/Price</code></li>
+ * <li><code>//Price</code></li>
+ * <li><code>/Feed/*&#47;Price</code></li>
+ * <li><code>/Feed//Price</code></li>
+ * </ul>
+ */
+final class PathFilter {
+
+    private final String path;
+
+    private final String[] names;
+
+    /**
+     * Whether each step matches descendants as well as children.
+     */
+    private final boolean[] descendant;
+
+    private PathFilter(String path, String[] names, boolean[] descendant) {
+        this.path = path;
+        this.names = names;
+        this.descendant = descendant;
+    }
+
+    /**
+     * @param path
+     * a location path, as described by this class.
+     * @return
+     * a filter matching elements on the given path.
+     *
+     * @throws IllegalArgumentException
+     * if the path is not a valid location path.
+     */
+    static PathFilter compile(String path) {
+        if (path == null || !path.startsWith("/")) {
+            throw new IllegalArgumentException(
+                "Path must start with '/' or '//': " + path);
+        }
+        List<String> names = new ArrayList<String>();
+        List<Boolean> descendant = new ArrayList<Boolean>();
+        int position = 0;
+        while (position < path.length()) {
+            boolean isDescendant = path.startsWith("//", position);
+            position += (isDescendant ? 2 : 1);
+            int end = path.indexOf('/', position);
+            if (end < 0) {
+                end = path.length();
+            }
+            String name = path.substring(position, end);
+            if (name.length() == 0 || !isSimpleName(name)) {
+                throw new IllegalArgumentException(
+                    "Invalid step '" + name + "' in path: " + path);
+            }
+            names.add(name);
+            descendant.add(isDescendant);
+            position = end;
+        }
+        boolean[] descendantSteps = new boolean[descendant.size()];
+        for (int i = 0; i < descendantSteps.length; i++) {
+            descendantSteps[i] = descendant.get(i);
+        }
+        return new PathFilter(path,
+            names.toArray(new String[names.size()]), descendantSteps);
+    }
+
+    /**
+     * @param localNames
+     * the local names of an element and its ancestors, outermost first.
+     * @param qualifiedNames
+     * the qualified names of the same elements.
+     * @param depth
+     * the number of names in each array that apply.
+     * @return
+     * true if this path matches the innermost element.
+     */
+    boolean matches(String[] localNames, String[] qualifiedNames, int depth) {
+        return matches(0, 0, localNames, qualifiedNames, depth);
+    }
+
+    private boolean matches(int step, int level, String[] localNames,
+        String[] qualifiedNames, int depth)
+    {
+        if (step == this.names.length) {
+            return level == depth;
+        }
+        int lastLevel = (this.descendant[step] ? depth - 1 : level);
+        for (int i = level; i <= lastLevel && i < depth; i++) {
+            if (matchesName(this.names[step], localNames[i], qualifiedNames[i])
+                && matches(step + 1, i + 1, localNames, qualifiedNames, depth))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matchesName(String name, String localName,
+        String qualifiedName)
+    {
+        if ("*".equals(name)) {
+            return true;
+        }
+        return (name.indexOf(':') >= 0
+            ? name.equals(qualifiedName) : name.equals(localName));
+    }
+
+    private static boolean isSimpleName(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            switch (name.charAt(i)) {
+            case '[': case ']': case '@': case '(': case ')': case '=':
+            case ' ': case '\'': case '"':
+                return false;
+            default:
+                break;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return this.path;
+    }
+
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2008-2014 James Murty (www.jamesmurty.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is available from the GitHub code repository at:
+ * https://github.com/jmurty/java-xmlbuilder
+ */
+package com.jamesmurty.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.stream.StreamSource;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.Text;
+import org.xml.sax.InputSource;
+
+/**
+ * Streams through an XML document with a StAX reader, building a small DOM
+ * Document for each element matching one of a set of {@link PathFilter}s and
+ * skipping everything else. Only the names and namespace declarations of the
+ * current element's ancestors are kept between matches, so memory use
+ * depends on the size of each match rather than the size of the input.
+ * <p>
+ * Matches do not nest: once an element matches, its whole subtree belongs to
+ * that match and is not searched for further matches.
+ * </p>
+ */
+class SubtreeReader implements Closeable {
+
+    private final XMLStreamReader reader;
+
+    private final DocumentBuilderPool documentBuilderPool;
+
+    private final boolean namespaceAware;
+
+    private final PathFilter[] filters;
+
+    private String[] localNames = new String[16];
+
+    private String[] qualifiedNames = new String[16];
+
+    private int depth = 0;
+
+    /**
+     * Prefix and URI pairs of the namespaces declared by the current element
+     * and its ancestors.
+     */
+    private final List<String> namespaceDeclarations = new ArrayList<String>();
+
+    /**
+     * The size of the namespace declaration list before each open element's
+     * declarations were added.
+     */
+    private int[] namespaceMarks = new int[16];
+
+    SubtreeReader(InputSource inputSource, DocumentBuilderPool documentBuilderPool,
+        String... paths) throws XMLStreamException
+    {
+        if (paths.length == 0) {
+            throw new IllegalArgumentException("At least one path is required");
+        }
+        this.filters = new PathFilter[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            this.filters[i] = PathFilter.compile(paths[i]);
+        }
+        this.documentBuilderPool = documentBuilderPool;
+        this.namespaceAware = documentBuilderPool.isNamespaceAware();
+        this.reader = createStreamReader(inputSource,
+            documentBuilderPool.getXMLInputFactory());
+    }
+
+    /**
+     * Read up to and including the next matching element.
+     *
+     * @return
+     * the next matching element, as the root element of a new document, or
+     * null if there are no more matches.
+     *
+     * @throws XMLStreamException
+     * @throws ParserConfigurationException
+     */
+    Element next() throws XMLStreamException, ParserConfigurationException {
+        while (this.reader.hasNext()) {
+            int event = this.reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                pushElement();
+                if (isMatch()) {
+                    Element match = readSubtree();
+                    popElement();
+                    return match;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                popElement();
+            } else if (event == XMLStreamConstants.DTD
+                && this.documentBuilderPool.isDoctypeDisallowed())
+            {
+                throw new XMLStreamException(
+                    "Document type declarations are not allowed by the parser settings",
+                    this.reader.getLocation());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Close the StAX reader. The underlying input is not closed.
+     */
+    public void close() throws IOException {
+        try {
+            this.reader.close();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private boolean isMatch() {
+        for (PathFilter filter : this.filters) {
+            if (filter.matches(this.localNames, this.qualifiedNames, this.depth)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void pushElement() {
+        if (this.depth == this.localNames.length) {
+            int length = this.depth * 2;
+            this.localNames = Arrays.copyOf(this.localNames, length);
+            this.qualifiedNames = Arrays.copyOf(this.qualifiedNames, length);
+            this.namespaceMarks = Arrays.copyOf(this.namespaceMarks, length);
+        }
+        this.localNames[this.depth] = this.reader.getLocalName();
+        this.qualifiedNames[this.depth] = qualifiedName(
+            this.reader.getPrefix(), this.reader.getLocalName());
+        this.namespaceMarks[this.depth] = this.namespaceDeclarations.size();
+        if (this.namespaceAware) {
+            for (int i = 0; i < this.reader.getNamespaceCount(); i++) {
+                this.namespaceDeclarations.add(this.reader.getNamespacePrefix(i));
+                this.namespaceDeclarations.add(this.reader.getNamespaceURI(i));
+            }
+        }
+        this.depth++;
+    }
+
+    private void popElement() {
+        this.depth--;
+        int mark = this.namespaceMarks[this.depth];
+        this.namespaceDeclarations.subList(
+            mark, this.namespaceDeclarations.size()).clear();
+        this.localNames[this.depth] = null;
+        this.qualifiedNames[this.depth] = null;
+    }
+
+    /**
+     * Build a document from the current start element up to its end element.
+     * The new root element declares every namespace in scope at that point.
+     */
+    private Element readSubtree()
+        throws XMLStreamException, ParserConfigurationException
+    {
+        Document document = this.documentBuilderPool.newDocument();
+        Element root = createElement(document);
+        Map<String, String> inScope = new LinkedHashMap<String, String>();
+        for (int i = 0; i < this.namespaceDeclarations.size(); i += 2) {
+            String prefix = this.namespaceDeclarations.get(i);
+            inScope.put((prefix == null ? "" : prefix),
+                this.namespaceDeclarations.get(i + 1));
+        }
+        for (Map.Entry<String, String> entry : inScope.entrySet()) {
+            declareNamespace(root, entry.getKey(), entry.getValue());
+        }
+        document.appendChild(root);
+
+        Node current = root;
+        int level = 1;
+        while (level > 0) {
+            switch (this.reader.next()) {
+            case XMLStreamConstants.START_ELEMENT:
+                Element element = createElement(document);
+                for (int i = 0; this.namespaceAware
+                    && i < this.reader.getNamespaceCount(); i++)
+                {
+                    declareNamespace(element, this.reader.getNamespacePrefix(i),
+                        this.reader.getNamespaceURI(i));
+                }
+                current.appendChild(element);
+                current = element;
+                level++;
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                current = current.getParentNode();
+                level--;
+                break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.SPACE:
+                // Parsers may report a single run of text in several parts
+                Node last = current.getLastChild();
+                if (last != null && last.getNodeType() == Node.TEXT_NODE) {
+                    ((Text) last).appendData(this.reader.getText());
+                } else {
+                    current.appendChild(document.createTextNode(this.reader.getText()));
+                }
+                break;
+            case XMLStreamConstants.CDATA:
+                current.appendChild(document.createCDATASection(this.reader.getText()));
+                break;
+            case XMLStreamConstants.COMMENT:
+                current.appendChild(document.createComment(this.reader.getText()));
+                break;
+            case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                current.appendChild(document.createProcessingInstruction(
+                    this.reader.getPITarget(), this.reader.getPIData()));
+                break;
+            case XMLStreamConstants.ENTITY_REFERENCE:
+                current.appendChild(
+                    document.createEntityReference(this.reader.getLocalName()));
+                break;
+            default:
+                break;
+            }
+        }
+        return root;
+    }
+
+    /**
+     * @return
+     * a new element with the name and attributes of the current start element.
+     */
+    private Element createElement(Document document) {
+        Element element;
+        if (this.namespaceAware) {
+            element = document.createElementNS(
+                emptyToNull(this.reader.getNamespaceURI()),
+                qualifiedName(this.reader.getPrefix(), this.reader.getLocalName()));
+            for (int i = 0; i < this.reader.getAttributeCount(); i++) {
+                element.setAttributeNS(
+                    emptyToNull(this.reader.getAttributeNamespace(i)),
+                    qualifiedName(this.reader.getAttributePrefix(i),
+                        this.reader.getAttributeLocalName(i)),
+                    this.reader.getAttributeValue(i));
+            }
+        } else {
+            element = document.createElement(this.reader.getLocalName());
+            for (int i = 0; i < this.reader.getAttributeCount(); i++) {
+                element.setAttribute(
+                    qualifiedName(this.reader.getAttributePrefix(i),
+                        this.reader.getAttributeLocalName(i)),
+                    this.reader.getAttributeValue(i));
+            }
+        }
+        return element;
+    }
+
+    private static void declareNamespace(Element element, String prefix, String uri) {
+        element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+            (prefix == null || prefix.length() == 0
+                ? XMLConstants.XMLNS_ATTRIBUTE
+                : XMLConstants.XMLNS_ATTRIBUTE + ":" + prefix),
+            (uri == null ? "" : uri));
+    }
+
+    private static String qualifiedName(String prefix, String localName) {
+        return (prefix == null || prefix.length() == 0
+            ? localName : prefix + ":" + localName);
+    }
+
+    private static String emptyToNull(String value) {
+        return (value == null || value.length() == 0 ? null : value);
+    }
+
+    private static XMLStreamReader createStreamReader(InputSource inputSource,
+        XMLInputFactory factory) throws XMLStreamException
+    {
+        if (inputSource.getCharacterStream() == null
+            && inputSource.getByteStream() != null
+            && inputSource.getEncoding() != null)
+        {
+            return factory.createXMLStreamReader(
+                inputSource.getByteStream(), inputSource.getEncoding());
+        }
+        StreamSource source = new StreamSource(inputSource.getSystemId());
+        source.setReader(inputSource.getCharacterStream());
+        source.setInputStream(inputSource.getByteStream());
+        return factory.createXMLStreamReader(source);
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2008-2014 James Murty (www.jamesmurty.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is available from the GitHub code repository at:
+ * https://github.com/jmurty/java-xmlbuilder
+ */
+package com.jamesmurty.utils;
+
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Node;
+
+/**
+ * An {@link XMLSerializer} that uses an identity {@link Transformer} to
+ * serialize nodes, while avoiding the cost of creating a new
+ * {@link TransformerFactory} and Transformer for every document.
+ * <p>
+ * The TransformerFactory is created once per serializer. Each thread keeps a
+ * small cache of Transformers keyed by their output properties, so
+ * serializing repeatedly with the same settings reuses an already-configured
+ * Transformer.
+ * </p>
+ */
+public class TransformerSerializer implements XMLSerializer {
+
+    /**
+     * Maximum number of distinct output property sets for which each thread
+     * keeps a configured Transformer.
+     */
+    protected static final int MAX_TRANSFORMERS_PER_THREAD = 16;
+
+    private final TransformerFactory factory;
+
+    private final ThreadLocal<Map<Map<String, String>, Transformer>> threadTransformers =
+        new ThreadLocal<Map<Map<String, String>, Transformer>>() {
+            @Override
+            protected Map<Map<String, String>, Transformer> initialValue() {
+                return new LinkedHashMap<Map<String, String>, Transformer>(
+                    MAX_TRANSFORMERS_PER_THREAD, 0.75f, true)
+                {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected boolean removeEldestEntry(
+                        Entry<Map<String, String>, Transformer> eldest)
+                    {
+                        return size() > MAX_TRANSFORMERS_PER_THREAD;
+                    }
+                };
+            }
+        };
+
+    /**
+     * Create a serializer using the platform's default {@link TransformerFactory}.
+     */
+    public TransformerSerializer() {
+        this(TransformerFactory.newInstance());
+    }
+
+    /**
+     * Create a serializer using the given factory, which must not be
+     * modified after it is passed to this constructor.
+     *
+     * @param factory
+     * the factory used to create identity Transformers.
+     */
+    public TransformerSerializer(TransformerFactory factory) {
+        this.factory = factory;
+    }
+
+    public void serialize(Node node, Writer writer, Properties outputProperties)
+        throws TransformerException
+    {
+        transform(node, new StreamResult(writer), outputProperties);
+    }
+
+    /**
+     * Serialize a node straight to an output stream, leaving the Transformer
+     * to encode the output.
+     */
+    public void serialize(Node node, OutputStream outputStream,
+        Properties outputProperties) throws TransformerException
+    {
+        transform(node, new StreamResult(outputStream), outputProperties);
+    }
+
+    private void transform(Node node, StreamResult result, Properties outputProperties)
+        throws TransformerException
+    {
+        Map<String, String> settings = toSettings(outputProperties);
+        Map<Map<String, String>, Transformer> transformers = threadTransformers.get();
+
+        // Take the transformer out of the cache while it is in use, so a
+        // failed transform never leaves a transformer in a bad state cached.
+        Transformer serializer = transformers.remove(settings);
+        if (serializer == null) {
+            serializer = newTransformer(settings);
+        }
+        serializer.transform(new DOMSource(node), result);
+        transformers.put(settings, serializer);
+    }
+
+    /**
+     * @return
+     * a new identity Transformer with the given output settings applied.
+     */
+    protected Transformer newTransformer(Map<String, String> settings)
+        throws TransformerConfigurationException
+    {
+        Transformer serializer;
+        // TransformerFactory is not guaranteed to be thread-safe
+        synchronized (this.factory) {
+            serializer = this.factory.newTransformer();
+        }
+        for (Entry<String, String> entry : settings.entrySet()) {
+            serializer.setOutputProperty(entry.getKey(), entry.getValue());
+        }
+        return serializer;
+    }
+
+    /**
+     * @return
+     * an immutable copy of the output properties suitable for use as a
+     * cache key.
+     */
+    protected static Map<String, String> toSettings(Properties outputProperties) {
+        if (outputProperties == null || outputProperties.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> settings = new HashMap<String, String>();
+        Iterator<Entry<Object, Object>> iter = outputProperties.entrySet().iterator();
+        while (iter.hasNext()) {
+            Entry<Object, Object> entry = iter.next();
+            settings.put((String) entry.getKey(), (String) entry.getValue());
+        }
+        return Collections.unmodifiableMap(settings);
+    }
+
+}
@@ -19,15 +19,29 @@
  */
 package com.jamesmurty.utils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.Writer;
-import java.util.Iterator;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
 
 import javax.xml.namespace.NamespaceContext;
 import javax.xml.namespace.QName;
@@ -35,19 +49,17 @@ import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.FactoryConfigurationError;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 
 import net.iharder.Base64;
 
+import org.w3c.dom.DOMException;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -74,7 +86,14 @@ import org.xml.sax.SAXException;
  * In essence, this class performs dual roles: it represents a specific XML
  * node, and also allows manipulation of the entire underlying XML document.
  * The platform's default {@link DocumentBuilderFactory} and
- * {@link DocumentBuilder} classes are used to build the document.
+ * {@link DocumentBuilder} classes are used to build the document, unless a
+ * different {@link DocumentBuilderPool} is provided with
+ * {@link #setDocumentBuilderPool(DocumentBuilderPool)}.
+ * </p>
+ * <p>
+ * To configure builders independently of these shared defaults, for instance
+ * when many threads build documents at once, create and parse documents with
+ * an {@link XMLBuilderContext}.
  * </p>
  *
  * @author James Murty
@@ -95,7 +114,31 @@ public class XMLBuilder {
      */
     private Node xmlNode = null;
 
-    private static boolean isNamespaceAware = true; // TODO: Make this configurable?
+    /**
+     * The context used by this builder node, or null if the node uses the
+     * shared default context.
+     */
+    private XMLBuilderContext context = null;
+
+    /**
+     * The element whose children this builder node last checked for text,
+     * and the last of those children, so repeated checks of the same element
+     * only examine children added since.
+     */
+    private Node checkedElement = null;
+    private Node checkedChild = null;
+
+    /**
+     * Shared default context used by builders created without a context,
+     * created on first use.
+     */
+    private static volatile XMLBuilderContext defaultContext = null;
+
+    /**
+     * Files of this size in bytes or larger are memory-mapped by
+     * {@link #parse(Path)}.
+     */
+    public static final long MEMORY_MAPPED_PARSE_THRESHOLD = 4L * 1024 * 1024;
 
     /**
      * Construct a new builder object that wraps the given XML document.
@@ -122,6 +165,26 @@ public class XMLBuilder {
      * parentNode node.
      */
     protected XMLBuilder(Node myNode, Node parentNode) {
+        this(myNode, parentNode, null);
+    }
+
+    /**
+     * Construct a new builder object that wraps the given XML document and
+     * node, and uses the given context.
+     * This constructor is for internal use only.
+     *
+     * @param myNode
+     * the XML node that this builder node will wrap. This node may
+     * be part of the XML document, or it may be a new element that is to be
+     * added to the document.
+     * @param parentNode
+     * If not null, the given myElement will be appended as child node of the
+     * parentNode node.
+     * @param context
+     * the context used by the builder, or null to use the default context.
+     */
+    protected XMLBuilder(Node myNode, Node parentNode, XMLBuilderContext context) {
+        this.context = context;
         this.xmlNode = myNode;
         if (myNode instanceof Document) {
             this.xmlDocument = (Document) myNode;
@@ -133,6 +196,173 @@ public class XMLBuilder {
         }
     }
 
+    /**
+     * @return
+     * the context used by builders created without a context of their own.
+     * Unless a context has been set with
+     * {@link #setDefaultContext(XMLBuilderContext)} or one of the other
+     * static setters, a context with default components is created on first
+     * use.
+     *
+     * @throws FactoryConfigurationError
+     */
+    public static XMLBuilderContext getDefaultContext()
+        throws FactoryConfigurationError
+    {
+        XMLBuilderContext result = defaultContext;
+        if (result == null) {
+            synchronized (XMLBuilder.class) {
+                result = defaultContext;
+                if (result == null) {
+                    result = XMLBuilderContext.newInstance();
+                    defaultContext = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Use the given context for all builders created without a context of
+     * their own, including builders created before this method is called.
+     *
+     * @param context
+     * the context to use, or null to revert to a context with default
+     * components.
+     */
+    public static void setDefaultContext(XMLBuilderContext context) {
+        defaultContext = context;
+    }
+
+    /**
+     * Use the given pool of DocumentBuilders for all subsequent calls to the
+     * <code>create</code> and <code>parse</code> methods. Provide a pool
+     * built from a specific {@link DocumentBuilderFactory} implementation to
+     * avoid the JAXP factory lookup, or to customize parser settings.
+     * This replaces the pool in the default context.
+     *
+     * @param pool
+     * the pool of DocumentBuilders to use, or null to revert to a pool
+     * built from the platform's default factory.
+     */
+    public static void setDocumentBuilderPool(DocumentBuilderPool pool) {
+        synchronized (XMLBuilder.class) {
+            defaultContext = getDefaultContext().withDocumentBuilderPool(pool);
+        }
+    }
+
+    /**
+     * @return
+     * the pool of DocumentBuilders used by the <code>create</code> and
+     * <code>parse</code> methods. Unless a pool has been set with
+     * {@link #setDocumentBuilderPool(DocumentBuilderPool)}, a pool built
+     * from the platform's default factory is created on first use.
+     *
+     * @throws FactoryConfigurationError
+     */
+    public static DocumentBuilderPool getDocumentBuilderPool()
+        throws FactoryConfigurationError
+    {
+        return getDefaultContext().getDocumentBuilderPool();
+    }
+
+    /**
+     * Use the given serializer for all subsequent output by the
+     * <code>toWriter</code>, <code>asString</code> and
+     * <code>elementAsString</code> methods.
+     * This replaces the serializer in the default context.
+     *
+     * @param serializer
+     * the serializer to use, or null to revert to the default
+     * {@link TransformerSerializer}.
+     */
+    public static void setSerializer(XMLSerializer serializer) {
+        synchronized (XMLBuilder.class) {
+            defaultContext = getDefaultContext().withSerializer(serializer);
+        }
+    }
+
+    /**
+     * @return
+     * the serializer used by the <code>toWriter</code>, <code>asString</code>
+     * and <code>elementAsString</code> methods. Unless a serializer has been
+     * set with {@link #setSerializer(XMLSerializer)}, a
+     * {@link TransformerSerializer} using the platform's default
+     * {@link TransformerFactory} is created on first use.
+     */
+    public static XMLSerializer getSerializer() {
+        return getDefaultContext().getSerializer();
+    }
+
+    /**
+     * Use the given cache of compiled XPath expressions for all subsequent
+     * calls to the <code>xpathQuery</code> and <code>xpathFind</code> methods.
+     * This replaces the cache in the default context.
+     *
+     * @param cache
+     * the cache to use, or null to revert to a default-sized
+     * {@link XPathExpressionCache}.
+     */
+    public static void setXPathExpressionCache(XPathExpressionCache cache) {
+        synchronized (XMLBuilder.class) {
+            defaultContext = getDefaultContext().withXPathExpressionCache(cache);
+        }
+    }
+
+    /**
+     * @return
+     * the cache of compiled XPath expressions used by the XPath methods.
+     * Unless a cache has been set with
+     * {@link #setXPathExpressionCache(XPathExpressionCache)}, a cache of the
+     * default size is created on first use.
+     */
+    public static XPathExpressionCache getXPathExpressionCache() {
+        return getDefaultContext().getXPathExpressionCache();
+    }
+
+    /**
+     * Tell the given listener about the parsing, building, XPath queries and
+     * output of all builders that use the default context.
+     * This replaces the listener in the default context.
+     *
+     * @param listener
+     * the listener to use, or null to stop reporting measurements.
+     */
+    public static void setMetricsListener(XMLMetricsListener listener) {
+        synchronized (XMLBuilder.class) {
+            defaultContext = getDefaultContext().withMetricsListener(listener);
+        }
+    }
+
+    /**
+     * @return
+     * the listener told about the work of builders that use the default
+     * context, which is {@link XMLMetricsListener#NONE} unless one has been
+     * set with {@link #setMetricsListener(XMLMetricsListener)}.
+     */
+    public static XMLMetricsListener getMetricsListener() {
+        return getDefaultContext().getMetricsListener();
+    }
+
+    /**
+     * @return
+     * a new cursor positioned at this builder's node, which can build and
+     * navigate the document in place without creating a builder node for
+     * every step.
+     */
+    public XMLCursor cursor() {
+        return new XMLCursor(this);
+    }
+
+    /**
+     * @return
+     * the context used by this builder node: the context its document was
+     * created or parsed with, or else the current default context.
+     */
+    public XMLBuilderContext getContext() {
+        return (this.context != null ? this.context : getDefaultContext());
+    }
+
     /**
      * Construct a builder for new XML document with a default namespace.
      * The document will be created with the given root element, and the builder
@@ -152,11 +382,34 @@ public class XMLBuilder {
     public static XMLBuilder create(String name, String namespaceURI)
         throws ParserConfigurationException, FactoryConfigurationError
     {
-        // Init DOM builder and Document.
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        factory.setNamespaceAware(isNamespaceAware);
-        DocumentBuilder builder = factory.newDocumentBuilder();
-        Document document = builder.newDocument();
+        return create(name, namespaceURI, null);
+    }
+
+    /**
+     * Construct a builder for new XML document with a default namespace.
+     * The document will be created with the given root element, and the builder
+     * returned by this method will serve as the starting-point for any further
+     * document additions.
+     *
+     * @param name
+     * the name of the document's root element.
+     * @param namespaceURI
+     * default namespace URI for document, ignored if null or empty.
+     * @param context
+     * the context used to create the document and by all builder nodes of the
+     * document, or null to use the default context.
+     * @return
+     * a builder node that can be used to add more nodes to the XML document.
+     *
+     * @throws FactoryConfigurationError
+     * @throws ParserConfigurationException
+     */
+    public static XMLBuilder create(String name, String namespaceURI, XMLBuilderContext context)
+        throws ParserConfigurationException, FactoryConfigurationError
+    {
+        XMLBuilderContext documentContext =
+            (context != null ? context : getDefaultContext());
+        Document document = documentContext.getDocumentBuilderPool().newDocument();
         Element rootElement = null;
         if (namespaceURI != null && namespaceURI.length() > 0) {
             rootElement = document.createElementNS(namespaceURI, name);
@@ -164,7 +417,7 @@ public class XMLBuilder {
             rootElement = document.createElement(name);
         }
         document.appendChild(rootElement);
-        return new XMLBuilder(document);
+        return new XMLBuilder(document.getDocumentElement(), null, context);
     }
 
     /**
@@ -183,7 +436,7 @@ public class XMLBuilder {
     public static XMLBuilder create(String name)
         throws ParserConfigurationException, FactoryConfigurationError
     {
-        return create(name, null);
+        return create(name, null, null);
     }
 
     /**
@@ -205,11 +458,50 @@ public class XMLBuilder {
     public static XMLBuilder parse(InputSource inputSource)
     	throws ParserConfigurationException, SAXException, IOException
     {
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        factory.setNamespaceAware(isNamespaceAware);
-        DocumentBuilder builder = factory.newDocumentBuilder();
-        Document document = builder.parse(inputSource);
-        return new XMLBuilder(document);
+        return parse(inputSource, null);
+    }
+
+    /**
+     * Construct a builder from an existing XML document. The provided XML
+     * document will be parsed and an XMLBuilder object referencing the
+     * document's root element will be returned.
+     *
+     * @param inputSource
+     * an XML document input source that will be parsed into a DOM.
+     * @param context
+     * the context used to parse the document and by all builder nodes of the
+     * document, or null to use the default context.
+     * @param options
+     * options that filter out nodes while the document is parsed, see
+     * {@link XMLParseOption}.
+     * @return
+     * a builder node that can be used to add more nodes to the XML document.
+     * @throws ParserConfigurationException
+     *
+     * @throws FactoryConfigurationError
+     * @throws ParserConfigurationException
+     * @throws IOException
+     * @throws SAXException
+     */
+    public static XMLBuilder parse(InputSource inputSource, XMLBuilderContext context,
+        XMLParseOption... options)
+    	throws ParserConfigurationException, SAXException, IOException
+    {
+        XMLBuilderContext documentContext =
+            (context != null ? context : getDefaultContext());
+        XMLMetricsListener listener = documentContext.getMetricsListener();
+        long startNanos = (listener != XMLMetricsListener.NONE ? System.nanoTime() : 0);
+        XMLBuilderEvents.Parse event = XMLBuilderEvents.beginParse();
+        Document document = documentContext.getDocumentBuilderPool().parse(
+            inputSource, options);
+        if (listener != XMLMetricsListener.NONE) {
+            // Leave out the document node itself
+            listener.documentParsed(System.nanoTime() - startNanos, countNodes(document) - 1);
+        }
+        if (event != null) {
+            event.finish(document);
+        }
+        return new XMLBuilder(document.getDocumentElement(), null, context);
     }
 
     /**
@@ -231,7 +523,37 @@ public class XMLBuilder {
     public static XMLBuilder parse(String xmlString)
         throws ParserConfigurationException, SAXException, IOException
     {
-        return XMLBuilder.parse(new InputSource(new StringReader(xmlString)));
+        return parse(xmlString, null);
+    }
+
+    /**
+     * Construct a builder from an existing XML document string.
+     * The provided XML document will be parsed and an XMLBuilder
+     * object referencing the document's root element will be returned.
+     *
+     * @param xmlString
+     * an XML document string that will be parsed into a DOM.
+     * @param context
+     * the context used to parse the document and by all builder nodes of the
+     * document, or null to use the default context.
+     * @param options
+     * options that filter out nodes while the document is parsed, see
+     * {@link XMLParseOption}.
+     * @return
+     * a builder node that can be used to add more nodes to the XML document.
+     *
+     * @throws ParserConfigurationException
+     * @throws FactoryConfigurationError
+     * @throws ParserConfigurationException
+     * @throws IOException
+     * @throws SAXException
+     */
+    public static XMLBuilder parse(String xmlString, XMLBuilderContext context,
+        XMLParseOption... options)
+        throws ParserConfigurationException, SAXException, IOException
+    {
+        return XMLBuilder.parse(
+            new InputSource(new StringReader(xmlString)), context, options);
     }
 
     /**
@@ -253,7 +575,289 @@ public class XMLBuilder {
     public static XMLBuilder parse(File xmlFile)
         throws ParserConfigurationException, SAXException, IOException
     {
-        return XMLBuilder.parse(new InputSource(new FileReader(xmlFile)));
+        return parse(xmlFile, null);
+    }
+
+    /**
+     * Construct a builder from an existing XML document file.
+     * The provided XML document will be parsed and an XMLBuilder
+     * object referencing the document's root element will be returned.
+     *
+     * @param xmlFile
+     * an XML document file that will be parsed into a DOM.
+     * @param context
+     * the context used to parse the document and by all builder nodes of the
+     * document, or null to use the default context.
+     * @param options
+     * options that filter out nodes while the document is parsed, see
+     * {@link XMLParseOption}.
+     * @return
+     * a builder node that can be used to add more nodes to the XML document.
+     *
+     * @throws ParserConfigurationException
+     * @throws FactoryConfigurationError
+     * @throws ParserConfigurationException
+     * @throws IOException
+     * @throws SAXException
+     */
+    public static XMLBuilder parse(File xmlFile, XMLBuilderContext context,
+        XMLParseOption... options)
+        throws ParserConfigurationException, SAXException, IOException
+    {
+        return XMLBuilder.parse(xmlFile.toPath(), context, options);
+    }
+
+    /**
+     * Construct a builder from an existing XML document file.
+     * The provided XML document will be parsed and an XMLBuilder
+     * object referencing the document's root element will be returned.
+     * <p>
+     * The file's bytes are passed straight to the parser, which detects the
+     * document's encoding from its XML declaration. Files of at least
+     * {@link #MEMORY_MAPPED_PARSE_THRESHOLD} bytes are read through read-only
+     * memory mappings, smaller files through a reusable direct buffer. The
+     * file is closed before this method returns, although the operating
+     * system may release memory mappings only once they are garbage collected.
+     * </p>
+     *
+     * @param xmlPath
+     * the path of an XML document file that will be parsed into a DOM.
+     * @return
+     * a builder node that can be used to add more nodes to the XML document.
+     *
+     * @throws ParserConfigurationException
+     * @throws FactoryConfigurationError
+     * @throws IOException
+     * @throws SAXException
+     */
+    public static XMLBuilder parse(Path xmlPath)
+        throws ParserConfigurationException, SAXException, IOException
+    {
+        return parse(xmlPath, null);
+    }
+
+    /**
+     * Construct a builder from an existing XML document file.
+     * The provided XML document will be parsed and an XMLBuilder
+     * object referencing the document's root element will be returned.
+     * <p>
+     * The file's bytes are passed straight to the parser, which detects the
+     * document's encoding from its XML declaration. Files of at least
+     * {@link #MEMORY_MAPPED_PARSE_THRESHOLD} bytes are read through read-only
+     * memory mappings, smaller files through a reusable direct buffer. The
+     * file is closed before this method returns, although the operating
+     * system may release memory mappings only once they are garbage collected.
+     * </p>
+     *
+     * @param xmlPath
+     * the path of an XML document file that will be parsed into a DOM.
+     * @param context
+     * the context used to parse the document and by all builder nodes of the
+     * document, or null to use the default context.
+     * @param options
+     * options that filter out nodes while the document is parsed, see
+     * {@link XMLParseOption}.
+     * @return
+     * a builder node that can be used to add more nodes to the XML document.
+     *
+     * @throws ParserConfigurationException
+     * @throws FactoryConfigurationError
+     * @throws IOException
+     * @throws SAXException
+     */
+    public static XMLBuilder parse(Path xmlPath, XMLBuilderContext context,
+        XMLParseOption... options)
+        throws ParserConfigurationException, SAXException, IOException
+    {
+        FileChannel channel = FileChannel.open(xmlPath, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            ChannelInputStream inputStream = (size >= MEMORY_MAPPED_PARSE_THRESHOLD
+                ? ChannelInputStream.mapped(channel, size)
+                : ChannelInputStream.buffered(channel));
+            try {
+                InputSource inputSource = new InputSource(inputStream);
+                // Lets the parser resolve relative references in the document
+                inputSource.setSystemId(xmlPath.toUri().toString());
+                return XMLBuilder.parse(inputSource, context, options);
+            } finally {
+                inputStream.close();
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Construct a builder from an XML document read from a channel.
+     * The provided XML document will be parsed and an XMLBuilder
+     * object referencing the document's root element will be returned.
+     * <p>
+     * The channel's bytes are passed straight to the parser, which detects the
+     * document's encoding from its XML declaration. The channel is read
+     * until end-of-stream but is not closed.
+     * </p>
+     *
+     * @param xmlChannel
+     * a blocking channel providing an XML document that will be parsed into
+     * a DOM.
+     * @return
+     * a builder node that can be used to add more nodes to the XML document.
+     *
+     * @throws ParserConfigurationException
+     * @throws FactoryConfigurationError
+     * @throws IOException
+     * @throws SAXException
+     */
+    public static XMLBuilder parse(ReadableByteChannel xmlChannel)
+        throws ParserConfigurationException, SAXException, IOException
+    {
+        return parse(xmlChannel, null);
+    }
+
+    /**
+     * Construct a builder from an XML document read from a channel.
+     * The provided XML document will be parsed and an XMLBuilder
+     * object referencing the document's root element will be returned.
+     * <p>
+     * The channel's bytes are passed straight to the parser, which detects the
+     * document's encoding from its XML declaration. The channel is read
+     * until end-of-stream but is not closed.
+     * </p>
+     *
+     * @param xmlChannel
+     * a blocking channel providing an XML document that will be parsed into
+     * a DOM.
+     * @param context
+     * the context used to parse the document and by all builder nodes of the
+     * document, or null to use the default context.
+     * @param options
+     * options that filter out nodes while the document is parsed, see
+     * {@link XMLParseOption}.
+     * @return
+     * a builder node that can be used to add more nodes to the XML document.
+     *
+     * @throws ParserConfigurationException
+     * @throws FactoryConfigurationError
+     * @throws IOException
+     * @throws SAXException
+     */
+    public static XMLBuilder parse(ReadableByteChannel xmlChannel, XMLBuilderContext context,
+        XMLParseOption... options)
+        throws ParserConfigurationException, SAXException, IOException
+    {
+        ChannelInputStream inputStream = ChannelInputStream.buffered(xmlChannel);
+        try {
+            return XMLBuilder.parse(new InputSource(inputStream), context, options);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Stream through an XML document and build DOM documents only for the
+     * elements matching one or more simple location paths, skipping the rest
+     * of the document. Each matching element is returned as the root element
+     * of its own document, which declares all the namespaces in scope where
+     * the element appeared. Memory use depends on the size of the matching
+     * elements, not the size of the input, so this method can pick a few
+     * subtrees out of documents far too large to parse whole.
+     * <p>
+     * Paths start with <code>/</code> or <code>//</code> and are made of
+     * element name steps, each a child (<code>/</code>) or descendant
+     * (<code>//</code>) of the previous step, such as
+     * <code>/Feed/Item/Price</code> or <code>//Price</code>. The step
+     * <code>*</code> matches any element. Steps without a prefix match
+     * elements by local name in any namespace, and steps with a prefix match
+     * the qualified name used in the document. Predicates and other XPath
+     * syntax are not supported. Once an element matches, its descendants are
+     * not searched for further matches.
+     * </p>
+     *
+     * @param inputSource
+     * an XML document input source, which is read to the end but not closed.
+     * @param context
+     * the context used to create the documents and by all builder nodes of
+     * the documents, or null to use the default context.
+     * @param paths
+     * location paths of the elements to return.
+     * @return
+     * a builder for each matching element, in document order.
+     *
+     * @throws IllegalArgumentException
+     * if no paths are given, or a path is not valid.
+     * @throws XMLStreamException
+     * if the document cannot be read or is not well-formed.
+     * @throws ParserConfigurationException
+     */
+    public static List<XMLBuilder> parseMatching(InputSource inputSource,
+        XMLBuilderContext context, String... paths)
+        throws XMLStreamException, ParserConfigurationException
+    {
+        XMLBuilderContext documentContext =
+            (context != null ? context : getDefaultContext());
+        SubtreeReader reader = new SubtreeReader(
+            inputSource, documentContext.getDocumentBuilderPool(), paths);
+        List<XMLBuilder> matches = new ArrayList<XMLBuilder>();
+        try {
+            Element match;
+            while ((match = reader.next()) != null) {
+                matches.add(new XMLBuilder(match, null, context));
+            }
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // Closing the StAX reader does not close the input
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Stream through an XML document file and build DOM documents only for
+     * the elements matching one or more simple location paths, as described
+     * by {@link #parseMatching(InputSource, XMLBuilderContext, String...)}.
+     * The file is read in the same way as by
+     * {@link #parse(Path, XMLBuilderContext, XMLParseOption...)}.
+     *
+     * @param xmlPath
+     * the path of an XML document file.
+     * @param context
+     * the context used to create the documents and by all builder nodes of
+     * the documents, or null to use the default context.
+     * @param paths
+     * location paths of the elements to return.
+     * @return
+     * a builder for each matching element, in document order.
+     *
+     * @throws IllegalArgumentException
+     * if no paths are given, or a path is not valid.
+     * @throws XMLStreamException
+     * if the document cannot be read or is not well-formed.
+     * @throws ParserConfigurationException
+     * @throws IOException
+     */
+    public static List<XMLBuilder> parseMatching(Path xmlPath,
+        XMLBuilderContext context, String... paths)
+        throws XMLStreamException, ParserConfigurationException, IOException
+    {
+        FileChannel channel = FileChannel.open(xmlPath, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            ChannelInputStream inputStream = (size >= MEMORY_MAPPED_PARSE_THRESHOLD
+                ? ChannelInputStream.mapped(channel, size)
+                : ChannelInputStream.buffered(channel));
+            try {
+                InputSource inputSource = new InputSource(inputStream);
+                inputSource.setSystemId(xmlPath.toUri().toString());
+                return XMLBuilder.parseMatching(inputSource, context, paths);
+            } finally {
+                inputStream.close();
+            }
+        } finally {
+            channel.close();
+        }
     }
 
     /**
@@ -261,8 +865,10 @@ public class XMLBuilder {
      * contain nothing but whitespace, such as newlines and tab or space
      * characters used to indent or pretty-print an XML document.
      *
-     * Uses approach I documented on StackOverflow:
+     * Originally based on an XPath approach I documented on StackOverflow:
      * http://stackoverflow.com/a/979606/4970
+     * and now done with a single walk over the document, see
+     * {@link #stripWhitespaceOnlyTextNodes(boolean)}.
      *
      * @return
      * a builder node at the same location as before the operation.
@@ -271,21 +877,76 @@ public class XMLBuilder {
     public XMLBuilder stripWhitespaceOnlyTextNodes()
         throws XPathExpressionException
     {
-        XPathFactory xpathFactory = XPathFactory.newInstance();
-        // XPath to find empty text nodes.
-        XPathExpression xpathExp = xpathFactory.newXPath().compile(
-            "//text()[normalize-space(.) = '']");
-        NodeList emptyTextNodes = (NodeList) xpathExp.evaluate(
-            this.getDocument(), XPathConstants.NODESET);
-
-        // Remove each empty text node from document.
-        for (int i = 0; i < emptyTextNodes.getLength(); i++) {
-            Node emptyTextNode = emptyTextNodes.item(i);
-            emptyTextNode.getParentNode().removeChild(emptyTextNode);
+        return stripWhitespaceOnlyTextNodes(true);
+    }
+
+    /**
+     * Find and delete any text nodes that contain nothing but whitespace,
+     * either throughout the underlying Document or only within the current
+     * node. Adjacent text and CDATA nodes are treated as a single run of text,
+     * as they are by XPath, and are only deleted if the whole run is
+     * whitespace.
+     * <p>
+     * The nodes are found and deleted in one walk of the tree, without
+     * evaluating XPath or collecting the matches first.
+     * </p>
+     *
+     * @param wholeDocument
+     * if true, strip whitespace-only text from the whole document. If false,
+     * strip it only from the descendants of the current node.
+     * @return
+     * a builder node at the same location as before the operation.
+     */
+    public XMLBuilder stripWhitespaceOnlyTextNodes(boolean wholeDocument) {
+        XMLBuilderEvents.StripWhitespace event = XMLBuilderEvents.beginStripWhitespace();
+        long removedCount = 0;
+        Node top = (wholeDocument ? this.getDocument() : this.xmlNode);
+        Node parent = top;
+        Node node = top.getFirstChild();
+        while (true) {
+            if (node == null) {
+                // Finished this parent's children, resume after the parent
+                if (parent == top) {
+                    break;
+                }
+                node = parent.getNextSibling();
+                parent = parent.getParentNode();
+            } else if (isTextOrCDATA(node)) {
+                Node next = node.getNextSibling();
+                boolean whitespaceOnly = isWhitespaceOnly(node.getNodeValue());
+                while (next != null && isTextOrCDATA(next)) {
+                    whitespaceOnly &= isWhitespaceOnly(next.getNodeValue());
+                    next = next.getNextSibling();
+                }
+                if (whitespaceOnly) {
+                    while (node != next) {
+                        Node removed = node;
+                        node = node.getNextSibling();
+                        parent.removeChild(removed);
+                        removedCount++;
+                    }
+                }
+                node = next;
+            } else if (Node.ELEMENT_NODE == node.getNodeType()
+                && node.hasChildNodes())
+            {
+                parent = node;
+                node = node.getFirstChild();
+            } else {
+                node = node.getNextSibling();
+            }
+        }
+        if (event != null) {
+            event.finish(removedCount);
         }
         return this;
     }
 
+    private static boolean isTextOrCDATA(Node node) {
+        short nodeType = node.getNodeType();
+        return Node.TEXT_NODE == nodeType || Node.CDATA_SECTION_NODE == nodeType;
+    }
+
     /**
      * Imports another XMLBuilder document into this document at the
      * current position. The entire document provided is imported.
@@ -299,12 +960,188 @@ public class XMLBuilder {
      */
     public XMLBuilder importXMLBuilder(XMLBuilder builder) {
         assertElementContainsNoOrWhitespaceOnlyTextNodes(this.xmlNode);
-        Node importedNode = getDocument().importNode(
-            builder.root().getElement(), true);
-        this.xmlNode.appendChild(importedNode);
+        this.xmlNode.appendChild(graftRootElement(builder, false));
         return this;
     }
 
+    /**
+     * Imports each of the given XMLBuilder documents into this document at
+     * the current position, in order. This is equivalent to calling
+     * {@link #importXMLBuilder(XMLBuilder)} for each builder, but checks
+     * this builder's node only once.
+     *
+     * @param builders
+     * the XMLBuilder documents to be imported.
+     *
+     * @return
+     * a builder node at the same location as before the import, but
+     * now containing the entire document trees provided.
+     */
+    public XMLBuilder importXMLBuilders(Iterable<XMLBuilder> builders) {
+        assertElementContainsNoOrWhitespaceOnlyTextNodes(this.xmlNode);
+        for (XMLBuilder builder : builders) {
+            this.xmlNode.appendChild(graftRootElement(builder, false));
+        }
+        return this;
+    }
+
+    /**
+     * Moves another XMLBuilder document's root element, and everything it
+     * contains, into this document at the current position.
+     * <p>
+     * Unlike {@link #importXMLBuilder(XMLBuilder)}, which copies every node,
+     * the nodes are adopted into this document where the DOM implementation
+     * allows it. The other document is left without a root element and
+     * should not be used again. If the nodes cannot be adopted, for instance
+     * because the other document comes from a different DOM implementation,
+     * they are copied instead.
+     * </p>
+     *
+     * @param builder
+     * the XMLBuilder document to be adopted.
+     *
+     * @return
+     * a builder node at the same location as before the operation, but
+     * now containing the entire document tree provided.
+     */
+    public XMLBuilder adoptXMLBuilder(XMLBuilder builder) {
+        assertElementContainsNoOrWhitespaceOnlyTextNodes(this.xmlNode);
+        this.xmlNode.appendChild(graftRootElement(builder, true));
+        return this;
+    }
+
+    /**
+     * Moves the root elements of each of the given XMLBuilder documents into
+     * this document at the current position, in order. This is equivalent to
+     * calling {@link #adoptXMLBuilder(XMLBuilder)} for each builder, but checks
+     * this builder's node only once.
+     *
+     * @param builders
+     * the XMLBuilder documents to be adopted.
+     *
+     * @return
+     * a builder node at the same location as before the operation, but
+     * now containing the entire document trees provided.
+     */
+    public XMLBuilder adoptXMLBuilders(Iterable<XMLBuilder> builders) {
+        assertElementContainsNoOrWhitespaceOnlyTextNodes(this.xmlNode);
+        for (XMLBuilder builder : builders) {
+            this.xmlNode.appendChild(graftRootElement(builder, true));
+        }
+        return this;
+    }
+
+    /**
+     * Builds document fragments in parallel and adds them to this document at
+     * the current position, in the order of the given tasks.
+     * <p>
+     * A DOM document cannot be modified by several threads at once, so each
+     * task must build and return its own separate document, typically
+     * created with {@link #create(String, String, XMLBuilderContext)}. The
+     * tasks run on the common {@link ForkJoinPool}, and once all have
+     * completed their documents' root elements are adopted into this document
+     * as by {@link #adoptXMLBuilders(Iterable)}, without copying where the
+     * DOM implementation allows it.
+     * </p>
+     *
+     * @param fragmentTasks
+     * tasks that each build and return a separate document.
+     *
+     * @return
+     * a builder node at the same location as before the operation, but
+     * now containing the fragments built by the tasks.
+     *
+     * @throws InterruptedException
+     * if interrupted while waiting for the tasks to complete.
+     * @throws ExecutionException
+     * if any of the tasks failed, in which case no fragments are added.
+     */
+    public XMLBuilder assembleFragments(
+        Collection<? extends Callable<XMLBuilder>> fragmentTasks)
+        throws InterruptedException, ExecutionException
+    {
+        return assembleFragments(fragmentTasks, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Builds document fragments in parallel using the given executor, such as
+     * a {@link ForkJoinPool}, and adds them to this document at the current
+     * position, in the order of the given tasks. See
+     * {@link #assembleFragments(Collection)} for details.
+     *
+     * @param fragmentTasks
+     * tasks that each build and return a separate document.
+     * @param executor
+     * the executor on which to run the tasks.
+     *
+     * @return
+     * a builder node at the same location as before the operation, but
+     * now containing the fragments built by the tasks.
+     *
+     * @throws InterruptedException
+     * if interrupted while waiting for the tasks to complete.
+     * @throws ExecutionException
+     * if any of the tasks failed, in which case no fragments are added.
+     */
+    public XMLBuilder assembleFragments(
+        Collection<? extends Callable<XMLBuilder>> fragmentTasks,
+        ExecutorService executor)
+        throws InterruptedException, ExecutionException
+    {
+        // Fail before doing any work if fragments cannot be added here
+        assertElementContainsNoOrWhitespaceOnlyTextNodes(this.xmlNode);
+        XMLMetricsListener listener = getContext().getMetricsListener();
+        long startNanos = (listener != XMLMetricsListener.NONE ? System.nanoTime() : 0);
+        List<Future<XMLBuilder>> futures = executor.invokeAll(fragmentTasks);
+        List<XMLBuilder> fragments = new ArrayList<XMLBuilder>(futures.size());
+        for (Future<XMLBuilder> future : futures) {
+            fragments.add(future.get());
+        }
+        if (listener == XMLMetricsListener.NONE) {
+            return adoptXMLBuilders(fragments);
+        }
+        // Count the nodes before adoption takes them from their documents
+        long nodeCount = 0;
+        for (XMLBuilder fragment : fragments) {
+            nodeCount += countNodes(fragment.getDocument().getDocumentElement());
+        }
+        adoptXMLBuilders(fragments);
+        listener.documentBuilt(System.nanoTime() - startNanos, nodeCount);
+        return this;
+    }
+
+    /**
+     * @param builder
+     * the builder whose document's root element will be grafted.
+     * @param adopt
+     * if true the root element is moved into this document if possible,
+     * otherwise it is copied.
+     * @return
+     * the root element, or a copy of it, owned by this builder's document.
+     */
+    private Node graftRootElement(XMLBuilder builder, boolean adopt) {
+        XMLBuilderEvents.Import event = XMLBuilderEvents.beginImport();
+        Element rootElement = builder.getDocument().getDocumentElement();
+        Node graftedNode = null;
+        if (adopt) {
+            try {
+                graftedNode = getDocument().adoptNode(rootElement);
+            } catch (DOMException e) {
+                if (e.code != DOMException.NOT_SUPPORTED_ERR) {
+                    throw e;
+                }
+            }
+        }
+        boolean adopted = (graftedNode != null);
+        if (!adopted) {
+            graftedNode = getDocument().importNode(rootElement, true);
+        }
+        if (event != null) {
+            event.finish(graftedNode, adopted);
+        }
+        return graftedNode;
+    }
+
     /**
      * @return
      * true if the XML Document and Element objects wrapped by this
@@ -343,7 +1180,7 @@ public class XMLBuilder {
      * the builder node representing the root XML document.
      */
     public XMLBuilder document() {
-        return new XMLBuilder(getDocument(), null);
+        return new XMLBuilder(getDocument(), null, this.context);
     }
 
     /**
@@ -353,7 +1190,7 @@ public class XMLBuilder {
      * {@link #create(String)} or {@link #parse(InputSource)} method.
      */
     public XMLBuilder root() {
-        return new XMLBuilder(getDocument());
+        return new XMLBuilder(getDocument().getDocumentElement(), null, this.context);
     }
 
     /**
@@ -390,18 +1227,26 @@ public class XMLBuilder {
     public Object xpathQuery(String xpath, QName type, NamespaceContext nsContext)
         throws XPathExpressionException
     {
-        XPathFactory xpathFactory = XPathFactory.newInstance();
-        XPath xPath = xpathFactory.newXPath();
-        if (nsContext != null) {
-            xPath.setNamespaceContext(nsContext);
-        }
-        XPathExpression xpathExp = xPath.compile(xpath);
+        XMLBuilderContext documentContext = getContext();
+        XMLMetricsListener listener = documentContext.getMetricsListener();
+        long startNanos = (listener != XMLMetricsListener.NONE ? System.nanoTime() : 0);
+        XMLBuilderEvents.XPath event = XMLBuilderEvents.beginXPath(xpath);
+        XPathExpression xpathExp = documentContext.getXPathExpressionCache()
+            .getExpression(xpath, nsContext, listener);
+        Object result;
         try {
-            return xpathExp.evaluate(this.xmlNode, type);
+            result = xpathExp.evaluate(this.xmlNode, type);
         } catch (IllegalArgumentException e) {
             // Thrown if item found does not match expected type
-            return null;
+            result = null;
+        }
+        if (listener != XMLMetricsListener.NONE) {
+            listener.xpathEvaluated(System.nanoTime() - startNanos);
         }
+        if (event != null) {
+            event.finish(result);
+        }
+        return result;
     }
 
     /**
@@ -459,7 +1304,7 @@ public class XMLBuilder {
 				+ xpath + "\" does not resolve to an Element in context "
 				+ this.xmlNode + ": " + foundNode);
     	}
-    	return new XMLBuilder(foundNode, null);
+    	return new XMLBuilder(foundNode, null, this.context);
     }
 
     /**
@@ -503,9 +1348,7 @@ public class XMLBuilder {
      * contains a text node value.
      */
     public XMLBuilder element(String name) {
-        String prefix = getPrefixFromQualifiedName(name);
-        String namespaceURI = this.xmlNode.lookupNamespaceURI(prefix);
-        return element(name, namespaceURI);
+        return element(name, lookupNamespaceForQualifiedName(name));
     }
 
     /**
@@ -532,39 +1375,125 @@ public class XMLBuilder {
      * the name of the XML element.
      *
      * @return
-     * a builder node representing the new child.
+     * a builder node representing the new child.
+     *
+     * @throws IllegalStateException
+     * if you attempt to add a child element to an XML node that already
+     * contains a text node value.
+     */
+    public XMLBuilder e(String name) {
+        return element(name);
+    }
+
+    /**
+     * Add a named and namespaced XML element to the document as a child of
+     * this builder node, and return the builder node representing the new child.
+     *
+     * @param name
+     * the name of the XML element.
+     * @param namespaceURI
+     * a namespace URI
+     *
+     * @return
+     * a builder node representing the new child.
+     *
+     * @throws IllegalStateException
+     * if you attempt to add a child element to an XML node that already
+     * contains a text node value.
+     */
+    public XMLBuilder element(String name, String namespaceURI) {
+        return new XMLBuilder(appendElement(name, namespaceURI), null, this.context);
+    }
+
+    /**
+     * Append a new element to this builder's node without wrapping it in a
+     * builder, for {@link #element(String, String)} and {@link XMLCursor}.
+     *
+     * @return
+     * the new element.
+     */
+    Element appendElement(String name, String namespaceURI) {
+        assertElementContainsNoOrWhitespaceOnlyTextNodes(this.xmlNode);
+        Element newElement = createElement(name, namespaceURI);
+        this.xmlNode.appendChild(newElement);
+        return newElement;
+    }
+
+    /**
+     * Add a named XML element to the document as a child of this builder node
+     * for each of the given items, and pass a builder node for each new child
+     * to <code>content</code> along with its item, so it can fill in the
+     * child's attributes and content. The namespace of the new elements is
+     * resolved in the same way as for {@link #element(String)}, but only once.
+     * <p>
+     * This builder's node is checked for text content once, before any
+     * elements are added, so <code>content</code> must only add to the child
+     * it is given.
+     * </p>
+     *
+     * @param name
+     * the name of the XML elements.
+     * @param items
+     * the items to add an element for, in order.
+     * @param content
+     * fills in the element added for each item.
+     *
+     * @return
+     * the builder node to which the elements were added.
      *
      * @throws IllegalStateException
-     * if you attempt to add a child element to an XML node that already
+     * if you attempt to add child elements to an XML node that already
      * contains a text node value.
      */
-    public XMLBuilder e(String name) {
-        return element(name);
+    public <T> XMLBuilder elements(String name, Iterable<T> items,
+        BiConsumer<? super XMLBuilder, ? super T> content)
+    {
+        return elements(name, lookupNamespaceForQualifiedName(name), items, content);
     }
 
     /**
      * Add a named and namespaced XML element to the document as a child of
-     * this builder node, and return the builder node representing the new child.
+     * this builder node for each of the given items, and pass a builder node
+     * for each new child to <code>content</code> along with its item.
      *
      * @param name
-     * the name of the XML element.
+     * the name of the XML elements.
      * @param namespaceURI
      * a namespace URI
+     * @param items
+     * the items to add an element for, in order.
+     * @param content
+     * fills in the element added for each item.
      *
      * @return
-     * a builder node representing the new child.
+     * the builder node to which the elements were added.
      *
      * @throws IllegalStateException
-     * if you attempt to add a child element to an XML node that already
+     * if you attempt to add child elements to an XML node that already
      * contains a text node value.
+     *
+     * @see #elements(String, Iterable, BiConsumer)
      */
-    public XMLBuilder element(String name, String namespaceURI) {
+    public <T> XMLBuilder elements(String name, String namespaceURI,
+        Iterable<T> items, BiConsumer<? super XMLBuilder, ? super T> content)
+    {
         assertElementContainsNoOrWhitespaceOnlyTextNodes(this.xmlNode);
-        return new XMLBuilder(
-            (namespaceURI == null
-                ? getDocument().createElement(name)
-                : getDocument().createElementNS(namespaceURI, name)),
-            this.xmlNode);
+        for (T item : items) {
+            Element newElement = createElement(name, namespaceURI);
+            this.xmlNode.appendChild(newElement);
+            content.accept(new XMLBuilder(newElement, null, this.context), item);
+        }
+        return this;
+    }
+
+    /**
+     * @return
+     * a new element of this builder's document, not yet added to it.
+     */
+    Element createElement(String name, String namespaceURI) {
+        return (namespaceURI == null
+            ? getDocument().createElement(name)
+            : getDocument().createElementNS(namespaceURI, name));
     }
 
     /**
@@ -589,9 +1518,7 @@ public class XMLBuilder {
      * one or more siblings that are text nodes.
      */
     public XMLBuilder elementBefore(String name) {
-        String prefix = getPrefixFromQualifiedName(name);
-        String namespaceURI = this.xmlNode.lookupNamespaceURI(prefix);
-        return elementBefore(name, namespaceURI);
+        return elementBefore(name, lookupNamespaceForQualifiedName(name));
     }
 
     /**
@@ -612,17 +1539,27 @@ public class XMLBuilder {
      * one or more siblings that are text nodes.
      */
     public XMLBuilder elementBefore(String name, String namespaceURI) {
+        // Return a new builder node pointing at the new element
+        return new XMLBuilder(insertElementBefore(name, namespaceURI), null, this.context);
+    }
+
+    /**
+     * Insert a new element before this builder's node without wrapping it in
+     * a builder, for {@link #elementBefore(String, String)} and
+     * {@link XMLCursor}.
+     *
+     * @return
+     * the new element.
+     */
+    Element insertElementBefore(String name, String namespaceURI) {
         Node parentNode = this.xmlNode.getParentNode();
         assertElementContainsNoOrWhitespaceOnlyTextNodes(parentNode);
 
-        Element newElement = (namespaceURI == null
-            ? getDocument().createElement(name)
-            : getDocument().createElementNS(namespaceURI, name));
+        Element newElement = createElement(name, namespaceURI);
 
         // Insert new element before the current element
         parentNode.insertBefore(newElement, this.xmlNode);
-        // Return a new builder node pointing at the new element
-        return new XMLBuilder(newElement, null);
+        return newElement;
     }
 
     /**
@@ -640,13 +1577,66 @@ public class XMLBuilder {
      * added.
      */
     public XMLBuilder attribute(String name, String value) {
+        attributeTarget().setAttribute(name, value);
+        return this;
+    }
+
+    /**
+     * Add named attribute values to the element represented by this builder
+     * node, in the map's iteration order, and return the node representing
+     * the element to which the attributes were added.
+     *
+     * @param attributes
+     * a map of attribute names to values.
+     *
+     * @return
+     * the builder node representing the element to which the attributes were
+     * added.
+     */
+    public XMLBuilder attributes(Map<String, String> attributes) {
+        Element element = attributeTarget();
+        for (Map.Entry<String, String> entry : attributes.entrySet()) {
+            element.setAttribute(entry.getKey(), entry.getValue());
+        }
+        return this;
+    }
+
+    /**
+     * Add named attribute values, given as alternating names and values, to
+     * the element represented by this builder node, and return the node
+     * representing the element to which the attributes were added.
+     *
+     * @param namesAndValues
+     * each attribute's name followed by its value, such as
+     * <code>"id", "1", "type", "row"</code>.
+     *
+     * @return
+     * the builder node representing the element to which the attributes were
+     * added.
+     *
+     * @throws IllegalArgumentException
+     * if a name is not followed by a value.
+     */
+    public XMLBuilder attributes(String... namesAndValues) {
+        if (namesAndValues.length % 2 != 0) {
+            throw new IllegalArgumentException(
+                "Attribute names and values must be given in pairs, but got "
+                + namesAndValues.length + " strings");
+        }
+        Element element = attributeTarget();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            element.setAttribute(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return this;
+    }
+
+    private Element attributeTarget() {
         if (! (this.xmlNode instanceof Element)) {
             throw new RuntimeException(
                 "Cannot add an attribute to non-Element underlying node: "
                 + this.xmlNode);
         }
-        ((Element) xmlNode).setAttribute(name, value);
-        return this;
+        return (Element) this.xmlNode;
     }
 
     /**
@@ -825,6 +1815,134 @@ public class XMLBuilder {
         return cdata(data);
     }
 
+    /**
+     * Add a CDATA node with Base64-encoded content read from the given stream to the
+     * element represented by this builder node, and return the node
+     * representing the element to which the data was added
+     * (<strong>not</strong> the new CDATA node).
+     * <p>
+     * The data is read and encoded in chunks, each of which is added as a
+     * separate, adjacent CDATA section, so neither the raw bytes nor a second
+     * copy of the encoded text are held in memory all at once. The stream is
+     * read to the end but not closed.
+     * </p>
+     *
+     * @param dataStream
+     * a stream of data that will be Base64-encoded and added to a CDATA element.
+     *
+     * @return
+     * the builder node representing the element to which the data was added.
+     *
+     * @throws IOException
+     * if the data cannot be read.
+     */
+    public XMLBuilder cdata(InputStream dataStream) throws IOException {
+        Base64ChunkEncoder encoder = new Base64ChunkEncoder(dataStream);
+        String chunk = encoder.nextChunk();
+        if (chunk == null) {
+            return cdata("");
+        }
+        while (chunk != null) {
+            cdata(chunk);
+            chunk = encoder.nextChunk();
+        }
+        return this;
+    }
+
+    /**
+     * Synonym for {@link #cdata(InputStream)}.
+     *
+     * @param dataStream
+     * a stream of data that will be Base64-encoded and added to a CDATA element.
+     *
+     * @return
+     * the builder node representing the element to which the data was added.
+     *
+     * @throws IOException
+     * if the data cannot be read.
+     */
+    public XMLBuilder data(InputStream dataStream) throws IOException {
+        return cdata(dataStream);
+    }
+
+    /**
+     * Synonym for {@link #cdata(InputStream)}.
+     *
+     * @param dataStream
+     * a stream of data that will be Base64-encoded and added to a CDATA element.
+     *
+     * @return
+     * the builder node representing the element to which the data was added.
+     *
+     * @throws IOException
+     * if the data cannot be read.
+     */
+    public XMLBuilder d(InputStream dataStream) throws IOException {
+        return cdata(dataStream);
+    }
+
+    /**
+     * Add a CDATA node with Base64-encoded content read from the given channel to the
+     * element represented by this builder node, and return the node
+     * representing the element to which the data was added
+     * (<strong>not</strong> the new CDATA node).
+     * <p>
+     * The data is read and encoded in chunks, each of which is added as a
+     * separate, adjacent CDATA section, so neither the raw bytes nor a second
+     * copy of the encoded text are held in memory all at once. The channel is
+     * read to the end but not closed.
+     * </p>
+     *
+     * @param dataChannel
+     * a blocking channel of data that will be Base64-encoded and added to a CDATA element.
+     *
+     * @return
+     * the builder node representing the element to which the data was added.
+     *
+     * @throws IOException
+     * if the data cannot be read.
+     */
+    public XMLBuilder cdata(ReadableByteChannel dataChannel) throws IOException {
+        ChannelInputStream dataStream = ChannelInputStream.buffered(dataChannel);
+        try {
+            return cdata(dataStream);
+        } finally {
+            dataStream.close();
+        }
+    }
+
+    /**
+     * Synonym for {@link #cdata(ReadableByteChannel)}.
+     *
+     * @param dataChannel
+     * a blocking channel of data that will be Base64-encoded and added to a CDATA element.
+     *
+     * @return
+     * the builder node representing the element to which the data was added.
+     *
+     * @throws IOException
+     * if the data cannot be read.
+     */
+    public XMLBuilder data(ReadableByteChannel dataChannel) throws IOException {
+        return cdata(dataChannel);
+    }
+
+    /**
+     * Synonym for {@link #cdata(ReadableByteChannel)}.
+     *
+     * @param dataChannel
+     * a blocking channel of data that will be Base64-encoded and added to a CDATA element.
+     *
+     * @return
+     * the builder node representing the element to which the data was added.
+     *
+     * @throws IOException
+     * if the data cannot be read.
+     */
+    public XMLBuilder d(ReadableByteChannel dataChannel) throws IOException {
+        return cdata(dataChannel);
+    }
+
     /**
      * Add a comment to the element represented by this builder node, and
      * return the node representing the element to which the comment
@@ -1074,9 +2192,10 @@ public class XMLBuilder {
             stepCount++;
         }
         if (currNode instanceof Document) {
-            return new XMLBuilder((Document) currNode);
+            return new XMLBuilder(
+                ((Document) currNode).getDocumentElement(), null, this.context);
         } else {
-            return new XMLBuilder(currNode, null);
+            return new XMLBuilder(currNode, null, this.context);
         }
     }
 
@@ -1096,33 +2215,72 @@ public class XMLBuilder {
      * if the current element contains any child text nodes that aren't pure whitespace.
      * We allow whitespace so parsed XML documents containing indenting or pretty-printing
      * can still be amended, per issue #17.
+     * <p>
+     * The first time a builder node checks an element, all of the element's
+     * children are examined. The builder node then remembers the last child
+     * it checked, so repeated checks of the same element by the same builder
+     * node only examine children appended since, and adding many children to
+     * one element through one builder node takes linear time. If that child
+     * is removed the element is checked in full again. Children inserted
+     * earlier in the element, or text nodes edited in place, by direct DOM
+     * manipulation between checks are not re-checked.
+     * </p>
      */
     protected void assertElementContainsNoOrWhitespaceOnlyTextNodes(Node anXmlElement) {
-        Node textNodeWithNonWhitespace = null;
-        NodeList childNodes = anXmlElement.getChildNodes();
-        for (int i = 0; i < childNodes.getLength(); i++) {
-            if (Element.TEXT_NODE == childNodes.item(i).getNodeType()) {
-                Node textNode = childNodes.item(i);
-                String textWithoutWhitespace =
-                    textNode.getTextContent().replaceAll("\\s", "");
-                if (textWithoutWhitespace.length() > 0) {
-                    textNodeWithNonWhitespace = textNode;
-                    break;
-                }
+        Node checked = (anXmlElement == this.checkedElement ? this.checkedChild : null);
+        Node child;
+        if (checked != null && checked.getParentNode() == anXmlElement) {
+            child = checked.getNextSibling();
+        } else {
+            // Not checked by this builder yet, or the checked child was removed
+            checked = null;
+            child = anXmlElement.getFirstChild();
+        }
+        for (; child != null; child = child.getNextSibling()) {
+            if (Node.TEXT_NODE == child.getNodeType()
+                && !isWhitespaceOnly(child.getNodeValue()))
+            {
+                this.checkedElement = anXmlElement;
+                this.checkedChild = checked;
+                throw new IllegalStateException(
+                    "Cannot add sub-element to element <" + anXmlElement.getNodeName()
+                    + "> that contains a Text node that isn't purely whitespace: "
+                    + child);
             }
+            checked = child;
         }
-        if (textNodeWithNonWhitespace != null) {
-            throw new IllegalStateException(
-                "Cannot add sub-element to element <" + anXmlElement.getNodeName()
-                + "> that contains a Text node that isn't purely whitespace: "
-                + textNodeWithNonWhitespace);
+        this.checkedElement = anXmlElement;
+        this.checkedChild = checked;
+    }
+
+    /**
+     * @return
+     * the last child of the given element checked for text by this builder
+     * node, or null if it has not checked the element. Only {@link XMLCursor}
+     * uses this, to keep the checks of each element on its stack as its
+     * single builder node moves up and down.
+     */
+    Node getCheckedChild(Node element) {
+        return (element == this.checkedElement ? this.checkedChild : null);
+    }
+
+    /**
+     * Restore the last child of the given element known to have been
+     * checked for text, unless this builder node's own record of the element
+     * is already current.
+     */
+    void restoreCheckedChild(Node element, Node child) {
+        if (element != this.checkedElement) {
+            this.checkedElement = element;
+            this.checkedChild = child;
         }
     }
 
     /**
      * Serialize either the specific Element wrapped by this XMLBuilder, or its entire
-     * XML document, to the given writer using the default {@link TransformerFactory}
-     * and {@link Transformer} classes.
+     * XML document, to the given writer using the shared {@link XMLSerializer},
+     * which by default is a {@link TransformerSerializer} that reuses cached
+     * {@link TransformerFactory} and {@link Transformer} objects.
      * If output options are provided, these options are provided to the
      * {@link Transformer} serializer.
      *
@@ -1141,26 +2299,23 @@ public class XMLBuilder {
     public void toWriter(boolean wholeDocument, Writer writer, Properties outputProperties)
         throws TransformerException
     {
-        StreamResult streamResult = new StreamResult(writer);
-
-        DOMSource domSource = null;
-        if (wholeDocument) {
-            domSource = new DOMSource(getDocument());
-        } else {
-            domSource = new DOMSource(getElement());
+        Node node = (wholeDocument ? getDocument() : getElement());
+        XMLBuilderContext documentContext = getContext();
+        XMLMetricsListener listener = documentContext.getMetricsListener();
+        XMLBuilderEvents.Serialize event = XMLBuilderEvents.beginSerialize();
+        if (listener == XMLMetricsListener.NONE && event == null) {
+            documentContext.getSerializer().serialize(node, writer, outputProperties);
+            return;
         }
-
-        TransformerFactory tf = TransformerFactory.newInstance();
-        Transformer serializer = tf.newTransformer();
-
-        if (outputProperties != null) {
-            Iterator iter = outputProperties.entrySet().iterator();
-            while (iter.hasNext()) {
-                Entry entry = (Entry) iter.next();
-                serializer.setOutputProperty((String) entry.getKey(), (String) entry.getValue());
-            }
+        long startNanos = System.nanoTime();
+        CountingWriter countingWriter = new CountingWriter(writer);
+        documentContext.getSerializer().serialize(node, countingWriter, outputProperties);
+        if (listener != XMLMetricsListener.NONE) {
+            listener.documentSerialized(System.nanoTime() - startNanos, countingWriter.count);
+        }
+        if (event != null) {
+            event.finish(node, countingWriter.count, 0);
         }
-        serializer.transform(domSource, streamResult);
     }
 
     /**
@@ -1264,16 +2419,151 @@ public class XMLBuilder {
     }
 
     /**
+     * Serialize either the specific Element wrapped by this XMLBuilder, or its
+     * entire XML document, to the given output stream using the shared
+     * {@link XMLSerializer}. The output is encoded straight into bytes,
+     * without first being built up as a string, in the encoding named by the
+     * {@link javax.xml.transform.OutputKeys#ENCODING} output property, or
+     * UTF-8 by default. The stream is flushed but not closed.
+     *
+     * @param wholeDocument
+     * if true the whole XML document (i.e. the document root) is serialized,
+     * if false just the current Element and its descendants are serialized.
+     * @param outputStream
+     * a stream to which the serialized document is written.
+     * @param outputProperties
+     * settings for the {@link Transformer} serializer. This parameter may be
+     * null or an empty Properties object, in which case the default output
+     * properties will be applied.
+     *
+     * @throws TransformerException
+     */
+    public void toOutputStream(boolean wholeDocument, OutputStream outputStream,
+        Properties outputProperties) throws TransformerException
+    {
+        Node node = (wholeDocument ? getDocument() : getElement());
+        XMLBuilderContext documentContext = getContext();
+        XMLMetricsListener listener = documentContext.getMetricsListener();
+        XMLBuilderEvents.Serialize event = XMLBuilderEvents.beginSerialize();
+        if (listener == XMLMetricsListener.NONE && event == null) {
+            documentContext.getSerializer().serialize(node, outputStream, outputProperties);
+            return;
+        }
+        long startNanos = System.nanoTime();
+        CountingOutputStream countingStream = new CountingOutputStream(outputStream);
+        documentContext.getSerializer().serialize(node, countingStream, outputProperties);
+        if (listener != XMLMetricsListener.NONE) {
+            listener.documentSerialized(System.nanoTime() - startNanos, countingStream.count);
+        }
+        if (event != null) {
+            event.finish(node, 0, countingStream.count);
+        }
+    }
+
+    /**
+     * Serialize the XML document to the given output stream, encoded in the
+     * encoding named by the {@link javax.xml.transform.OutputKeys#ENCODING}
+     * output property, or UTF-8 by default.
+     *
+     * @param outputStream
+     * a stream to which the serialized document is written.
+     * @param outputProperties
+     * settings for the {@link Transformer} serializer. This parameter may be
+     * null or an empty Properties object, in which case the default output
+     * properties will be applied.
+     *
+     * @throws TransformerException
+     */
+    public void toOutputStream(OutputStream outputStream, Properties outputProperties)
+        throws TransformerException
+    {
+        this.toOutputStream(true, outputStream, outputProperties);
+    }
+
+    /**
+     * Serialize the XML document to a byte array by delegating to the
+     * {@link #toOutputStream(OutputStream, Properties)} method.
+     *
+     * @param outputProperties
+     * settings for the {@link Transformer} serializer. This parameter may be
+     * null or an empty Properties object, in which case the default output
+     * properties will be applied.
+     *
+     * @return
+     * the encoded XML document.
+     *
+     * @throws TransformerException
+     */
+    public byte[] asBytes(Properties outputProperties) throws TransformerException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        toOutputStream(outputStream, outputProperties);
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Serialize the XML document to a UTF-8 encoded byte array excluding the
+     * XML declaration, to match {@link #asString()}.
+     *
+     * @return
+     * the UTF-8 encoded XML document without the XML declaration at the
+     * beginning of the output.
+     *
+     * @throws TransformerException
+     */
+    public byte[] asBytes() throws TransformerException {
+        Properties outputProperties = new Properties();
+        outputProperties.put(javax.xml.transform.OutputKeys.OMIT_XML_DECLARATION, "yes");
+        return asBytes(outputProperties);
+    }
+
+    /**
+     * Build a namespace context containing a snapshot of the prefixes and
+     * namespace URIs used within this builder's document, found in a single
+     * scan of the document, to assist in running namespace-aware XPath
+     * queries against the document. Build the context once the document's
+     * namespaces are declared, and reuse it for many queries; it is safe to
+     * share between threads unless custom mappings are added to it.
+     *
      * @return
-     * a namespace context containing the prefixes and namespace URI's used
-     * within this builder's document, to assist in running namespace-aware
-     * XPath queries against the document.
+     * a namespace context for the prefixes and namespace URIs used within
+     * this builder's document.
      */
     public NamespaceContextImpl buildDocumentNamespaceContext() {
-        return new NamespaceContextImpl(this.root().getElement());
+        return new NamespaceContextImpl(this.getDocument());
     }
 
     protected String getPrefixFromQualifiedName(String qualifiedName) {
+        return prefixFromQualifiedName(qualifiedName);
+    }
+
+    /**
+     * @return
+     * the namespace URI in scope at this builder's node for the prefix of the
+     * given qualified name, or null if there is none.
+     */
+    String lookupNamespaceForQualifiedName(String qualifiedName) {
+        String prefix = getPrefixFromQualifiedName(qualifiedName);
+        return this.xmlNode.lookupNamespaceURI(prefix);
+    }
+
+    /**
+     * Move this builder to wrap a different node of the same document. Only
+     * {@link XMLCursor} uses this, to reuse one builder as it moves around.
+     */
+    void moveTo(Node node) {
+        this.xmlNode = node;
+    }
+
+    /**
+     * @return
+     * the context this builder was explicitly given, or null if it follows
+     * the default context.
+     */
+    XMLBuilderContext getExplicitContext() {
+        return this.context;
+    }
+
+    static String prefixFromQualifiedName(String qualifiedName) {
         int colonPos = qualifiedName.indexOf(':');
         if (colonPos > 0) {
             return qualifiedName.substring(0, colonPos);
@@ -1282,4 +2572,117 @@ public class XMLBuilder {
         }
     }
 
+    /**
+     * @return
+     * true if the given text contains only whitespace characters, as matched
+     * by the regular expression class <code>\s</code>.
+     */
+    static boolean isWhitespaceOnly(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            switch (text.charAt(i)) {
+            case ' ': case '\t': case '\n': case '\u000B': case '\f': case '\r':
+                break;
+            default:
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return
+     * the number of nodes in the tree rooted at the given node, including the
+     * node itself but not counting attributes, or 0 if the node is null.
+     */
+    static long countNodes(Node root) {
+        long count = 0;
+        Node node = root;
+        while (node != null) {
+            count++;
+            Node next = node.getFirstChild();
+            while (next == null && node != root) {
+                next = node.getNextSibling();
+                if (next == null) {
+                    node = node.getParentNode();
+                }
+            }
+            node = next;
+        }
+        return count;
+    }
+
+    /**
+     * Counts the characters written to a writer, for metrics.
+     */
+    private static final class CountingWriter extends Writer {
+        private final Writer writer;
+        private long count = 0;
+
+        private CountingWriter(Writer writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            writer.write(c);
+            count++;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            writer.write(cbuf, off, len);
+            count += len;
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            writer.write(str, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writer.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    /**
+     * Counts the bytes written to an output stream, for metrics.
+     */
+    private static final class CountingOutputStream extends OutputStream {
+        private final OutputStream outputStream;
+        private long count = 0;
+
+        private CountingOutputStream(OutputStream outputStream) {
+            this.outputStream = outputStream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            outputStream.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            outputStream.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            outputStream.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            outputStream.close();
+        }
+    }
+
 }
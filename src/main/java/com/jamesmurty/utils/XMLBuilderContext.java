@@ -0,0 +1,231 @@
+/*
+ * Copyright 2008-2014 James Murty (www.jamesmurty.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is available from the GitHub code repository at:
+ * https://github.com/jmurty/java-xmlbuilder
+ */
+package com.jamesmurty.utils;
+
+import javax.xml.parsers.FactoryConfigurationError;
+
+/**
+ * The infrastructure used by {@link XMLBuilder} to create, parse, query and
+ * output documents: a {@link DocumentBuilderPool}, an {@link XMLSerializer}
+ * and an {@link XPathExpressionCache}, along with the
+ * {@link XMLMetricsListener} that is told about that work.
+ * <p>
+ * A context is immutable and safe to share between threads. Its components
+ * keep per-thread parsers, transformers and compiled expressions, so threads
+ * that build documents from a shared context reuse their own infrastructure
+ * without contending with each other. Pass a context to the
+ * <code>create</code> and <code>parse</code> methods of XMLBuilder, and every
+ * builder node obtained from the resulting document will use it.
+ * </p>
+ * <p>
+ * Builders created without a context use the default context, which is
+ * replaced by the static setters of XMLBuilder such as
+ * {@link XMLBuilder#setSerializer(XMLSerializer)}.
+ * </p>
+ */
+public class XMLBuilderContext {
+
+    private final DocumentBuilderPool documentBuilderPool;
+
+    private final XMLSerializer serializer;
+
+    private final XPathExpressionCache xpathExpressionCache;
+
+    private final XMLMetricsListener metricsListener;
+
+    /**
+     * Create a context from the given components, any of which may be null
+     * in which case a default component is created.
+     *
+     * @param documentBuilderPool
+     * the pool of DocumentBuilders used to create and parse documents, or
+     * null for a namespace-aware pool built from the platform's default
+     * factory.
+     * @param serializer
+     * the serializer used to output documents, or null for a
+     * {@link TransformerSerializer}.
+     * @param xpathExpressionCache
+     * the cache of compiled XPath expressions, or null for a cache of the
+     * default size.
+     *
+     * @throws FactoryConfigurationError
+     */
+    public XMLBuilderContext(DocumentBuilderPool documentBuilderPool,
+        XMLSerializer serializer, XPathExpressionCache xpathExpressionCache)
+        throws FactoryConfigurationError
+    {
+        this(documentBuilderPool, serializer, xpathExpressionCache, null);
+    }
+
+    /**
+     * Create a context from the given components, any of which may be null
+     * in which case a default component is created.
+     *
+     * @param documentBuilderPool
+     * the pool of DocumentBuilders used to create and parse documents, or
+     * null for a namespace-aware pool built from the platform's default
+     * factory.
+     * @param serializer
+     * the serializer used to output documents, or null for a
+     * {@link TransformerSerializer}.
+     * @param xpathExpressionCache
+     * the cache of compiled XPath expressions, or null for a cache of the
+     * default size.
+     * @param metricsListener
+     * the listener told about parsing, building, querying and output, or null
+     * for {@link XMLMetricsListener#NONE}.
+     *
+     * @throws FactoryConfigurationError
+     */
+    public XMLBuilderContext(DocumentBuilderPool documentBuilderPool,
+        XMLSerializer serializer, XPathExpressionCache xpathExpressionCache,
+        XMLMetricsListener metricsListener)
+        throws FactoryConfigurationError
+    {
+        this.documentBuilderPool = (documentBuilderPool != null
+            ? documentBuilderPool
+            : DocumentBuilderPool.newInstance(true));
+        this.serializer = (serializer != null
+            ? serializer
+            : new TransformerSerializer());
+        this.xpathExpressionCache = (xpathExpressionCache != null
+            ? xpathExpressionCache
+            : new XPathExpressionCache());
+        this.metricsListener = (metricsListener != null
+            ? metricsListener
+            : XMLMetricsListener.NONE);
+    }
+
+    /**
+     * @return
+     * a context with default components and namespace-aware parsing.
+     * @throws FactoryConfigurationError
+     */
+    public static XMLBuilderContext newInstance() throws FactoryConfigurationError {
+        return newInstance(true);
+    }
+
+    /**
+     * @param namespaceAware
+     * whether documents are created and parsed with namespace support.
+     * @return
+     * a context with default components.
+     * @throws FactoryConfigurationError
+     */
+    public static XMLBuilderContext newInstance(boolean namespaceAware)
+        throws FactoryConfigurationError
+    {
+        return new XMLBuilderContext(
+            DocumentBuilderPool.newInstance(namespaceAware), null, null);
+    }
+
+    /**
+     * @param documentBuilderPool
+     * the pool of DocumentBuilders to use, or null for a default pool.
+     * @return
+     * a copy of this context with the given pool.
+     * @throws FactoryConfigurationError
+     */
+    public XMLBuilderContext withDocumentBuilderPool(DocumentBuilderPool documentBuilderPool)
+        throws FactoryConfigurationError
+    {
+        return new XMLBuilderContext(documentBuilderPool,
+            this.serializer, this.xpathExpressionCache, this.metricsListener);
+    }
+
+    /**
+     * @param serializer
+     * the serializer to use, or null for a default {@link TransformerSerializer}.
+     * @return
+     * a copy of this context with the given serializer.
+     */
+    public XMLBuilderContext withSerializer(XMLSerializer serializer) {
+        return new XMLBuilderContext(this.documentBuilderPool,
+            serializer, this.xpathExpressionCache, this.metricsListener);
+    }
+
+    /**
+     * @param xpathExpressionCache
+     * the cache of compiled XPath expressions to use, or null for a cache of
+     * the default size.
+     * @return
+     * a copy of this context with the given cache.
+     */
+    public XMLBuilderContext withXPathExpressionCache(
+        XPathExpressionCache xpathExpressionCache)
+    {
+        return new XMLBuilderContext(this.documentBuilderPool,
+            this.serializer, xpathExpressionCache, this.metricsListener);
+    }
+
+    /**
+     * @param metricsListener
+     * the listener to tell about parsing, building, querying and output, or
+     * null for {@link XMLMetricsListener#NONE}.
+     * @return
+     * a copy of this context with the given listener.
+     */
+    public XMLBuilderContext withMetricsListener(XMLMetricsListener metricsListener) {
+        return new XMLBuilderContext(this.documentBuilderPool,
+            this.serializer, this.xpathExpressionCache, metricsListener);
+    }
+
+    /**
+     * @return
+     * the pool of DocumentBuilders used to create and parse documents.
+     */
+    public DocumentBuilderPool getDocumentBuilderPool() {
+        return this.documentBuilderPool;
+    }
+
+    /**
+     * @return
+     * the serializer used to output documents.
+     */
+    public XMLSerializer getSerializer() {
+        return this.serializer;
+    }
+
+    /**
+     * @return
+     * the cache of compiled XPath expressions.
+     */
+    public XPathExpressionCache getXPathExpressionCache() {
+        return this.xpathExpressionCache;
+    }
+
+    /**
+     * @return
+     * the listener told about parsing, building, querying and output, which
+     * is {@link XMLMetricsListener#NONE} unless one has been given.
+     */
+    public XMLMetricsListener getMetricsListener() {
+        return this.metricsListener;
+    }
+
+    /**
+     * @return
+     * true if documents are created and parsed with namespace support.
+     */
+    public boolean isNamespaceAware() {
+        return this.documentBuilderPool.isNamespaceAware();
+    }
+
+}
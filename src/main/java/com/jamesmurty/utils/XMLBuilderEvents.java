@@ -0,0 +1,282 @@
+/*
+ * Copyright 2008-2014 James Murty (www.jamesmurty.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is available from the GitHub code repository at:
+ * https://github.com/jmurty/java-xmlbuilder
+ */
+package com.jamesmurty.utils;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * JDK Flight Recorder events for the expensive operations of
+ * {@link XMLBuilder}, so that recordings show which documents were parsed,
+ * queried, stripped, imported or serialized and how long each step took.
+ * <p>
+ * The Flight Recorder API is only present from Java 11 and Java 8 update
+ * 262. On other JVMs the <code>begin</code> methods return null without
+ * loading any event class. The events are disabled unless a recording
+ * enables them, and the <code>begin</code> methods also return null when an
+ * event is not enabled, so the cost of disabled events is a
+ * single check, and details such as node counts are only worked out for
+ * events that will be recorded.
+ * </p>
+ */
+final class XMLBuilderEvents {
+
+    private static final String CATEGORY = "XMLBuilder";
+
+    /**
+     * True if the JDK provides the Flight Recorder API.
+     */
+    static final boolean AVAILABLE = isFlightRecorderAvailable();
+
+    private XMLBuilderEvents() {
+    }
+
+    private static boolean isFlightRecorderAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return
+     * a started parse event, or null if it will not be recorded.
+     */
+    static Parse beginParse() {
+        if (!AVAILABLE) {
+            return null;
+        }
+        Parse event = new Parse();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    /**
+     * @return
+     * a started XPath event, or null if it will not be recorded.
+     */
+    static XPath beginXPath(String expression) {
+        if (!AVAILABLE) {
+            return null;
+        }
+        XPath event = new XPath();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.expression = expression;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * @return
+     * a started whitespace stripping event, or null if it will not be
+     * recorded.
+     */
+    static StripWhitespace beginStripWhitespace() {
+        if (!AVAILABLE) {
+            return null;
+        }
+        StripWhitespace event = new StripWhitespace();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    /**
+     * @return
+     * a started import event, or null if it will not be recorded.
+     */
+    static Import beginImport() {
+        if (!AVAILABLE) {
+            return null;
+        }
+        Import event = new Import();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    /**
+     * @return
+     * a started serialize event, or null if it will not be recorded.
+     */
+    static Serialize beginSerialize() {
+        if (!AVAILABLE) {
+            return null;
+        }
+        Serialize event = new Serialize();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    @Name("com.jamesmurty.utils.Parse")
+    @Label("XML Parse")
+    @Category(CATEGORY)
+    @Enabled(false)
+    @Description("An XML document parsed by XMLBuilder")
+    static final class Parse extends Event {
+
+        @Label("Node Count")
+        @Description("Nodes in the parsed document, not counting attributes")
+        long nodeCount;
+
+        void finish(Document document) {
+            end();
+            if (shouldCommit()) {
+                this.nodeCount = XMLBuilder.countNodes(document) - 1;
+                commit();
+            }
+        }
+    }
+
+    @Name("com.jamesmurty.utils.XPath")
+    @Label("XML XPath Query")
+    @Category(CATEGORY)
+    @Enabled(false)
+    @Description("An XPath expression evaluated by XMLBuilder")
+    static final class XPath extends Event {
+
+        @Label("Expression")
+        String expression;
+
+        @Label("Node Count")
+        @Description("Nodes found by the expression")
+        long nodeCount;
+
+        /**
+         * @param result
+         * the result of evaluating the expression as the given type.
+         */
+        void finish(Object result) {
+            end();
+            if (shouldCommit()) {
+                if (result instanceof NodeList) {
+                    this.nodeCount = ((NodeList) result).getLength();
+                } else if (result instanceof Node) {
+                    this.nodeCount = 1;
+                }
+                commit();
+            }
+        }
+    }
+
+    @Name("com.jamesmurty.utils.StripWhitespace")
+    @Label("XML Strip Whitespace")
+    @Category(CATEGORY)
+    @Enabled(false)
+    @Description("Whitespace-only text removed from a document by XMLBuilder")
+    static final class StripWhitespace extends Event {
+
+        @Label("Node Count")
+        @Description("Whitespace-only text and CDATA nodes removed")
+        long nodeCount;
+
+        void finish(long removedCount) {
+            end();
+            if (shouldCommit()) {
+                this.nodeCount = removedCount;
+                commit();
+            }
+        }
+    }
+
+    @Name("com.jamesmurty.utils.Import")
+    @Label("XML Import")
+    @Category(CATEGORY)
+    @Enabled(false)
+    @Description("A document imported or adopted into another by XMLBuilder")
+    static final class Import extends Event {
+
+        @Label("Node Count")
+        @Description("Nodes added to the document, not counting attributes")
+        long nodeCount;
+
+        @Label("Adopted")
+        @Description("True if the nodes were moved rather than copied")
+        boolean adopted;
+
+        void finish(Node root, boolean adopted) {
+            end();
+            if (shouldCommit()) {
+                this.nodeCount = XMLBuilder.countNodes(root);
+                this.adopted = adopted;
+                commit();
+            }
+        }
+    }
+
+    @Name("com.jamesmurty.utils.Serialize")
+    @Label("XML Serialize")
+    @Category(CATEGORY)
+    @Enabled(false)
+    @Description("A document or element serialized by XMLBuilder")
+    static final class Serialize extends Event {
+
+        @Label("Node Count")
+        @Description("Nodes serialized, not counting attributes")
+        long nodeCount;
+
+        @Label("Character Count")
+        @Description("Characters written to a Writer")
+        long characterCount;
+
+        @Label("Byte Count")
+        @Description("Bytes written to an OutputStream")
+        @DataAmount
+        long byteCount;
+
+        void finish(Node node, long characterCount, long byteCount) {
+            end();
+            if (shouldCommit()) {
+                // Leave out the document node itself
+                this.nodeCount = XMLBuilder.countNodes(node)
+                    - (node.getNodeType() == Node.DOCUMENT_NODE ? 1 : 0);
+                this.characterCount = characterCount;
+                this.byteCount = byteCount;
+                commit();
+            }
+        }
+    }
+
+}
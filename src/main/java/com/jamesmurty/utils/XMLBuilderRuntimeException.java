@@ -0,0 +1,39 @@
+/*
+ * Copyright 2008-2014 James Murty (www.jamesmurty.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is available from the GitHub code repository at:
+ * https://github.com/jmurty/java-xmlbuilder
+ */
+package com.jamesmurty.utils;
+
+/**
+ * A runtime exception class used in XMLBuilder methods that cannot declare
+ * the checked exceptions thrown by an underlying XML API, such as the
+ * fluent building methods of {@link XMLStreamBuilder}.
+ */
+public class XMLBuilderRuntimeException extends RuntimeException {
+
+    private static final long serialVersionUID = -635323496745601589L;
+
+    /**
+     * @param exception
+     * cause exception to be wrapped
+     */
+    public XMLBuilderRuntimeException(Exception exception) {
+        super(exception);
+    }
+
+}
@@ -0,0 +1,782 @@
+/*
+ * Copyright 2008-2014 James Murty (www.jamesmurty.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is available from the GitHub code repository at:
+ * https://github.com/jmurty/java-xmlbuilder
+ */
+package com.jamesmurty.utils;
+
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * A mutable alternative to {@link XMLBuilder} that builds and navigates a
+ * document in place. Where each XMLBuilder method returns a new builder node,
+ * an XMLCursor moves itself and returns the same cursor, so building or
+ * walking a very large document does not create a wrapper object for every
+ * node.
+ * <p>
+ * A cursor keeps a stack of the elements between the document's root element
+ * and its current position, so moving up is a constant-time operation
+ * that does not need to walk the DOM. Obtain a cursor with
+ * {@link XMLBuilder#cursor()}, and use {@link #toBuilder()} to return to the
+ * builder API at any point:
+ * </p>
+ * <pre>
+ * XMLCursor cursor = XMLBuilder.create("Rows").cursor();
+ * for (Row row : rows) {
+ *     cursor.e("Row").a("id", row.getId()).t(row.getValue()).up();
+ * }
+ * String xml = cursor.toBuilder().asString();
+ * </pre>
+ * <p>
+ * A cursor is not thread-safe. It reflects the structure of the document as
+ * it builds it, so removing or moving its ancestor elements through other
+ * means leaves the cursor's stack out of date.
+ * </p>
+ */
+public class XMLCursor {
+
+    /**
+     * Initial capacity of the element stack, which grows as needed.
+     */
+    private static final int INITIAL_DEPTH = 16;
+
+    /**
+     * A single builder node that is moved to the cursor's position and
+     * performs all document changes on its behalf.
+     */
+    private final XMLBuilder view;
+
+    /**
+     * The elements from the cursor's starting point down to its current
+     * position.
+     */
+    private Node[] stack;
+
+    /**
+     * The last child of each element on the stack that had been checked for
+     * text when the cursor moved below it.
+     */
+    private Node[] checkedChildren;
+
+    /**
+     * Index in the stack of the cursor's current element.
+     */
+    private int depth;
+
+    /**
+     * Create a cursor positioned at the given builder's node.
+     *
+     * @param builder
+     * the builder node at which the cursor starts.
+     */
+    protected XMLCursor(XMLBuilder builder) {
+        Node node = (builder.getElement() != null
+            ? builder.getElement()
+            : builder.getDocument());
+        int count = 1;
+        for (Node n = node.getParentNode(); n instanceof Element; n = n.getParentNode()) {
+            count++;
+        }
+        this.stack = new Node[Math.max(INITIAL_DEPTH, count * 2)];
+        this.checkedChildren = new Node[this.stack.length];
+        this.depth = count - 1;
+        Node n = node;
+        for (int i = this.depth; i >= 0; i--) {
+            this.stack[i] = n;
+            n = n.getParentNode();
+        }
+        this.view = new XMLBuilder(node, null, builder.getExplicitContext());
+    }
+
+    /**
+     * Add a named XML element to the document as a child of the cursor's
+     * element, and move the cursor to the new element.
+     * <p>
+     * When adding an element to a namespaced document, the new node will be
+     * assigned a namespace matching it's qualified name prefix (if any) or
+     * the document's default namespace.
+     * </p>
+     *
+     * @param name
+     * the name of the XML element.
+     *
+     * @return
+     * this cursor, positioned at the new element.
+     *
+     * @throws IllegalStateException
+     * if you attempt to add a child element to an XML node that already
+     * contains a text node value.
+     */
+    public XMLCursor element(String name) {
+        return element(name, this.view.lookupNamespaceForQualifiedName(name));
+    }
+
+    /**
+     * Synonym for {@link #element(String)}.
+     *
+     * @param name
+     * the name of the XML element.
+     *
+     * @return
+     * this cursor, positioned at the new element.
+     */
+    public XMLCursor elem(String name) {
+        return element(name);
+    }
+
+    /**
+     * Synonym for {@link #element(String)}.
+     *
+     * @param name
+     * the name of the XML element.
+     *
+     * @return
+     * this cursor, positioned at the new element.
+     */
+    public XMLCursor e(String name) {
+        return element(name);
+    }
+
+    /**
+     * Add a named and namespaced XML element to the document as a child of
+     * the cursor's element, and move the cursor to the new element.
+     *
+     * @param name
+     * the name of the XML element.
+     * @param namespaceURI
+     * a namespace URI
+     *
+     * @return
+     * this cursor, positioned at the new element.
+     *
+     * @throws IllegalStateException
+     * if you attempt to add a child element to an XML node that already
+     * contains a text node value.
+     */
+    public XMLCursor element(String name, String namespaceURI) {
+        push(this.view.appendElement(name, namespaceURI));
+        return this;
+    }
+
+    /**
+     * Add a named XML element to the document as a child of the cursor's
+     * element for each of the given items. The cursor is moved to each new
+     * element in turn and passed to <code>content</code> along with its item,
+     * so it can fill in the element, and then returned to its original
+     * element. The namespace of the new elements is resolved in the same way
+     * as for {@link #element(String)}, but only once.
+     * <p>
+     * The cursor's element is checked for text content once, before any
+     * elements are added, so <code>content</code> must only add to the new
+     * element and must not move the cursor above it.
+     * </p>
+     *
+     * @param name
+     * the name of the XML elements.
+     * @param items
+     * the items to add an element for, in order.
+     * @param content
+     * fills in the element added for each item.
+     *
+     * @return
+     * this cursor, positioned at the same element.
+     *
+     * @throws IllegalStateException
+     * if you attempt to add child elements to an XML node that already
+     * contains a text node value.
+     */
+    public <T> XMLCursor elements(String name, Iterable<T> items,
+        BiConsumer<? super XMLCursor, ? super T> content)
+    {
+        return elements(name, this.view.lookupNamespaceForQualifiedName(name),
+            items, content);
+    }
+
+    /**
+     * Add a named and namespaced XML element to the document as a child of
+     * the cursor's element for each of the given items, moving the cursor to
+     * each new element in turn and passing it to <code>content</code> along
+     * with its item.
+     *
+     * @param name
+     * the name of the XML elements.
+     * @param namespaceURI
+     * a namespace URI
+     * @param items
+     * the items to add an element for, in order.
+     * @param content
+     * fills in the element added for each item.
+     *
+     * @return
+     * this cursor, positioned at the same element.
+     *
+     * @throws IllegalStateException
+     * if you attempt to add child elements to an XML node that already
+     * contains a text node value.
+     *
+     * @see #elements(String, Iterable, BiConsumer)
+     */
+    public <T> XMLCursor elements(String name, String namespaceURI,
+        Iterable<T> items, BiConsumer<? super XMLCursor, ? super T> content)
+    {
+        int parentDepth = this.depth;
+        Node parent = this.stack[parentDepth];
+        this.view.assertElementContainsNoOrWhitespaceOnlyTextNodes(parent);
+        for (T item : items) {
+            Element newElement = this.view.createElement(name, namespaceURI);
+            parent.appendChild(newElement);
+            push(newElement);
+            content.accept(this, item);
+            moveUpTo(parentDepth);
+        }
+        return this;
+    }
+
+    /**
+     * Add a named XML element to the document as a sibling element that
+     * precedes the cursor's element, and move the cursor to the new element.
+     *
+     * @param name
+     * the name of the XML element.
+     *
+     * @return
+     * this cursor, positioned at the new element.
+     *
+     * @throws IllegalStateException
+     * if you attempt to add a sibling element to a node where there are already
+     * one or more siblings that are text nodes.
+     */
+    public XMLCursor elementBefore(String name) {
+        return elementBefore(name, this.view.lookupNamespaceForQualifiedName(name));
+    }
+
+    /**
+     * Add a named and namespaced XML element to the document as a sibling
+     * element that precedes the cursor's element, and move the cursor to the
+     * new element.
+     *
+     * @param name
+     * the name of the XML element.
+     * @param namespaceURI
+     * a namespace URI
+     *
+     * @return
+     * this cursor, positioned at the new element.
+     *
+     * @throws IllegalStateException
+     * if you attempt to add a sibling element to a node where there are already
+     * one or more siblings that are text nodes.
+     */
+    public XMLCursor elementBefore(String name, String namespaceURI) {
+        Element newElement = this.view.insertElementBefore(name, namespaceURI);
+        this.stack[this.depth] = newElement;
+        this.view.moveTo(newElement);
+        return this;
+    }
+
+    /**
+     * Add a named attribute value to the cursor's element.
+     *
+     * @param name
+     * the attribute's name.
+     * @param value
+     * the attribute's value.
+     *
+     * @return
+     * this cursor, still positioned at the same element.
+     */
+    public XMLCursor attribute(String name, String value) {
+        this.view.attribute(name, value);
+        return this;
+    }
+
+    /**
+     * Synonym for {@link #attribute(String, String)}.
+     *
+     * @param name
+     * the attribute's name.
+     * @param value
+     * the attribute's value.
+     *
+     * @return
+     * this cursor, still positioned at the same element.
+     */
+    public XMLCursor attr(String name, String value) {
+        return attribute(name, value);
+    }
+
+    /**
+     * Synonym for {@link #attribute(String, String)}.
+     *
+     * @param name
+     * the attribute's name.
+     * @param value
+     * the attribute's value.
+     *
+     * @return
+     * this cursor, still positioned at the same element.
+     */
+    public XMLCursor a(String name, String value) {
+        return attribute(name, value);
+    }
+
+    /**
+     * Add named attribute values to the cursor's element, in the map's
+     * iteration order.
+     *
+     * @param attributes
+     * a map of attribute names to values.
+     *
+     * @return
+     * this cursor, still positioned at the same element.
+     */
+    public XMLCursor attributes(Map<String, String> attributes) {
+        this.view.attributes(attributes);
+        return this;
+    }
+
+    /**
+     * Add named attribute values, given as alternating names and values, to
+     * the cursor's element.
+     *
+     * @param namesAndValues
+     * each attribute's name followed by its value, such as
+     * <code>"id", "1", "type", "row"</code>.
+     *
+     * @return
+     * this cursor, still positioned at the same element.
+     *
+     * @throws IllegalArgumentException
+     * if a name is not followed by a value.
+     */
+    public XMLCursor attributes(String... namesAndValues) {
+        this.view.attributes(namesAndValues);
+        return this;
+    }
+
+    /**
+     * Add or replace the text value of the cursor's element.
+     *
+     * @param value
+     * the text value to add to the element.
+     * @param replaceText
+     * if True any existing text content of the node is replaced with the
+     * given text value, if the given value is appended to any existing text.
+     *
+     * @return
+     * this cursor, still positioned at the same element.
+     */
+    public XMLCursor text(String value, boolean replaceText) {
+        this.view.text(value, replaceText);
+        return this;
+    }
+
+    /**
+     * Add a text value to the cursor's element.
+     *
+     * @param value
+     * the text value to add to the element.
+     *
+     * @return
+     * this cursor, still positioned at the same element.
+     */
+    public XMLCursor text(String value) {
+        return text(value, false);
+    }
+
+    /**
+     * Synonym for {@link #text(String)}.
+     *
+     * @param value
+     * the text value to add to the element.
+     *
+     * @return
+     * this cursor, still positioned at the same element.
+     */
+    public XMLCursor t(String value) {
+        return text(value);
+    }
+
+    /**
+     * Add a CDATA node with String content to the cursor's element.
+     *
+     * @param data
+     * the String value that will be added to a CDATA element.
+     *
+     * @return
+     * this cursor, still positioned at the same element.
+     */
+    public XMLCursor cdata(String data) {
+        this.view.cdata(data);
+        return this;
+    }
+
+    /**
+     * Synonym for {@link #cdata(String)}.
+     *
+     * @param data
+     * the String value that will be added to a CDATA element.
+     *
+     * @return
+     * this cursor, still positioned at the same element.
+     */
+    public XMLCursor data(String data) {
+        return cdata(data);
+    }
+
+    /**
+     * Synonym for {@link #cdata(String)}.
+     *
+     * @param data
+     * the String value that will be added to a CDATA element.
+     *
+     * @return
+     * this cursor, still positioned at the same element.
+     */
+    public XMLCursor d(String data) {
+        return cdata(data);
+    }
+
+    /**
+     * Add a CDATA node with Base64-encoded byte data content to the cursor's
+     * element.
+     *
+     * @param data
+     * the data value that will be Base64-encoded and added to a CDATA element.
+     *
+     * @return
+     * this cursor, still positioned at the same element.
+     */
+    public XMLCursor cdata(byte[] data) {
+        this.view.cdata(data);
+        return this;
+    }
+
+    /**
+     * Synonym for {@link #cdata(byte[])}.
+     *
+     * @param data
+     * the data value that will be Base64-encoded and added to a CDATA element.
+     *
+     * @return
+     * this cursor, still positioned at the same element.
+     */
+    public XMLCursor data(byte[] data) {
+        return cdata(data);
+    }
+
+    /**
+     * Synonym for {@link #cdata(byte[])}.
+     *
+     * @param data
+     * the data value that will be Base64-encoded and added to a CDATA element.
+     *
+     * @return
+     * this cursor, still positioned at the same element.
+     */
+    public XMLCursor d(byte[] data) {
+        return cdata(data);
+    }
+
+    /**
+     * Add a comment to the cursor's element.
+     *
+     * @param comment
+     * the comment to add to the element.
+     *
+     * @return
+     * this cursor, still positioned at the same element.
+     */
+    public XMLCursor comment(String comment) {
+        this.view.comment(comment);
+        return this;
+    }
+
+    /**
+     * Synonym for {@link #comment(String)}.
+     *
+     * @param comment
+     * the comment to add to the element.
+     *
+     * @return
+     * this cursor, still positioned at the same element.
+     */
+    public XMLCursor cmnt(String comment) {
+        return comment(comment);
+    }
+
+    /**
+     * Synonym for {@link #comment(String)}.
+     *
+     * @param comment
+     * the comment to add to the element.
+     *
+     * @return
+     * this cursor, still positioned at the same element.
+     */
+    public XMLCursor c(String comment) {
+        return comment(comment);
+    }
+
+    /**
+     * Add a processing instruction to the cursor's element.
+     *
+     * @param target
+     * the target value for the instruction.
+     * @param data
+     * the data value for the instruction
+     *
+     * @return
+     * this cursor, still positioned at the same element.
+     */
+    public XMLCursor instruction(String target, String data) {
+        this.view.instruction(target, data);
+        return this;
+    }
+
+    /**
+     * Synonym for {@link #instruction(String, String)}.
+     *
+     * @param target
+     * the target value for the instruction.
+     * @param data
+     * the data value for the instruction
+     *
+     * @return
+     * this cursor, still positioned at the same element.
+     */
+    public XMLCursor inst(String target, String data) {
+        return instruction(target, data);
+    }
+
+    /**
+     * Synonym for {@link #instruction(String, String)}.
+     *
+     * @param target
+     * the target value for the instruction.
+     * @param data
+     * the data value for the instruction
+     *
+     * @return
+     * this cursor, still positioned at the same element.
+     */
+    public XMLCursor i(String target, String data) {
+        return instruction(target, data);
+    }
+
+    /**
+     * Add a reference to the cursor's element.
+     *
+     * @param name
+     * the name value for the reference.
+     *
+     * @return
+     * this cursor, still positioned at the same element.
+     */
+    public XMLCursor reference(String name) {
+        this.view.reference(name);
+        return this;
+    }
+
+    /**
+     * Synonym for {@link #reference(String)}.
+     *
+     * @param name
+     * the name value for the reference.
+     *
+     * @return
+     * this cursor, still positioned at the same element.
+     */
+    public XMLCursor ref(String name) {
+        return reference(name);
+    }
+
+    /**
+     * Synonym for {@link #reference(String)}.
+     *
+     * @param name
+     * the name value for the reference.
+     *
+     * @return
+     * this cursor, still positioned at the same element.
+     */
+    public XMLCursor r(String name) {
+        return reference(name);
+    }
+
+    /**
+     * Add an XML namespace attribute to the cursor's element.
+     *
+     * @param prefix
+     * a prefix for the namespace URI within the document, may be null
+     * or empty in which case a default "xmlns" attribute is created.
+     * @param namespaceURI
+     * a namespace uri
+     *
+     * @return
+     * this cursor, still positioned at the same element.
+     */
+    public XMLCursor namespace(String prefix, String namespaceURI) {
+        this.view.namespace(prefix, namespaceURI);
+        return this;
+    }
+
+    /**
+     * Synonym for {@link #namespace(String, String)}.
+     *
+     * @param prefix
+     * a prefix for the namespace URI within the document, may be null
+     * or empty in which case a default "xmlns" attribute is created.
+     * @param namespaceURI
+     * a namespace uri
+     *
+     * @return
+     * this cursor, still positioned at the same element.
+     */
+    public XMLCursor ns(String prefix, String namespaceURI) {
+        return namespace(prefix, namespaceURI);
+    }
+
+    /**
+     * Add an XML namespace attribute to the cursor's element without a
+     * prefix.
+     *
+     * @param namespaceURI
+     * a namespace uri
+     *
+     * @return
+     * this cursor, still positioned at the same element.
+     */
+    public XMLCursor namespace(String namespaceURI) {
+        return namespace(null, namespaceURI);
+    }
+
+    /**
+     * Synonym for {@link #namespace(String)}.
+     *
+     * @param namespaceURI
+     * a namespace uri
+     *
+     * @return
+     * this cursor, still positioned at the same element.
+     */
+    public XMLCursor ns(String namespaceURI) {
+        return namespace(namespaceURI);
+    }
+
+    /**
+     * Move the cursor to the n<em>th</em> ancestor of its element, or to the
+     * root element if n exceeds the element's depth.
+     *
+     * @param steps
+     * the number of parent elements to step over while navigating up the chain
+     * of node ancestors. A steps value of 1 will find a node's parent, 2 will
+     * find its grandparent etc.
+     *
+     * @return
+     * this cursor, positioned at the ancestor element.
+     */
+    public XMLCursor up(int steps) {
+        moveUpTo(Math.max(0, this.depth - Math.max(0, steps)));
+        return this;
+    }
+
+    /**
+     * Move the cursor to the parent of its element.
+     *
+     * @return
+     * this cursor, positioned at the parent element, or at the root element if
+     * it was already there.
+     */
+    public XMLCursor up() {
+        return up(1);
+    }
+
+    /**
+     * Move the cursor to the document's root element.
+     *
+     * @return
+     * this cursor, positioned at the root element.
+     */
+    public XMLCursor root() {
+        return up(this.depth);
+    }
+
+    /**
+     * @return
+     * the XML element at the cursor's position, or null if the cursor is
+     * positioned at the root Document node.
+     */
+    public Element getElement() {
+        return this.view.getElement();
+    }
+
+    /**
+     * @return
+     * the XML document being built.
+     */
+    public Document getDocument() {
+        return this.view.getDocument();
+    }
+
+    /**
+     * @return
+     * the number of elements the cursor can move up, which is zero when it is
+     * positioned at the root element.
+     */
+    public int getDepth() {
+        return this.depth;
+    }
+
+    /**
+     * @return
+     * a new builder node for the cursor's current position, which is not
+     * affected by later movements of the cursor.
+     */
+    public XMLBuilder toBuilder() {
+        return new XMLBuilder(this.stack[this.depth], null,
+            this.view.getExplicitContext());
+    }
+
+    private void push(Node node) {
+        if (this.depth + 1 == this.stack.length) {
+            Node[] larger = new Node[this.stack.length * 2];
+            System.arraycopy(this.stack, 0, larger, 0, this.stack.length);
+            this.stack = larger;
+            Node[] largerChecked = new Node[larger.length];
+            System.arraycopy(this.checkedChildren, 0, largerChecked, 0,
+                this.checkedChildren.length);
+            this.checkedChildren = largerChecked;
+        }
+        // Remember how far the element being left has been checked
+        this.checkedChildren[this.depth] = this.view.getCheckedChild(this.stack[this.depth]);
+        this.stack[++this.depth] = node;
+        this.view.moveTo(node);
+    }
+
+    private void moveUpTo(int newDepth) {
+        this.depth = newDepth;
+        this.view.moveTo(this.stack[newDepth]);
+        this.view.restoreCheckedChild(this.stack[newDepth], this.checkedChildren[newDepth]);
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2008-2014 James Murty (www.jamesmurty.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is available from the GitHub code repository at:
+ * https://github.com/jmurty/java-xmlbuilder
+ */
+package com.jamesmurty.utils;
+
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * Receives measurements of the work done by {@link XMLBuilder}, so it can be
+ * monitored with a metrics library such as Micrometer or Dropwizard Metrics.
+ * Install a listener in a context with
+ * {@link XMLBuilderContext#withMetricsListener(XMLMetricsListener)}, or in
+ * the default context with
+ * {@link XMLBuilder#setMetricsListener(XMLMetricsListener)}.
+ * <p>
+ * Every method does nothing by default, so implementations only override the
+ * measurements they record. Contexts use {@link #NONE} unless they are given
+ * a listener, in which case XMLBuilder does not time or count anything at
+ * all. Only operations that complete without an exception are reported.
+ * Listeners are called on the thread that did the work, so they must be
+ * thread-safe and should return quickly.
+ * </p>
+ *
+ * @see HistogramMetricsListener
+ */
+public interface XMLMetricsListener {
+
+    /**
+     * A listener that ignores all measurements, used by contexts that have
+     * not been given a listener.
+     */
+    XMLMetricsListener NONE = new XMLMetricsListener() {
+    };
+
+    /**
+     * A document was parsed by one of the <code>parse</code> methods.
+     *
+     * @param elapsedNanos
+     * the time taken to parse the document.
+     * @param nodeCount
+     * the number of nodes in the parsed document, not counting attributes.
+     */
+    default void documentParsed(long elapsedNanos, long nodeCount) {
+    }
+
+    /**
+     * Content was added to a document in a single operation, by filling an
+     * {@link XMLTemplate} or by assembling fragments.
+     *
+     * @param elapsedNanos
+     * the time taken to build the content.
+     * @param nodeCount
+     * the number of nodes added, not counting attributes.
+     */
+    default void documentBuilt(long elapsedNanos, long nodeCount) {
+    }
+
+    /**
+     * An XPath expression was evaluated by <code>xpathQuery</code> or
+     * <code>xpathFind</code>.
+     *
+     * @param elapsedNanos
+     * the time taken to find or compile the expression and evaluate it.
+     */
+    default void xpathEvaluated(long elapsedNanos) {
+    }
+
+    /**
+     * A compiled expression was looked up in the {@link XPathExpressionCache}.
+     *
+     * @param hit
+     * true if the expression was cached, false if it had to be compiled.
+     */
+    default void xpathCacheLookup(boolean hit) {
+    }
+
+    /**
+     * A document or element was serialized by one of the output methods.
+     *
+     * @param elapsedNanos
+     * the time taken to serialize the node.
+     * @param outputLength
+     * the number of characters written to a {@link Writer}, or bytes written
+     * to an {@link OutputStream}.
+     */
+    default void documentSerialized(long elapsedNanos, long outputLength) {
+    }
+
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2008-2014 James Murty (www.jamesmurty.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is available from the GitHub code repository at:
+ * https://github.com/jmurty/java-xmlbuilder
+ */
+package com.jamesmurty.utils;
+
+/**
+ * Options for {@link XMLBuilder#parse(org.xml.sax.InputSource, XMLBuilderContext, XMLParseOption...)}
+ * and the other parse methods, that leave selected kinds of node out of the
+ * parsed document. Filtered nodes are discarded as the parser reports them,
+ * so they are never added to the DOM and cost no memory afterwards.
+ */
+public enum XMLParseOption {
+
+    /**
+     * Leave out text that contains nothing but whitespace, such as the
+     * newlines and indentation of a pretty-printed document, just as
+     * {@link XMLBuilder#stripWhitespaceOnlyTextNodes()} would remove it after
+     * parsing. Adjacent text and CDATA sections are treated as one run of
+     * text, and are only left out if the whole run is whitespace.
+     */
+    STRIP_WHITESPACE_ONLY_TEXT,
+
+    /**
+     * Leave out comments.
+     */
+    STRIP_COMMENTS,
+
+    /**
+     * Leave out processing instructions.
+     */
+    STRIP_PROCESSING_INSTRUCTIONS
+
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2008-2014 James Murty (www.jamesmurty.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is available from the GitHub code repository at:
+ * https://github.com/jmurty/java-xmlbuilder
+ */
+package com.jamesmurty.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
+
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+/**
+ * Splits a large XML document into records, reading one repeated element at
+ * a time and handing out each as an {@link XMLBuilder} for a small document
+ * of its own. This allows documents with millions of records, far too large
+ * to parse whole, to be processed with little more memory than the largest
+ * record needs:
+ * <pre>
+ * XMLRecordReader records = XMLRecordReader.open(path, null, "record");
+ * try {
+ *     while (records.hasNext()) {
+ *         XMLBuilder record = records.next();
+ *         ...
+ *     }
+ * } finally {
+ *     records.close();
+ * }
+ * </pre>
+ * <p>
+ * Records are selected by an element name, which matches elements with that
+ * local name at any depth, or by the location paths described by
+ * {@link XMLBuilder#parseMatching(InputSource, XMLBuilderContext, String...)}.
+ * Each record's document declares the namespaces in scope where the record
+ * appeared. The reader keeps no reference to records it has handed out, so
+ * they can be garbage collected as soon as the caller is done with them.
+ * </p>
+ * <p>
+ * The reader is also available as a {@link Stream}, which may be processed
+ * in parallel. Records are still read one at a time, but are handed out in
+ * batches to be processed by several threads.
+ * </p>
+ * <p>
+ * Errors reading the document are thrown from {@link #hasNext()} and
+ * {@link #next()} as {@link XMLBuilderRuntimeException}s. A reader is not
+ * safe to use from several threads at once.
+ * </p>
+ */
+public class XMLRecordReader implements Iterator<XMLBuilder>, Closeable {
+
+    private final SubtreeReader subtreeReader;
+
+    private final XMLBuilderContext context;
+
+    /**
+     * Resources opened by this reader, closed along with it.
+     */
+    private final Closeable[] resources;
+
+    private Element nextRecord = null;
+
+    private boolean finished = false;
+
+    /**
+     * Create a reader of the records in the given input. The input is not
+     * closed by this reader.
+     *
+     * @param inputSource
+     * an XML document input source.
+     * @param context
+     * the context used to create the record documents and by all builder
+     * nodes of the documents, or null to use the default context.
+     * @param paths
+     * the names or location paths of the record elements.
+     *
+     * @throws IllegalArgumentException
+     * if no paths are given, or a path is not valid.
+     * @throws XMLStreamException
+     * if a reader cannot be created for the input.
+     */
+    public XMLRecordReader(InputSource inputSource, XMLBuilderContext context,
+        String... paths) throws XMLStreamException
+    {
+        this(inputSource, context, new Closeable[0], paths);
+    }
+
+    private XMLRecordReader(InputSource inputSource, XMLBuilderContext context,
+        Closeable[] resources, String... paths) throws XMLStreamException
+    {
+        XMLBuilderContext documentContext =
+            (context != null ? context : XMLBuilder.getDefaultContext());
+        String[] recordPaths = new String[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            // A plain element name matches records at any depth
+            recordPaths[i] = (paths[i] != null && !paths[i].startsWith("/")
+                ? "//" + paths[i] : paths[i]);
+        }
+        this.subtreeReader = new SubtreeReader(
+            inputSource, documentContext.getDocumentBuilderPool(), recordPaths);
+        this.context = context;
+        this.resources = resources;
+    }
+
+    /**
+     * Open a reader of the records in an XML document file. The file is read
+     * in the same way as by
+     * {@link XMLBuilder#parse(Path, XMLBuilderContext, XMLParseOption...)},
+     * and is closed when the reader is closed.
+     *
+     * @param xmlPath
+     * the path of an XML document file.
+     * @param context
+     * the context used to create the record documents and by all builder
+     * nodes of the documents, or null to use the default context.
+     * @param paths
+     * the names or location paths of the record elements.
+     * @return
+     * a reader of the file's records.
+     *
+     * @throws IllegalArgumentException
+     * if no paths are given, or a path is not valid.
+     * @throws XMLStreamException
+     * if a reader cannot be created for the file.
+     * @throws IOException
+     */
+    public static XMLRecordReader open(Path xmlPath, XMLBuilderContext context,
+        String... paths) throws XMLStreamException, IOException
+    {
+        FileChannel channel = FileChannel.open(xmlPath, StandardOpenOption.READ);
+        boolean opened = false;
+        try {
+            long size = channel.size();
+            ChannelInputStream inputStream = (size >= XMLBuilder.MEMORY_MAPPED_PARSE_THRESHOLD
+                ? ChannelInputStream.mapped(channel, size)
+                : ChannelInputStream.buffered(channel));
+            InputSource inputSource = new InputSource(inputStream);
+            inputSource.setSystemId(xmlPath.toUri().toString());
+            XMLRecordReader reader = new XMLRecordReader(inputSource, context,
+                new Closeable[] {inputStream, channel}, paths);
+            opened = true;
+            return reader;
+        } finally {
+            if (!opened) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * @return
+     * true if there is another record, which may require reading up to the
+     * end of the document to find out.
+     *
+     * @throws XMLBuilderRuntimeException
+     * if the document cannot be read.
+     */
+    public boolean hasNext() {
+        if (this.nextRecord == null && !this.finished) {
+            try {
+                this.nextRecord = this.subtreeReader.next();
+            } catch (XMLStreamException e) {
+                throw new XMLBuilderRuntimeException(e);
+            } catch (ParserConfigurationException e) {
+                throw new XMLBuilderRuntimeException(e);
+            }
+            this.finished = (this.nextRecord == null);
+        }
+        return this.nextRecord != null;
+    }
+
+    /**
+     * @return
+     * a builder for the root element of the next record's document.
+     *
+     * @throws NoSuchElementException
+     * if there are no more records.
+     * @throws XMLBuilderRuntimeException
+     * if the document cannot be read.
+     */
+    public XMLBuilder next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Element record = this.nextRecord;
+        this.nextRecord = null;
+        return new XMLBuilder(record, null, this.context);
+    }
+
+    /**
+     * @throws UnsupportedOperationException
+     * always, records cannot be removed.
+     */
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return
+     * a sequential stream of the remaining records, which closes this reader
+     * when the stream is closed. Call {@link Stream#parallel()} on the stream
+     * to process records on several threads.
+     */
+    public Stream<XMLBuilder> stream() {
+        Stream<XMLBuilder> stream = StreamSupport.stream(
+            Spliterators.spliteratorUnknownSize(this,
+                Spliterator.ORDERED | Spliterator.NONNULL),
+            false);
+        return stream.onClose(new Runnable() {
+            public void run() {
+                try {
+                    close();
+                } catch (IOException e) {
+                    throw new XMLBuilderRuntimeException(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop reading records, and close any file opened by this reader. An
+     * input source given to the constructor is not closed.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        this.finished = true;
+        this.nextRecord = null;
+        try {
+            this.subtreeReader.close();
+        } finally {
+            for (Closeable resource : this.resources) {
+                resource.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,417 @@
+/*
+ * Copyright 2008-2014 James Murty (www.jamesmurty.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is available from the GitHub code repository at:
+ * https://github.com/jmurty/java-xmlbuilder
+ */
+package com.jamesmurty.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.xml.transform.OutputKeys;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+/**
+ * A compiled plan for writing the documents of an {@link XMLTemplate}
+ * straight to bytes, without building or serializing a DOM for each document.
+ * <p>
+ * The markup of the template is serialized once, by a {@link DirectSerializer},
+ * and split around the template's slots into pre-encoded UTF-8 byte arrays.
+ * Rendering a document writes those arrays unchanged, and only escapes and
+ * encodes the slot values. Create a plan with
+ * {@link XMLTemplate#toRenderPlan(Properties)}.
+ * </p>
+ * <p>
+ * A render plan is immutable and may be used by many threads at once.
+ * </p>
+ */
+public class XMLRenderPlan {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int TEXT = 0;
+    private static final int ATTRIBUTE = 1;
+    private static final int CDATA = 2;
+
+    /**
+     * Reusable space for the encoded slot values of the current render.
+     */
+    private static final ThreadLocal<EncodedValues> threadValues =
+        new ThreadLocal<EncodedValues>() {
+            @Override
+            protected EncodedValues initialValue() {
+                return new EncodedValues();
+            }
+        };
+
+    /**
+     * The encoded markup before each slot, followed by the markup after the
+     * last slot, so there is always one more part than there are slots.
+     */
+    private final byte[][] staticParts;
+
+    private final String[] slotNames;
+
+    private final int[] slotKinds;
+
+    XMLRenderPlan(Document skeleton, Map<Node, XMLTemplate.Slot> slots,
+        Properties outputProperties)
+    {
+        Properties properties = new Properties();
+        if (outputProperties != null) {
+            properties.putAll(outputProperties);
+        }
+        String encoding = properties.getProperty(OutputKeys.ENCODING, "UTF-8");
+        if (!"UTF-8".equalsIgnoreCase(encoding.trim())) {
+            throw new IllegalArgumentException(
+                "Render plans only support UTF-8 output: " + encoding);
+        }
+        properties.setProperty(OutputKeys.ENCODING, "UTF-8");
+        DirectSerializer.Settings settings =
+            DirectSerializer.Settings.parse(properties);
+        if (settings == null) {
+            throw new IllegalArgumentException(
+                "Output properties not supported by render plans: "
+                + outputProperties);
+        }
+
+        PlanSerializer serializer = new PlanSerializer(slots);
+        try {
+            serializer.serialize(skeleton,
+                new DirectSerializer.Output(serializer.markup, settings), settings);
+        } catch (IOException e) {
+            // Appending to a StringBuilder cannot fail
+            throw new IllegalStateException(e);
+        }
+
+        int slotCount = serializer.slotNames.size();
+        this.staticParts = new byte[slotCount + 1][];
+        this.slotNames = serializer.slotNames.toArray(new String[slotCount]);
+        this.slotKinds = new int[slotCount];
+        int start = 0;
+        for (int i = 0; i < slotCount; i++) {
+            int end = serializer.slotOffsets.get(i);
+            this.staticParts[i] = encode(serializer.markup.substring(start, end));
+            this.slotKinds[i] = serializer.slotKinds.get(i);
+            start = end;
+        }
+        this.staticParts[slotCount] = encode(serializer.markup.substring(start));
+    }
+
+    /**
+     * Render a document to an output stream, with every slot replaced by the
+     * string form of the value of the same name. The stream is not flushed
+     * or closed.
+     *
+     * @param values
+     * the values of the template's slots, keyed by slot name.
+     * @param outputStream
+     * the destination of the UTF-8 encoded document, which should be buffered
+     * if it is costly to write to.
+     * @return
+     * the number of bytes written.
+     *
+     * @throws IllegalArgumentException
+     * if there is no value, or a null value, for any of the template's slots.
+     * @throws IOException
+     */
+    public long render(Map<String, ?> values, OutputStream outputStream)
+        throws IOException
+    {
+        EncodedValues encoded = encodeValues(values);
+        int start = 0;
+        for (int i = 0; i < this.slotNames.length; i++) {
+            outputStream.write(this.staticParts[i]);
+            outputStream.write(encoded.bytes, start, encoded.ends[i] - start);
+            start = encoded.ends[i];
+        }
+        outputStream.write(this.staticParts[this.slotNames.length]);
+        return getStaticLength() + encoded.length;
+    }
+
+    /**
+     * Render a document to a blocking channel, with every slot replaced by the
+     * string form of the value of the same name. A
+     * {@link GatheringByteChannel}, such as a socket channel, receives the
+     * whole document in as few writes as possible. The channel is not closed.
+     *
+     * @param values
+     * the values of the template's slots, keyed by slot name.
+     * @param channel
+     * the destination of the UTF-8 encoded document.
+     * @return
+     * the number of bytes written.
+     *
+     * @throws IllegalArgumentException
+     * if there is no value, or a null value, for any of the template's slots.
+     * @throws IOException
+     */
+    public long render(Map<String, ?> values, WritableByteChannel channel)
+        throws IOException
+    {
+        EncodedValues encoded = encodeValues(values);
+        ByteBuffer[] buffers = new ByteBuffer[this.staticParts.length + this.slotNames.length];
+        int start = 0;
+        for (int i = 0; i < this.slotNames.length; i++) {
+            buffers[i * 2] = ByteBuffer.wrap(this.staticParts[i]);
+            buffers[i * 2 + 1] = ByteBuffer.wrap(
+                encoded.bytes, start, encoded.ends[i] - start);
+            start = encoded.ends[i];
+        }
+        buffers[buffers.length - 1] = ByteBuffer.wrap(
+            this.staticParts[this.slotNames.length]);
+
+        if (channel instanceof GatheringByteChannel) {
+            GatheringByteChannel gatheringChannel = (GatheringByteChannel) channel;
+            int offset = 0;
+            while (offset < buffers.length) {
+                gatheringChannel.write(buffers, offset, buffers.length - offset);
+                while (offset < buffers.length && !buffers[offset].hasRemaining()) {
+                    offset++;
+                }
+            }
+        } else {
+            for (ByteBuffer buffer : buffers) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        }
+        return getStaticLength() + encoded.length;
+    }
+
+    /**
+     * @return
+     * the names of the slots filled by this plan, in output order. A name
+     * appears once for each time it is used in the template.
+     */
+    public List<String> getSlotNames() {
+        List<String> names = new ArrayList<String>(this.slotNames.length);
+        for (String name : this.slotNames) {
+            names.add(name);
+        }
+        return names;
+    }
+
+    /**
+     * @return
+     * the total length in bytes of the pre-encoded markup around the slots.
+     */
+    public long getStaticLength() {
+        long length = 0;
+        for (byte[] part : this.staticParts) {
+            length += part.length;
+        }
+        return length;
+    }
+
+    private EncodedValues encodeValues(Map<String, ?> values) {
+        EncodedValues encoded = threadValues.get();
+        encoded.reset(this.slotNames.length);
+        for (int i = 0; i < this.slotNames.length; i++) {
+            Object value = values.get(this.slotNames[i]);
+            if (value == null) {
+                throw new IllegalArgumentException(
+                    "No value for template slot: " + this.slotNames[i]);
+            }
+            encoded.append(value.toString(), this.slotKinds[i]);
+            encoded.ends[i] = encoded.length;
+        }
+        return encoded;
+    }
+
+    private static byte[] encode(String markup) {
+        return markup.getBytes(UTF_8);
+    }
+
+    /**
+     * Serializes a template's skeleton, recording the position and kind of
+     * each slot instead of writing the slot's placeholder.
+     */
+    private static class PlanSerializer extends DirectSerializer {
+        private final Map<Node, XMLTemplate.Slot> slots;
+        private final StringBuilder markup = new StringBuilder();
+        private final List<Integer> slotOffsets = new ArrayList<Integer>();
+        private final List<String> slotNames = new ArrayList<String>();
+        private final List<Integer> slotKinds = new ArrayList<Integer>();
+
+        PlanSerializer(Map<Node, XMLTemplate.Slot> slots) {
+            this.slots = slots;
+        }
+
+        @Override
+        protected void writeNode(Node node, Output out, NamespaceScope scope,
+            Settings settings, int depth) throws IOException
+        {
+            XMLTemplate.Slot slot = (node.getNodeType() == Node.CDATA_SECTION_NODE
+                ? this.slots.get(node) : null);
+            if (slot == null) {
+                super.writeNode(node, out, scope, settings, depth);
+                return;
+            }
+            out.write("<![CDATA[");
+            for (int i = 0; i < slot.names.length; i++) {
+                out.write(splitCDATAEnds(slot.literals[i]));
+                markSlot(out, slot.names[i], CDATA);
+            }
+            out.write(splitCDATAEnds(slot.literals[slot.names.length]));
+            out.write("]]>");
+        }
+
+        @Override
+        protected void writeText(Node text, Output out) throws IOException {
+            XMLTemplate.Slot slot = this.slots.get(text);
+            if (slot == null) {
+                super.writeText(text, out);
+            } else {
+                writeSlot(slot, out, TEXT);
+            }
+        }
+
+        @Override
+        protected void writeAttributeValue(Attr attr, Output out) throws IOException {
+            XMLTemplate.Slot slot = this.slots.get(attr);
+            if (slot == null) {
+                super.writeAttributeValue(attr, out);
+            } else {
+                writeSlot(slot, out, ATTRIBUTE);
+            }
+        }
+
+        private void writeSlot(XMLTemplate.Slot slot, Output out, int kind)
+            throws IOException
+        {
+            for (int i = 0; i < slot.names.length; i++) {
+                out.writeEscaped(slot.literals[i], kind == ATTRIBUTE);
+                markSlot(out, slot.names[i], kind);
+            }
+            out.writeEscaped(slot.literals[slot.names.length], kind == ATTRIBUTE);
+        }
+
+        private void markSlot(Output out, String name, int kind) throws IOException {
+            out.flush();
+            this.slotOffsets.add(this.markup.length());
+            this.slotNames.add(name);
+            this.slotKinds.add(kind);
+        }
+
+        private static String splitCDATAEnds(String data) {
+            return data.replace("]]>", "]]]]><![CDATA[>");
+        }
+    }
+
+    /**
+     * Slot values escaped and encoded as UTF-8 into a single growable array.
+     */
+    private static final class EncodedValues {
+        private byte[] bytes = new byte[1024];
+        private int length = 0;
+        /**
+         * The offset of the end of each encoded value.
+         */
+        private int[] ends = new int[16];
+
+        void reset(int slotCount) {
+            this.length = 0;
+            if (this.ends.length < slotCount) {
+                this.ends = new int[slotCount];
+            }
+        }
+
+        /**
+         * Append a value, escaped to match {@link DirectSerializer} output.
+         */
+        void append(String value, int kind) {
+            int valueLength = value.length();
+            for (int i = 0; i < valueLength; i++) {
+                // Room for the longest replacement below
+                ensureCapacity(16);
+                char c = value.charAt(i);
+                if (kind == CDATA) {
+                    if (c == ']' && value.startsWith("]]>", i)) {
+                        appendASCII("]]]]><![CDATA[>");
+                        i += 2;
+                        continue;
+                    }
+                } else {
+                    String replacement = null;
+                    switch (c) {
+                    case '&': replacement = "&amp;"; break;
+                    case '<': replacement = "&lt;"; break;
+                    case '>': replacement = "&gt;"; break;
+                    case '\r': replacement = "&#13;"; break;
+                    case '"': if (kind == ATTRIBUTE) replacement = "&quot;"; break;
+                    case '\n': if (kind == ATTRIBUTE) replacement = "&#10;"; break;
+                    case '\t': if (kind == ATTRIBUTE) replacement = "&#9;"; break;
+                    default: break;
+                    }
+                    if (replacement != null) {
+                        appendASCII(replacement);
+                        continue;
+                    }
+                }
+                if (c < 0x80) {
+                    this.bytes[this.length++] = (byte) c;
+                } else if (c < 0x800) {
+                    this.bytes[this.length++] = (byte) (0xC0 | (c >> 6));
+                    this.bytes[this.length++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < valueLength
+                    && Character.isLowSurrogate(value.charAt(i + 1)))
+                {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    this.bytes[this.length++] = (byte) (0xF0 | (codePoint >> 18));
+                    this.bytes[this.length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    this.bytes[this.length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    this.bytes[this.length++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    // Unpaired surrogates cannot be encoded
+                    this.bytes[this.length++] = (byte) '?';
+                } else {
+                    this.bytes[this.length++] = (byte) (0xE0 | (c >> 12));
+                    this.bytes[this.length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    this.bytes[this.length++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+        }
+
+        private void appendASCII(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                this.bytes[this.length++] = (byte) s.charAt(i);
+            }
+        }
+
+        private void ensureCapacity(int extra) {
+            if (this.length + extra > this.bytes.length) {
+                byte[] grown = new byte[Math.max(this.bytes.length * 2, this.length + extra)];
+                System.arraycopy(this.bytes, 0, grown, 0, this.length);
+                this.bytes = grown;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2008-2014 James Murty (www.jamesmurty.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is available from the GitHub code repository at:
+ * https://github.com/jmurty/java-xmlbuilder
+ */
+package com.jamesmurty.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Properties;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.TransformerException;
+
+import org.w3c.dom.Node;
+
+/**
+ * Serializes DOM nodes as XML text on behalf of the output methods of
+ * {@link XMLBuilder}, such as {@link XMLBuilder#toWriter(Writer, Properties)}
+ * and {@link XMLBuilder#asString()}.
+ * <p>
+ * Implementations must be safe to share between threads.
+ * </p>
+ */
+public interface XMLSerializer {
+
+    /**
+     * Serialize a Document or Element node, and all its descendants, to the
+     * given writer.
+     *
+     * @param node
+     * the Document or Element node to serialize.
+     * @param writer
+     * a writer to which the serialized XML is written.
+     * @param outputProperties
+     * output settings named by the {@link OutputKeys} constants. This
+     * parameter may be null or an empty Properties object, in which case the
+     * default output properties will be applied.
+     *
+     * @throws TransformerException
+     */
+    void serialize(Node node, Writer writer, Properties outputProperties)
+        throws TransformerException;
+
+    /**
+     * Serialize a Document or Element node, and all its descendants, to the
+     * given output stream in the encoding named by the
+     * {@link OutputKeys#ENCODING} output property, or UTF-8 by default. The
+     * stream is flushed but not closed.
+     * <p>
+     * This default implementation encodes the output of
+     * {@link #serialize(Node, Writer, Properties)} with an
+     * {@link OutputStreamWriter}. Implementations that can write bytes
+     * directly should override it.
+     * </p>
+     *
+     * @param node
+     * the Document or Element node to serialize.
+     * @param outputStream
+     * a stream to which the encoded XML is written.
+     * @param outputProperties
+     * output settings named by the {@link OutputKeys} constants. This
+     * parameter may be null or an empty Properties object, in which case the
+     * default output properties will be applied.
+     *
+     * @throws TransformerException
+     * if serialization fails, the encoding is not supported, or the stream
+     * cannot be written.
+     */
+    default void serialize(Node node, OutputStream outputStream,
+        Properties outputProperties) throws TransformerException
+    {
+        String encoding = (outputProperties == null
+            ? null : outputProperties.getProperty(OutputKeys.ENCODING));
+        try {
+            Writer writer = new OutputStreamWriter(outputStream,
+                (encoding == null ? "UTF-8" : encoding.trim()));
+            serialize(node, writer, outputProperties);
+            writer.flush();
+        } catch (IOException e) {
+            throw new TransformerException(e);
+        }
+    }
+
+}
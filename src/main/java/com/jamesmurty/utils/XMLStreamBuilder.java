@@ -0,0 +1,1281 @@
+/*
+ * Copyright 2008-2014 James Murty (www.jamesmurty.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is available from the GitHub code repository at:
+ * https://github.com/jmurty/java-xmlbuilder
+ */
+package com.jamesmurty.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import net.iharder.Base64;
+
+/**
+ * A streaming counterpart to {@link XMLBuilder} that writes XML markup
+ * directly to an {@link XMLStreamWriter} as builder methods are called,
+ * rather than building a DOM in memory and serializing it at the end.
+ * Memory use therefore stays flat regardless of the size of the document.
+ * <p>
+ * This class offers the same fluent building methods as XMLBuilder
+ * ({@link #element(String)}, {@link #attribute(String, String)},
+ * {@link #text(String)}, {@link #cdata(String)}, {@link #comment(String)},
+ * {@link #instruction(String, String)}, {@link #up()} and their synonyms)
+ * but, because markup is written as soon as possible, the document can
+ * only be built in order:
+ * </p>
+ * <ul>
+ * <li>Calling a method on a builder node automatically closes any of its
+ * descendant elements that are still open, so the same builder node can be
+ * used to add a series of child elements.</li>
+ * <li>Attributes and namespaces can only be added to an element before any
+ * content is written to it.</li>
+ * <li>Builder nodes for elements that have already been closed cannot be
+ * used again.</li>
+ * <li>Operations that need the document tree, such as XPath queries and
+ * inserting elements before the current element, are not supported and
+ * throw {@link UnsupportedOperationException}.</li>
+ * </ul>
+ * <p>
+ * No XML declaration is written by the <code>create</code> methods that take
+ * a {@link Writer} or {@link OutputStream}. To control the document prologue
+ * create your own {@link XMLStreamWriter}, write the declaration, and pass the
+ * writer to {@link #create(String, String, XMLStreamWriter)}.
+ * </p>
+ * <p>
+ * Call {@link #close()} once the document is complete to close any open
+ * elements and flush the output.
+ * </p>
+ */
+public class XMLStreamBuilder {
+
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    /**
+     * State shared by all builder nodes of a single streamed document.
+     */
+    private static final class Session {
+        private final XMLStreamWriter writer;
+        private final boolean ownsWriter;
+        private long[] openElementIds = new long[16];
+        private int depth = 0;
+        private long nextElementId = 0;
+        private boolean startTagOpen = false;
+        private boolean nonWhitespaceTextWritten = false;
+        private boolean closed = false;
+
+        private Session(XMLStreamWriter writer, boolean ownsWriter) {
+            this.writer = writer;
+            this.ownsWriter = ownsWriter;
+        }
+    }
+
+    private final Session session;
+
+    /**
+     * Depth of this builder's element in the document, where the root
+     * element has depth 1.
+     */
+    private final int depth;
+
+    /**
+     * Identifier used to detect whether this builder's element is still
+     * open, or has been closed and replaced by a sibling at the same depth.
+     */
+    private final long elementId;
+
+    private XMLStreamBuilder(Session session, int depth, long elementId) {
+        this.session = session;
+        this.depth = depth;
+        this.elementId = elementId;
+    }
+
+    /**
+     * Construct a streaming builder that writes a new XML document with a
+     * default namespace to the given stream writer. The root element is
+     * written immediately.
+     *
+     * @param name
+     * the name of the document's root element.
+     * @param namespaceURI
+     * default namespace URI for document, ignored if null or empty.
+     * @param writer
+     * the stream writer to which XML markup is written. The caller remains
+     * responsible for closing this writer.
+     * @return
+     * a builder node that can be used to add more nodes to the XML document.
+     *
+     * @throws XMLStreamException
+     */
+    public static XMLStreamBuilder create(String name, String namespaceURI,
+        XMLStreamWriter writer) throws XMLStreamException
+    {
+        return create(name, namespaceURI, new Session(writer, false));
+    }
+
+    /**
+     * Construct a streaming builder that writes a new XML document to the
+     * given stream writer. The root element is written immediately.
+     *
+     * @param name
+     * the name of the document's root element.
+     * @param writer
+     * the stream writer to which XML markup is written. The caller remains
+     * responsible for closing this writer.
+     * @return
+     * a builder node that can be used to add more nodes to the XML document.
+     *
+     * @throws XMLStreamException
+     */
+    public static XMLStreamBuilder create(String name, XMLStreamWriter writer)
+        throws XMLStreamException
+    {
+        return create(name, null, writer);
+    }
+
+    /**
+     * Construct a streaming builder that writes a new XML document with a
+     * default namespace to the given writer.
+     *
+     * @param name
+     * the name of the document's root element.
+     * @param namespaceURI
+     * default namespace URI for document, ignored if null or empty.
+     * @param writer
+     * the writer to which XML markup is written. The writer is flushed, but
+     * not closed, by {@link #close()}.
+     * @return
+     * a builder node that can be used to add more nodes to the XML document.
+     *
+     * @throws XMLStreamException
+     */
+    public static XMLStreamBuilder create(String name, String namespaceURI, Writer writer)
+        throws XMLStreamException
+    {
+        return create(name, namespaceURI,
+            new Session(OUTPUT_FACTORY.createXMLStreamWriter(writer), true));
+    }
+
+    /**
+     * Construct a streaming builder that writes a new XML document to the
+     * given writer.
+     *
+     * @param name
+     * the name of the document's root element.
+     * @param writer
+     * the writer to which XML markup is written. The writer is flushed, but
+     * not closed, by {@link #close()}.
+     * @return
+     * a builder node that can be used to add more nodes to the XML document.
+     *
+     * @throws XMLStreamException
+     */
+    public static XMLStreamBuilder create(String name, Writer writer)
+        throws XMLStreamException
+    {
+        return create(name, null, writer);
+    }
+
+    /**
+     * Construct a streaming builder that writes a new XML document with a
+     * default namespace to the given output stream, encoded as UTF-8.
+     *
+     * @param name
+     * the name of the document's root element.
+     * @param namespaceURI
+     * default namespace URI for document, ignored if null or empty.
+     * @param outputStream
+     * the stream to which XML markup is written. The stream is flushed, but
+     * not closed, by {@link #close()}.
+     * @return
+     * a builder node that can be used to add more nodes to the XML document.
+     *
+     * @throws XMLStreamException
+     */
+    public static XMLStreamBuilder create(String name, String namespaceURI,
+        OutputStream outputStream) throws XMLStreamException
+    {
+        return create(name, namespaceURI, new Session(
+            OUTPUT_FACTORY.createXMLStreamWriter(outputStream, "UTF-8"), true));
+    }
+
+    /**
+     * Construct a streaming builder that writes a new XML document to the
+     * given output stream, encoded as UTF-8.
+     *
+     * @param name
+     * the name of the document's root element.
+     * @param outputStream
+     * the stream to which XML markup is written. The stream is flushed, but
+     * not closed, by {@link #close()}.
+     * @return
+     * a builder node that can be used to add more nodes to the XML document.
+     *
+     * @throws XMLStreamException
+     */
+    public static XMLStreamBuilder create(String name, OutputStream outputStream)
+        throws XMLStreamException
+    {
+        return create(name, null, outputStream);
+    }
+
+    private static XMLStreamBuilder create(String name, String namespaceURI,
+        Session session) throws XMLStreamException
+    {
+        if (namespaceURI != null && namespaceURI.length() == 0) {
+            namespaceURI = null;
+        }
+        writeStartElement(session, name, namespaceURI);
+        return pushElement(session);
+    }
+
+    /**
+     * @return
+     * the stream writer to which this builder writes its XML markup.
+     */
+    public XMLStreamWriter getWriter() {
+        return session.writer;
+    }
+
+    /**
+     * Add a named XML element to the document as a child of this builder node,
+     * and return the builder node representing the new child.
+     *
+     * The new element will be assigned a namespace matching its qualified
+     * name prefix (if any) or the default namespace currently in scope.
+     *
+     * @param name
+     * the name of the XML element.
+     *
+     * @return
+     * a builder node representing the new child.
+     *
+     * @throws IllegalStateException
+     * if this builder's element has been closed, or already contains a text
+     * value that isn't purely whitespace.
+     */
+    public XMLStreamBuilder element(String name) {
+        return element(name, lookupNamespaceForQualifiedName(name));
+    }
+
+    /**
+     * Synonym for {@link #element(String)}.
+     *
+     * @param name
+     * the name of the XML element.
+     *
+     * @return
+     * a builder node representing the new child.
+     */
+    public XMLStreamBuilder elem(String name) {
+        return element(name);
+    }
+
+    /**
+     * Synonym for {@link #element(String)}.
+     *
+     * @param name
+     * the name of the XML element.
+     *
+     * @return
+     * a builder node representing the new child.
+     */
+    public XMLStreamBuilder e(String name) {
+        return element(name);
+    }
+
+    /**
+     * Add a named and namespaced XML element to the document as a child of
+     * this builder node, and return the builder node representing the new child.
+     * A namespace declaration is written for the element if its namespace
+     * is not already bound to the element's prefix.
+     *
+     * @param name
+     * the name of the XML element.
+     * @param namespaceURI
+     * a namespace URI
+     *
+     * @return
+     * a builder node representing the new child.
+     *
+     * @throws IllegalStateException
+     * if this builder's element has been closed, or already contains a text
+     * value that isn't purely whitespace.
+     */
+    public XMLStreamBuilder element(String name, String namespaceURI) {
+        enter();
+        if (session.nonWhitespaceTextWritten) {
+            throw new IllegalStateException(
+                "Cannot add sub-element to an element that contains"
+                + " a Text node that isn't purely whitespace");
+        }
+        try {
+            writeStartElement(session, name, namespaceURI);
+        } catch (XMLStreamException e) {
+            throw new XMLBuilderRuntimeException(e);
+        }
+        return pushElement(session);
+    }
+
+    /**
+     * Add a named XML element to the document as a child of this builder node
+     * for each of the given items, and pass a builder node for each new child
+     * to <code>content</code> along with its item, so it can write the
+     * child's attributes and content. The namespace of the new elements is
+     * resolved in the same way as for {@link #element(String)}, but only once.
+     *
+     * @param name
+     * the name of the XML elements.
+     * @param items
+     * the items to add an element for, in order.
+     * @param content
+     * writes the element added for each item.
+     *
+     * @return
+     * the builder node to which the elements were added.
+     *
+     * @throws IllegalStateException
+     * if this builder's element has been closed, or already contains a text
+     * value that isn't purely whitespace.
+     */
+    public <T> XMLStreamBuilder elements(String name, Iterable<T> items,
+        BiConsumer<? super XMLStreamBuilder, ? super T> content)
+    {
+        // Close any open children so their declarations are out of scope
+        enter();
+        return elements(name, lookupNamespaceForQualifiedName(name), items, content);
+    }
+
+    /**
+     * Add a named and namespaced XML element to the document as a child of
+     * this builder node for each of the given items, and pass a builder node
+     * for each new child to <code>content</code> along with its item.
+     *
+     * @param name
+     * the name of the XML elements.
+     * @param namespaceURI
+     * a namespace URI
+     * @param items
+     * the items to add an element for, in order.
+     * @param content
+     * writes the element added for each item.
+     *
+     * @return
+     * the builder node to which the elements were added.
+     *
+     * @throws IllegalStateException
+     * if this builder's element has been closed, or already contains a text
+     * value that isn't purely whitespace.
+     */
+    public <T> XMLStreamBuilder elements(String name, String namespaceURI,
+        Iterable<T> items, BiConsumer<? super XMLStreamBuilder, ? super T> content)
+    {
+        for (T item : items) {
+            content.accept(element(name, namespaceURI), item);
+        }
+        return this;
+    }
+
+    /**
+     * Add a named attribute value to the element represented by this builder
+     * node, and return the node representing the element to which the
+     * attribute was added (<strong>not</strong> the new attribute node).
+     *
+     * @param name
+     * the attribute's name.
+     * @param value
+     * the attribute's value.
+     *
+     * @return
+     * the builder node representing the element to which the attribute was
+     * added.
+     *
+     * @throws IllegalStateException
+     * if content has already been written to this builder's element.
+     */
+    public XMLStreamBuilder attribute(String name, String value) {
+        enterStartTag();
+        try {
+            session.writer.writeAttribute(name, value);
+        } catch (XMLStreamException e) {
+            throw new XMLBuilderRuntimeException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Synonym for {@link #attribute(String, String)}.
+     *
+     * @param name
+     * the attribute's name.
+     * @param value
+     * the attribute's value.
+     *
+     * @return
+     * the builder node representing the element to which the attribute was
+     * added.
+     */
+    public XMLStreamBuilder attr(String name, String value) {
+        return attribute(name, value);
+    }
+
+    /**
+     * Synonym for {@link #attribute(String, String)}.
+     *
+     * @param name
+     * the attribute's name.
+     * @param value
+     * the attribute's value.
+     *
+     * @return
+     * the builder node representing the element to which the attribute was
+     * added.
+     */
+    public XMLStreamBuilder a(String name, String value) {
+        return attribute(name, value);
+    }
+
+    /**
+     * Add named attribute values to the element represented by this builder
+     * node, in the map's iteration order, and return the node representing
+     * the element to which the attributes were added.
+     *
+     * @param attributes
+     * a map of attribute names to values.
+     *
+     * @return
+     * the builder node representing the element to which the attributes were
+     * added.
+     *
+     * @throws IllegalStateException
+     * if content has already been written to this builder's element.
+     */
+    public XMLStreamBuilder attributes(Map<String, String> attributes) {
+        enterStartTag();
+        try {
+            for (Map.Entry<String, String> entry : attributes.entrySet()) {
+                session.writer.writeAttribute(entry.getKey(), entry.getValue());
+            }
+        } catch (XMLStreamException e) {
+            throw new XMLBuilderRuntimeException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Add named attribute values, given as alternating names and values, to
+     * the element represented by this builder node, and return the node
+     * representing the element to which the attributes were added.
+     *
+     * @param namesAndValues
+     * each attribute's name followed by its value, such as
+     * <code>"id", "1", "type", "row"</code>.
+     *
+     * @return
+     * the builder node representing the element to which the attributes were
+     * added.
+     *
+     * @throws IllegalArgumentException
+     * if a name is not followed by a value.
+     * @throws IllegalStateException
+     * if content has already been written to this builder's element.
+     */
+    public XMLStreamBuilder attributes(String... namesAndValues) {
+        if (namesAndValues.length % 2 != 0) {
+            throw new IllegalArgumentException(
+                "Attribute names and values must be given in pairs, but got "
+                + namesAndValues.length + " strings");
+        }
+        enterStartTag();
+        try {
+            for (int i = 0; i < namesAndValues.length; i += 2) {
+                session.writer.writeAttribute(namesAndValues[i], namesAndValues[i + 1]);
+            }
+        } catch (XMLStreamException e) {
+            throw new XMLBuilderRuntimeException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Add a text value to the element represented by this builder node, and
+     * return the node representing the element to which the text
+     * was added (<strong>not</strong> the new text node).
+     *
+     * @param value
+     * the text value to add to the element.
+     *
+     * @return
+     * the builder node representing the element to which the text was added.
+     */
+    public XMLStreamBuilder text(String value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Illegal null text value");
+        }
+        enterContent();
+        try {
+            session.writer.writeCharacters(value);
+        } catch (XMLStreamException e) {
+            throw new XMLBuilderRuntimeException(e);
+        }
+        if (!session.nonWhitespaceTextWritten
+            && !XMLBuilder.isWhitespaceOnly(value))
+        {
+            session.nonWhitespaceTextWritten = true;
+        }
+        return this;
+    }
+
+    /**
+     * Synonym for {@link #text(String)}.
+     *
+     * @param value
+     * the text value to add to the element.
+     *
+     * @return
+     * the builder node representing the element to which the text was added.
+     */
+    public XMLStreamBuilder t(String value) {
+        return text(value);
+    }
+
+    /**
+     * Add a CDATA node with String content to the element represented by this
+     * builder node, and return the node representing the element to which the
+     * data was added (<strong>not</strong> the new CDATA node).
+     *
+     * @param data
+     * the String value that will be added to a CDATA element.
+     *
+     * @return
+     * the builder node representing the element to which the data was added.
+     */
+    public XMLStreamBuilder cdata(String data) {
+        enterContent();
+        try {
+            session.writer.writeCData(data);
+        } catch (XMLStreamException e) {
+            throw new XMLBuilderRuntimeException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Synonym for {@link #cdata(String)}.
+     *
+     * @param data
+     * the String value that will be added to a CDATA element.
+     *
+     * @return
+     * the builder node representing the element to which the data was added.
+     */
+    public XMLStreamBuilder data(String data) {
+        return cdata(data);
+    }
+
+    /**
+     * Synonym for {@link #cdata(String)}.
+     *
+     * @param data
+     * the String value that will be added to a CDATA element.
+     *
+     * @return
+     * the builder node representing the element to which the data was added.
+     */
+    public XMLStreamBuilder d(String data) {
+        return cdata(data);
+    }
+
+    /**
+     * Add a CDATA node with Base64-encoded byte data content to the element
+     * represented by this builder node, and return the node representing the
+     * element to which the data was added (<strong>not</strong> the new CDATA node).
+     *
+     * @param data
+     * the data value that will be Base64-encoded and added to a CDATA element.
+     *
+     * @return
+     * the builder node representing the element to which the data was added.
+     */
+    public XMLStreamBuilder cdata(byte[] data) {
+        return cdata(Base64.encodeBytes(data));
+    }
+
+    /**
+     * Synonym for {@link #cdata(byte[])}.
+     *
+     * @param data
+     * the data value that will be Base64-encoded and added to a CDATA element.
+     *
+     * @return
+     * the builder node representing the element to which the data was added.
+     */
+    public XMLStreamBuilder data(byte[] data) {
+        return cdata(data);
+    }
+
+    /**
+     * Synonym for {@link #cdata(byte[])}.
+     *
+     * @param data
+     * the data value that will be Base64-encoded and added to a CDATA element.
+     *
+     * @return
+     * the builder node representing the element to which the data was added.
+     */
+    public XMLStreamBuilder d(byte[] data) {
+        return cdata(data);
+    }
+
+    /**
+     * Add Base64-encoded content read from the given stream to the element
+     * represented by this builder node, and return the node representing the
+     * element to which the data was added (<strong>not</strong> the new CDATA
+     * node).
+     * <p>
+     * The data is read and encoded in chunks, each of which is written
+     * immediately as a separate CDATA section, so neither the raw bytes nor
+     * the encoded text are held in memory all at once. The stream is read to the
+     * end but not closed.
+     * </p>
+     *
+     * @param dataStream
+     * a stream of data that will be Base64-encoded and added to a CDATA element.
+     *
+     * @return
+     * the builder node representing the element to which the data was added.
+     *
+     * @throws IOException
+     * if the data cannot be read.
+     */
+    public XMLStreamBuilder cdata(InputStream dataStream) throws IOException {
+        enterContent();
+        Base64ChunkEncoder encoder = new Base64ChunkEncoder(dataStream);
+        try {
+            String chunk = encoder.nextChunk();
+            if (chunk == null) {
+                session.writer.writeCData("");
+            }
+            while (chunk != null) {
+                session.writer.writeCData(chunk);
+                chunk = encoder.nextChunk();
+            }
+        } catch (XMLStreamException e) {
+            throw new XMLBuilderRuntimeException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Synonym for {@link #cdata(InputStream)}.
+     *
+     * @param dataStream
+     * a stream of data that will be Base64-encoded and added to a CDATA element.
+     *
+     * @return
+     * the builder node representing the element to which the data was added.
+     *
+     * @throws IOException
+     * if the data cannot be read.
+     */
+    public XMLStreamBuilder data(InputStream dataStream) throws IOException {
+        return cdata(dataStream);
+    }
+
+    /**
+     * Synonym for {@link #cdata(InputStream)}.
+     *
+     * @param dataStream
+     * a stream of data that will be Base64-encoded and added to a CDATA element.
+     *
+     * @return
+     * the builder node representing the element to which the data was added.
+     *
+     * @throws IOException
+     * if the data cannot be read.
+     */
+    public XMLStreamBuilder d(InputStream dataStream) throws IOException {
+        return cdata(dataStream);
+    }
+
+    /**
+     * Add Base64-encoded content read from the given channel to the element
+     * represented by this builder node, and return the node representing the
+     * element to which the data was added (<strong>not</strong> the new CDATA
+     * node).
+     * <p>
+     * The data is read and encoded in chunks, each of which is written
+     * immediately as a separate CDATA section, so neither the raw bytes nor
+     * the encoded text are held in memory all at once. The channel is read to the
+     * end but not closed.
+     * </p>
+     *
+     * @param dataChannel
+     * a blocking channel of data that will be Base64-encoded and added to a CDATA element.
+     *
+     * @return
+     * the builder node representing the element to which the data was added.
+     *
+     * @throws IOException
+     * if the data cannot be read.
+     */
+    public XMLStreamBuilder cdata(ReadableByteChannel dataChannel) throws IOException {
+        ChannelInputStream dataStream = ChannelInputStream.buffered(dataChannel);
+        try {
+            return cdata(dataStream);
+        } finally {
+            dataStream.close();
+        }
+    }
+
+    /**
+     * Synonym for {@link #cdata(ReadableByteChannel)}.
+     *
+     * @param dataChannel
+     * a blocking channel of data that will be Base64-encoded and added to a CDATA element.
+     *
+     * @return
+     * the builder node representing the element to which the data was added.
+     *
+     * @throws IOException
+     * if the data cannot be read.
+     */
+    public XMLStreamBuilder data(ReadableByteChannel dataChannel) throws IOException {
+        return cdata(dataChannel);
+    }
+
+    /**
+     * Synonym for {@link #cdata(ReadableByteChannel)}.
+     *
+     * @param dataChannel
+     * a blocking channel of data that will be Base64-encoded and added to a CDATA element.
+     *
+     * @return
+     * the builder node representing the element to which the data was added.
+     *
+     * @throws IOException
+     * if the data cannot be read.
+     */
+    public XMLStreamBuilder d(ReadableByteChannel dataChannel) throws IOException {
+        return cdata(dataChannel);
+    }
+
+    /**
+     * Add a comment to the element represented by this builder node, and
+     * return the node representing the element to which the comment
+     * was added (<strong>not</strong> the new comment node).
+     *
+     * @param comment
+     * the comment to add to the element.
+     *
+     * @return
+     * the builder node representing the element to which the comment was added.
+     */
+    public XMLStreamBuilder comment(String comment) {
+        enterContent();
+        try {
+            session.writer.writeComment(comment);
+        } catch (XMLStreamException e) {
+            throw new XMLBuilderRuntimeException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Synonym for {@link #comment(String)}.
+     *
+     * @param comment
+     * the comment to add to the element.
+     *
+     * @return
+     * the builder node representing the element to which the comment was added.
+     */
+    public XMLStreamBuilder cmnt(String comment) {
+        return comment(comment);
+    }
+
+    /**
+     * Synonym for {@link #comment(String)}.
+     *
+     * @param comment
+     * the comment to add to the element.
+     *
+     * @return
+     * the builder node representing the element to which the comment was added.
+     */
+    public XMLStreamBuilder c(String comment) {
+        return comment(comment);
+    }
+
+    /**
+     * Add an instruction to the element represented by this builder node, and
+     * return the node representing the element to which the instruction
+     * was added (<strong>not</strong> the new instruction node).
+     *
+     * @param target
+     * the target value for the instruction.
+     * @param data
+     * the data value for the instruction
+     *
+     * @return
+     * the builder node representing the element to which the instruction was
+     * added.
+     */
+    public XMLStreamBuilder instruction(String target, String data) {
+        enterContent();
+        try {
+            session.writer.writeProcessingInstruction(target, data);
+        } catch (XMLStreamException e) {
+            throw new XMLBuilderRuntimeException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Synonym for {@link #instruction(String, String)}.
+     *
+     * @param target
+     * the target value for the instruction.
+     * @param data
+     * the data value for the instruction
+     *
+     * @return
+     * the builder node representing the element to which the instruction was
+     * added.
+     */
+    public XMLStreamBuilder inst(String target, String data) {
+        return instruction(target, data);
+    }
+
+    /**
+     * Synonym for {@link #instruction(String, String)}.
+     *
+     * @param target
+     * the target value for the instruction.
+     * @param data
+     * the data value for the instruction
+     *
+     * @return
+     * the builder node representing the element to which the instruction was
+     * added.
+     */
+    public XMLStreamBuilder i(String target, String data) {
+        return instruction(target, data);
+    }
+
+    /**
+     * Add a reference to the element represented by this builder node, and
+     * return the node representing the element to which the reference
+     * was added (<strong>not</strong> the new reference node).
+     *
+     * @param name
+     * the name value for the reference.
+     *
+     * @return
+     * the builder node representing the element to which the reference was
+     * added.
+     */
+    public XMLStreamBuilder reference(String name) {
+        enterContent();
+        try {
+            session.writer.writeEntityRef(name);
+        } catch (XMLStreamException e) {
+            throw new XMLBuilderRuntimeException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Synonym for {@link #reference(String)}.
+     *
+     * @param name
+     * the name value for the reference.
+     *
+     * @return
+     * the builder node representing the element to which the reference was
+     * added.
+     */
+    public XMLStreamBuilder ref(String name) {
+        return reference(name);
+    }
+
+    /**
+     * Synonym for {@link #reference(String)}.
+     *
+     * @param name
+     * the name value for the reference.
+     *
+     * @return
+     * the builder node representing the element to which the reference was
+     * added.
+     */
+    public XMLStreamBuilder r(String name) {
+        return reference(name);
+    }
+
+    /**
+     * Add an XML namespace attribute to this builder's element node.
+     *
+     * @param prefix
+     * a prefix for the namespace URI within the document, may be null
+     * or empty in which case a default "xmlns" attribute is created.
+     * @param namespaceURI
+     * a namespace uri
+     *
+     * @return
+     * the builder node representing the element to which the attribute was added.
+     *
+     * @throws IllegalStateException
+     * if content has already been written to this builder's element.
+     */
+    public XMLStreamBuilder namespace(String prefix, String namespaceURI) {
+        enterStartTag();
+        try {
+            writeNamespace(session.writer, prefix, namespaceURI);
+        } catch (XMLStreamException e) {
+            throw new XMLBuilderRuntimeException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Synonym for {@link #namespace(String, String)}.
+     *
+     * @param prefix
+     * a prefix for the namespace URI within the document, may be null
+     * or empty in which case a default xmlns attribute is created.
+     * @param namespaceURI
+     * a namespace uri
+     *
+     * @return
+     * the builder node representing the element to which the attribute was added.
+     */
+    public XMLStreamBuilder ns(String prefix, String namespaceURI) {
+        return namespace(prefix, namespaceURI);
+    }
+
+    /**
+     * Add an XML namespace attribute to this builder's element node
+     * without a prefix.
+     *
+     * @param namespaceURI
+     * a namespace uri
+     *
+     * @return
+     * the builder node representing the element to which the attribute was added.
+     */
+    public XMLStreamBuilder namespace(String namespaceURI) {
+        return namespace(null, namespaceURI);
+    }
+
+    /**
+     * Synonym for {@link #namespace(String)}.
+     *
+     * @param namespaceURI
+     * a namespace uri
+     *
+     * @return
+     * the builder node representing the element to which the attribute was added.
+     */
+    public XMLStreamBuilder ns(String namespaceURI) {
+        return namespace(namespaceURI);
+    }
+
+    /**
+     * Return the builder node representing the n<em>th</em> ancestor element
+     * of this node, or the root node if n exceeds the document's depth.
+     * Elements below the returned ancestor are closed the next time a
+     * method is called on the ancestor's builder node.
+     *
+     * @param steps
+     * the number of parent elements to step over while navigating up the chain
+     * of node ancestors. A steps value of 1 will find a node's parent, 2 will
+     * find its grandparent etc.
+     *
+     * @return
+     * the n<em>th</em> ancestor of this node, or the root node if this is
+     * reached before the n<em>th</em> parent is found.
+     *
+     * @throws IllegalStateException
+     * if this builder's element has been closed.
+     */
+    public XMLStreamBuilder up(int steps) {
+        assertOpen();
+        int ancestorDepth = Math.max(1, this.depth - steps);
+        return new XMLStreamBuilder(session, ancestorDepth,
+            session.openElementIds[ancestorDepth - 1]);
+    }
+
+    /**
+     * Return the builder node representing the parent of the current node.
+     *
+     * @return
+     * the parent of this node, or the root node if this method is called on the
+     * root node.
+     */
+    public XMLStreamBuilder up() {
+        return up(1);
+    }
+
+    /**
+     * @return
+     * the builder node representing the root element of the XML document.
+     */
+    public XMLStreamBuilder root() {
+        return up(this.depth);
+    }
+
+    /**
+     * Not supported in streaming mode, as XPath queries need the document tree.
+     *
+     * @throws UnsupportedOperationException
+     * always.
+     */
+    public Object xpathQuery(String xpath, QName type, NamespaceContext nsContext) {
+        throw unsupported("xpathQuery");
+    }
+
+    /**
+     * Not supported in streaming mode, as XPath queries need the document tree.
+     *
+     * @throws UnsupportedOperationException
+     * always.
+     */
+    public Object xpathQuery(String xpath, QName type) {
+        throw unsupported("xpathQuery");
+    }
+
+    /**
+     * Not supported in streaming mode, as XPath queries need the document tree.
+     *
+     * @throws UnsupportedOperationException
+     * always.
+     */
+    public XMLStreamBuilder xpathFind(String xpath, NamespaceContext nsContext) {
+        throw unsupported("xpathFind");
+    }
+
+    /**
+     * Not supported in streaming mode, as XPath queries need the document tree.
+     *
+     * @throws UnsupportedOperationException
+     * always.
+     */
+    public XMLStreamBuilder xpathFind(String xpath) {
+        throw unsupported("xpathFind");
+    }
+
+    /**
+     * Not supported in streaming mode, as markup preceding the current element
+     * has already been written.
+     *
+     * @throws UnsupportedOperationException
+     * always.
+     */
+    public XMLStreamBuilder elementBefore(String name) {
+        throw unsupported("elementBefore");
+    }
+
+    /**
+     * Not supported in streaming mode, as markup preceding the current element
+     * has already been written.
+     *
+     * @throws UnsupportedOperationException
+     * always.
+     */
+    public XMLStreamBuilder elementBefore(String name, String namespaceURI) {
+        throw unsupported("elementBefore");
+    }
+
+    /**
+     * Flush any markup buffered by the underlying stream writer.
+     *
+     * @throws XMLStreamException
+     */
+    public void flush() throws XMLStreamException {
+        session.writer.flush();
+    }
+
+    /**
+     * Close all open elements, end the document and flush the output. After
+     * this method is called no builder node for the document may be used.
+     * The underlying {@link Writer} or {@link OutputStream} is not closed.
+     *
+     * @throws XMLStreamException
+     */
+    public void close() throws XMLStreamException {
+        if (session.closed) {
+            return;
+        }
+        while (session.depth > 0) {
+            session.writer.writeEndElement();
+            session.depth--;
+        }
+        session.writer.writeEndDocument();
+        session.writer.flush();
+        if (session.ownsWriter) {
+            session.writer.close();
+        }
+        session.closed = true;
+    }
+
+    /**
+     * @return
+     * true if this builder node represents the same open element of the same
+     * streamed document as the other builder node.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (obj != null && obj instanceof XMLStreamBuilder) {
+            XMLStreamBuilder other = (XMLStreamBuilder) obj;
+            return this.session == other.session
+                && this.elementId == other.elementId;
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(session) * 31 + (int) elementId;
+    }
+
+    private static void writeStartElement(Session session, String name,
+        String namespaceURI) throws XMLStreamException
+    {
+        XMLStreamWriter writer = session.writer;
+        if (namespaceURI == null) {
+            writer.writeStartElement(name);
+            return;
+        }
+        String prefix = XMLBuilder.prefixFromQualifiedName(name);
+        String localName = (prefix == null ? name : name.substring(prefix.length() + 1));
+        String boundNamespaceURI = writer.getNamespaceContext()
+            .getNamespaceURI(prefix == null ? "" : prefix);
+        writer.writeStartElement(prefix == null ? "" : prefix, localName, namespaceURI);
+        if (!namespaceURI.equals(boundNamespaceURI)) {
+            writeNamespace(writer, prefix, namespaceURI);
+        }
+    }
+
+    private static void writeNamespace(XMLStreamWriter writer, String prefix,
+        String namespaceURI) throws XMLStreamException
+    {
+        if (prefix != null && prefix.length() > 0) {
+            writer.writeNamespace(prefix, namespaceURI);
+            writer.setPrefix(prefix, namespaceURI);
+        } else {
+            writer.writeDefaultNamespace(namespaceURI);
+            writer.setDefaultNamespace(namespaceURI);
+        }
+    }
+
+    private static XMLStreamBuilder pushElement(Session session) {
+        if (session.depth == session.openElementIds.length) {
+            long[] expanded = new long[session.depth * 2];
+            System.arraycopy(session.openElementIds, 0, expanded, 0, session.depth);
+            session.openElementIds = expanded;
+        }
+        long elementId = session.nextElementId++;
+        session.openElementIds[session.depth++] = elementId;
+        session.startTagOpen = true;
+        session.nonWhitespaceTextWritten = false;
+        return new XMLStreamBuilder(session, session.depth, elementId);
+    }
+
+    /**
+     * @return
+     * the namespace URI the writer has bound to the prefix of the given
+     * qualified name, or null if there is none.
+     */
+    private String lookupNamespaceForQualifiedName(String qualifiedName) {
+        String prefix = XMLBuilder.prefixFromQualifiedName(qualifiedName);
+        String namespaceURI = session.writer.getNamespaceContext()
+            .getNamespaceURI(prefix == null ? "" : prefix);
+        if (namespaceURI != null && namespaceURI.length() == 0) {
+            namespaceURI = null;
+        }
+        return namespaceURI;
+    }
+
+    /**
+     * @throws IllegalStateException
+     * if this builder's element is no longer open.
+     */
+    private void assertOpen() {
+        if (session.closed
+            || session.depth < this.depth
+            || session.openElementIds[this.depth - 1] != this.elementId)
+        {
+            throw new IllegalStateException(
+                "Cannot use a streaming builder node whose element has already"
+                + " been closed");
+        }
+    }
+
+    /**
+     * Prepare to write to this builder's element by closing any descendant
+     * elements that are still open.
+     */
+    private void enter() {
+        assertOpen();
+        if (session.depth > this.depth) {
+            try {
+                while (session.depth > this.depth) {
+                    session.writer.writeEndElement();
+                    session.depth--;
+                }
+            } catch (XMLStreamException e) {
+                throw new XMLBuilderRuntimeException(e);
+            }
+            // Closed child elements count as content of this element
+            session.startTagOpen = false;
+            session.nonWhitespaceTextWritten = false;
+        }
+    }
+
+    private void enterContent() {
+        enter();
+        session.startTagOpen = false;
+    }
+
+    private void enterStartTag() {
+        enter();
+        if (!session.startTagOpen) {
+            throw new IllegalStateException(
+                "Cannot add attributes or namespaces to a streamed element"
+                + " after its content has been written");
+        }
+    }
+
+    private UnsupportedOperationException unsupported(String methodName) {
+        return new UnsupportedOperationException(
+            "The " + methodName + " method requires a document tree and is not"
+            + " supported by " + getClass().getSimpleName()
+            + ", use XMLBuilder instead");
+    }
+
+}
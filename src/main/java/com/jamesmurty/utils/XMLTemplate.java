@@ -0,0 +1,393 @@
+/*
+ * Copyright 2008-2014 James Murty (www.jamesmurty.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is available from the GitHub code repository at:
+ * https://github.com/jmurty/java-xmlbuilder
+ */
+package com.jamesmurty.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+/**
+ * A document skeleton compiled once, from an {@link XMLBuilder} or from XML
+ * text, that can be quickly filled in with values to produce many similar
+ * documents.
+ * <p>
+ * Text content and attribute values may contain named slots written as
+ * <code>${name}</code>. When the template is compiled the position of every
+ * slot is recorded, so filling the template only copies the skeleton and sets
+ * the values of the nodes containing slots, with no searching:
+ * </p>
+ * <pre>
+ * XMLTemplate template = XMLTemplate.compile(
+ *     "&lt;Response status=\"${status}\"&gt;&lt;Message&gt;Hello ${name}&lt;/Message&gt;&lt;/Response&gt;");
+ * Map&lt;String, Object&gt; values = new HashMap&lt;String, Object&gt;();
+ * values.put("status", "OK");
+ * values.put("name", "World");
+ * String xml = template.fill(values).asString();
+ * </pre>
+ * <p>
+ * Slots must lie within the document's root element. A compiled template is
+ * immutable and may be filled by many threads at once.
+ * </p>
+ */
+public class XMLTemplate {
+
+    /**
+     * Matches a slot such as <code>${name}</code>, capturing its name.
+     */
+    private static final Pattern SLOT_PATTERN = Pattern.compile("\\$\\{([^}]+)\\}");
+
+    /**
+     * A private copy of the skeleton document, which is only ever read.
+     */
+    private final Document skeleton;
+
+    private final XMLBuilderContext context;
+
+    private final Slot[] slots;
+
+    private final Set<String> slotNames;
+
+    /**
+     * The number of nodes in each filled document, for metrics.
+     */
+    private final long nodeCount;
+
+    private XMLTemplate(Document skeleton, XMLBuilderContext context,
+        List<Slot> slots)
+    {
+        this.skeleton = skeleton;
+        this.context = context;
+        this.slots = slots.toArray(new Slot[slots.size()]);
+        Set<String> names = new LinkedHashSet<String>();
+        for (Slot slot : slots) {
+            Collections.addAll(names, slot.names);
+        }
+        this.slotNames = Collections.unmodifiableSet(names);
+        // Leave out the document node itself
+        this.nodeCount = XMLBuilder.countNodes(skeleton) - 1;
+    }
+
+    /**
+     * Compile a template from the entire document of the given builder. The
+     * builder's document is copied, so later changes to it do not affect the
+     * template.
+     *
+     * @param builder
+     * a builder for the template document.
+     * @return
+     * the compiled template.
+     *
+     * @throws ParserConfigurationException
+     */
+    public static XMLTemplate compile(XMLBuilder builder)
+        throws ParserConfigurationException
+    {
+        XMLBuilderContext context = builder.getExplicitContext();
+        Document skeleton = copyDocument(builder.getDocument(),
+            builder.getContext().getDocumentBuilderPool());
+        List<Slot> slots = new ArrayList<Slot>();
+        findSlots(skeleton.getDocumentElement(), new int[0], slots);
+        return new XMLTemplate(skeleton, context, slots);
+    }
+
+    /**
+     * Compile a template from XML text.
+     *
+     * @param xmlString
+     * an XML document string containing slots.
+     * @return
+     * the compiled template.
+     *
+     * @throws ParserConfigurationException
+     * @throws SAXException
+     * @throws IOException
+     */
+    public static XMLTemplate compile(String xmlString)
+        throws ParserConfigurationException, SAXException, IOException
+    {
+        return compile(xmlString, null);
+    }
+
+    /**
+     * Compile a template from XML text, using the given context to parse it
+     * and for the documents produced by the template.
+     *
+     * @param xmlString
+     * an XML document string containing slots.
+     * @param context
+     * the context used by the template and its documents, or null to use the
+     * default context.
+     * @return
+     * the compiled template.
+     *
+     * @throws ParserConfigurationException
+     * @throws SAXException
+     * @throws IOException
+     */
+    public static XMLTemplate compile(String xmlString, XMLBuilderContext context)
+        throws ParserConfigurationException, SAXException, IOException
+    {
+        return compile(XMLBuilder.parse(xmlString, context));
+    }
+
+    /**
+     * @return
+     * the names of all the slots in this template, in document order.
+     */
+    public Set<String> getSlotNames() {
+        return this.slotNames;
+    }
+
+    /**
+     * Compile a plan that renders this template directly to UTF-8 bytes,
+     * using the default output properties.
+     *
+     * @return
+     * a render plan for this template.
+     *
+     * @see #toRenderPlan(Properties)
+     */
+    public XMLRenderPlan toRenderPlan() {
+        return toRenderPlan(null);
+    }
+
+    /**
+     * Compile a plan that renders this template directly to UTF-8 bytes.
+     * The markup around the template's slots is serialized and encoded once,
+     * so rendering a document only escapes and encodes the slot values. Use
+     * a render plan instead of {@link #fill(Map)} when the filled document is
+     * only needed as output.
+     *
+     * @param outputProperties
+     * output settings named by the {@link OutputKeys} constants, which may be
+     * null. Settings not supported by {@link DirectSerializer}, and
+     * encodings other than UTF-8, are not allowed.
+     * @return
+     * a render plan for this template.
+     *
+     * @throws IllegalArgumentException
+     * if the output properties are not supported.
+     */
+    public XMLRenderPlan toRenderPlan(Properties outputProperties) {
+        Map<Node, Slot> slotNodes = new IdentityHashMap<Node, Slot>();
+        Element root = this.skeleton.getDocumentElement();
+        for (Slot slot : this.slots) {
+            slotNodes.put(slot.locate(root), slot);
+        }
+        return new XMLRenderPlan(this.skeleton, slotNodes, outputProperties);
+    }
+
+    /**
+     * Produce a new document from this template, with every slot replaced
+     * by the string form of the value of the same name.
+     *
+     * @param values
+     * the values of the template's slots, keyed by slot name.
+     * @return
+     * a builder for the root element of the new document.
+     *
+     * @throws IllegalArgumentException
+     * if there is no value, or a null value, for any of the template's slots.
+     * @throws ParserConfigurationException
+     */
+    public XMLBuilder fill(Map<String, ?> values)
+        throws ParserConfigurationException
+    {
+        XMLBuilderContext documentContext = (this.context != null
+            ? this.context : XMLBuilder.getDefaultContext());
+        XMLMetricsListener listener = documentContext.getMetricsListener();
+        long startNanos = (listener != XMLMetricsListener.NONE ? System.nanoTime() : 0);
+        Document document = copyDocument(
+            this.skeleton, documentContext.getDocumentBuilderPool());
+        Element root = document.getDocumentElement();
+        StringBuilder value = new StringBuilder();
+        for (Slot slot : this.slots) {
+            value.setLength(0);
+            for (int i = 0; i < slot.names.length; i++) {
+                value.append(slot.literals[i]);
+                Object slotValue = values.get(slot.names[i]);
+                if (slotValue == null) {
+                    throw new IllegalArgumentException(
+                        "No value for template slot: " + slot.names[i]);
+                }
+                value.append(slotValue);
+            }
+            value.append(slot.literals[slot.names.length]);
+
+            slot.locate(root).setNodeValue(value.toString());
+        }
+        if (listener != XMLMetricsListener.NONE) {
+            listener.documentBuilt(System.nanoTime() - startNanos, this.nodeCount);
+        }
+        return new XMLBuilder(root, null, this.context);
+    }
+
+    /**
+     * @return
+     * a new document, created by the given pool, containing copies of the
+     * child nodes of the given document other than any document type.
+     */
+    private static Document copyDocument(Document source, DocumentBuilderPool pool)
+        throws ParserConfigurationException
+    {
+        Document copy = pool.newDocument();
+        copy.setXmlStandalone(source.getXmlStandalone());
+        for (Node child = source.getFirstChild(); child != null;
+            child = child.getNextSibling())
+        {
+            if (child.getNodeType() != Node.DOCUMENT_TYPE_NODE) {
+                copy.appendChild(copy.importNode(child, true));
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Record the slots in the given element's attributes and descendants.
+     *
+     * @param path
+     * the child indexes leading from the root element to the given element.
+     */
+    private static void findSlots(Element element, int[] path, List<Slot> slots) {
+        NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Attr attr = (Attr) attributes.item(i);
+            Slot slot = Slot.parse(attr.getValue(), path);
+            if (slot != null) {
+                if (attr.getNamespaceURI() != null) {
+                    slot.attributeNamespaceURI = attr.getNamespaceURI();
+                    slot.attributeName = attr.getLocalName();
+                } else {
+                    slot.attributeName = attr.getName();
+                }
+                slots.add(slot);
+            }
+        }
+        int index = 0;
+        for (Node child = element.getFirstChild(); child != null;
+            child = child.getNextSibling(), index++)
+        {
+            int[] childPath = new int[path.length + 1];
+            System.arraycopy(path, 0, childPath, 0, path.length);
+            childPath[path.length] = index;
+            switch (child.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                findSlots((Element) child, childPath, slots);
+                break;
+            case Node.TEXT_NODE:
+            case Node.CDATA_SECTION_NODE:
+                Slot slot = Slot.parse(child.getNodeValue(), childPath);
+                if (slot != null) {
+                    slots.add(slot);
+                }
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    /**
+     * The location of a text node or attribute containing slots, and the
+     * literal text around those slots.
+     */
+    static final class Slot {
+        private final int[] path;
+        private String attributeNamespaceURI = null;
+        private String attributeName = null;
+        /**
+         * The literal text before each slot, followed by the text after the
+         * last slot, so there is always one more literal than there are names.
+         */
+        final String[] literals;
+        final String[] names;
+
+        private Slot(int[] path, String[] literals, String[] names) {
+            this.path = path;
+            this.literals = literals;
+            this.names = names;
+        }
+
+        /**
+         * @return
+         * the text node or attribute this slot refers to, in the document
+         * with the given root element.
+         */
+        Node locate(Element root) {
+            Node node = root;
+            for (int index : this.path) {
+                node = node.getFirstChild();
+                for (int i = 0; i < index; i++) {
+                    node = node.getNextSibling();
+                }
+            }
+            if (this.attributeName == null) {
+                return node;
+            } else if (this.attributeNamespaceURI == null) {
+                return ((Element) node).getAttributeNode(this.attributeName);
+            } else {
+                return ((Element) node).getAttributeNodeNS(
+                    this.attributeNamespaceURI, this.attributeName);
+            }
+        }
+
+        /**
+         * @return
+         * a slot for the given value, or null if it contains no slots.
+         */
+        static Slot parse(String value, int[] path) {
+            Matcher matcher = SLOT_PATTERN.matcher(value);
+            List<String> literals = new ArrayList<String>();
+            List<String> names = new ArrayList<String>();
+            int end = 0;
+            while (matcher.find()) {
+                literals.add(value.substring(end, matcher.start()));
+                names.add(matcher.group(1));
+                end = matcher.end();
+            }
+            if (names.isEmpty()) {
+                return null;
+            }
+            literals.add(value.substring(end));
+            return new Slot(path,
+                literals.toArray(new String[literals.size()]),
+                names.toArray(new String[names.size()]));
+        }
+    }
+
+}
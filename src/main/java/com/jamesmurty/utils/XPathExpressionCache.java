@@ -0,0 +1,265 @@
+/*
+ * Copyright 2008-2014 James Murty (www.jamesmurty.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is available from the GitHub code repository at:
+ * https://github.com/jmurty/java-xmlbuilder
+ */
+package com.jamesmurty.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+
+/**
+ * A bounded cache of compiled {@link XPathExpression}s, keyed by expression
+ * string and {@link NamespaceContext}, used by {@link XMLBuilder} to avoid
+ * looking up an {@link XPathFactory} and compiling the same expressions over
+ * and over again.
+ * <p>
+ * Compiled XPath expressions are not thread-safe, so each thread keeps its
+ * own XPathFactory and its own least-recently-used set of up to
+ * {@link #getMaximumSize()} expressions. The cache can be safely shared
+ * between threads, and its hit and miss counters cover all threads.
+ * </p>
+ * <p>
+ * A {@link NamespaceContextImpl} is keyed by an immutable copy of its
+ * mappings, so separate contexts with the same mappings, such as those made
+ * by {@link XMLBuilder#buildDocumentNamespaceContext()}, share compiled
+ * expressions, and the cache never holds on to the contexts. Contexts that
+ * look up namespaces in a DOM element are not cached, so the cache never
+ * keeps a document in memory. Subclasses of NamespaceContextImpl are
+ * compared by identity, and other namespace contexts with their
+ * <code>equals</code> method, so reuse the same context object when running
+ * an expression repeatedly. Prefixes are resolved when an expression is
+ * compiled, so such a context must not change after it has been used.
+ * </p>
+ */
+public class XPathExpressionCache {
+
+    public static final int DEFAULT_MAXIMUM_SIZE = 128;
+
+    private final int maximumSize;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final ThreadLocal<XPathFactory> threadFactories =
+        new ThreadLocal<XPathFactory>();
+
+    private final ThreadLocal<Map<Key, XPathExpression>> threadExpressions =
+        new ThreadLocal<Map<Key, XPathExpression>>() {
+            @Override
+            protected Map<Key, XPathExpression> initialValue() {
+                return new LinkedHashMap<Key, XPathExpression>(16, 0.75f, true) {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected boolean removeEldestEntry(
+                        Map.Entry<Key, XPathExpression> eldest)
+                    {
+                        return size() > maximumSize;
+                    }
+                };
+            }
+        };
+
+    /**
+     * Create a cache that keeps up to {@link #DEFAULT_MAXIMUM_SIZE}
+     * expressions per thread.
+     */
+    public XPathExpressionCache() {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+
+    /**
+     * @param maximumSize
+     * the maximum number of compiled expressions each thread keeps.
+     */
+    public XPathExpressionCache(int maximumSize) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException(
+                "Maximum cache size must be positive: " + maximumSize);
+        }
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * Return a compiled expression for the given XPath and namespace
+     * context, compiling and caching it if it is not already in this
+     * thread's cache.
+     *
+     * @param xpath
+     * an XPath expression
+     * @param nsContext
+     * a mapping of prefixes to namespace URIs that allows the XPath expression
+     * to use namespaces, or null for a non-namespaced document.
+     * @return
+     * the compiled expression, which must only be used by the calling thread.
+     *
+     * @throws XPathExpressionException
+     * if the XPath is invalid.
+     */
+    public XPathExpression getExpression(String xpath, NamespaceContext nsContext)
+        throws XPathExpressionException
+    {
+        return getExpression(xpath, nsContext, XMLMetricsListener.NONE);
+    }
+
+    /**
+     * Return a compiled expression as for
+     * {@link #getExpression(String, NamespaceContext)}, and tell the given
+     * listener whether it was cached.
+     */
+    XPathExpression getExpression(String xpath, NamespaceContext nsContext,
+        XMLMetricsListener metricsListener) throws XPathExpressionException
+    {
+        Object contextKey = nsContext;
+        boolean identity = false;
+        if (nsContext instanceof NamespaceContextImpl) {
+            NamespaceContextImpl contextImpl = (NamespaceContextImpl) nsContext;
+            if (contextImpl.element != null) {
+                // Never keep a DOM element reachable from the cache
+                missCount.incrementAndGet();
+                metricsListener.xpathCacheLookup(false);
+                return compile(xpath, nsContext);
+            }
+            contextKey = contextImpl.getBindings();
+            if (contextKey == null) {
+                // A subclass may resolve prefixes beyond its mappings
+                contextKey = nsContext;
+                identity = true;
+            }
+        }
+        Map<Key, XPathExpression> expressions = threadExpressions.get();
+        Key key = new Key(xpath, contextKey, identity);
+        XPathExpression expression = expressions.get(key);
+        if (expression != null) {
+            hitCount.incrementAndGet();
+            metricsListener.xpathCacheLookup(true);
+            return expression;
+        }
+        missCount.incrementAndGet();
+        metricsListener.xpathCacheLookup(false);
+        expression = compile(xpath, nsContext);
+        expressions.put(key, expression);
+        return expression;
+    }
+
+    private XPathExpression compile(String xpath, NamespaceContext nsContext)
+        throws XPathExpressionException
+    {
+        XPath xPath = getXPathFactory().newXPath();
+        if (nsContext != null) {
+            xPath.setNamespaceContext(nsContext);
+        }
+        return xPath.compile(xpath);
+    }
+
+    /**
+     * @return
+     * the maximum number of compiled expressions each thread keeps.
+     */
+    public int getMaximumSize() {
+        return this.maximumSize;
+    }
+
+    /**
+     * @return
+     * the number of requests, from all threads, served from the cache.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return
+     * the number of requests, from all threads, that required an expression
+     * to be compiled.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Discard the calling thread's cached expressions.
+     */
+    public void clear() {
+        threadExpressions.remove();
+    }
+
+    private XPathFactory getXPathFactory() {
+        XPathFactory factory = threadFactories.get();
+        if (factory == null) {
+            factory = XPathFactory.newInstance();
+            threadFactories.set(factory);
+        }
+        return factory;
+    }
+
+    private static final class Key {
+        private final String xpath;
+        private final Object contextKey;
+        private final boolean identity;
+        private final int hashCode;
+
+        /**
+         * @param contextKey
+         * the namespace context, the immutable mappings of a
+         * {@link NamespaceContextImpl}, or null.
+         * @param identity
+         * true if the context must be compared by identity.
+         */
+        private Key(String xpath, Object contextKey, boolean identity) {
+            this.xpath = xpath;
+            this.contextKey = contextKey;
+            this.identity = identity;
+            this.hashCode = xpath.hashCode() * 31
+                + (contextKey == null ? 0
+                    : identity ? System.identityHashCode(contextKey)
+                    : contextKey.hashCode());
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            if (this.identity || other.identity) {
+                return this.identity == other.identity
+                    && this.contextKey == other.contextKey
+                    && this.xpath.equals(other.xpath);
+            }
+            return this.xpath.equals(other.xpath)
+                && (this.contextKey == null
+                    ? other.contextKey == null
+                    : this.contextKey.equals(other.contextKey));
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hashCode;
+        }
+    }
+
+}
@@ -1,22 +1,56 @@
 package com.jamesmurty.utils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Properties;
-
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import java.util.function.ToLongFunction;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.FactoryConfigurationError;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.TransformerException;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpressionException;
 
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
 import junit.framework.TestCase;
 import net.iharder.Base64;
 
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.InputSource;
@@ -549,4 +583,1638 @@ public class TestXmlBuilder extends TestCase {
             writer.toString());
     }
 
+
+    public void testStreamingBuilder() throws Exception {
+        /* Build XML document in-place, writing straight to the output */
+        StringWriter writer = new StringWriter();
+        XMLStreamBuilder builder = XMLStreamBuilder.create("Projects", writer)
+            .e("java-xmlbuilder")
+                .a("language", "Java")
+                .a("scm","SVN")
+                .e("Location")
+                    .a("type", "URL")
+                    .t("http://code.google.com/p/java-xmlbuilder/")
+                .up()
+            .up()
+            .e("JetS3t")
+                .a("language", "Java")
+                .a("scm","CVS")
+                .e("Location")
+                    .a("type", "URL")
+                    .t("http://jets3t.s3.amazonaws.com/index.html");
+        builder.close();
+        assertEquals(EXAMPLE_XML_DOC, writer.toString());
+
+        /* Build XML document in segments, reusing builder nodes */
+        writer = new StringWriter();
+        XMLStreamBuilder projectsB = XMLStreamBuilder.create("Projects", writer);
+        projectsB.e("java-xmlbuilder")
+                .a("language", "Java")
+                .a("scm","SVN")
+                .e("Location")
+                    .a("type", "URL")
+                    .t("http://code.google.com/p/java-xmlbuilder/");
+        XMLStreamBuilder jets3tB = projectsB.e("JetS3t")
+                .a("language", "Java")
+                .a("scm","CVS");
+        jets3tB.e("Location")
+                    .a("type", "URL")
+                    .t("http://jets3t.s3.amazonaws.com/index.html");
+        projectsB.close();
+        assertEquals(EXAMPLE_XML_DOC, writer.toString());
+    }
+
+    public void testStreamingBuilderNamespacesAndNodeTypes() throws Exception {
+        StringWriter writer = new StringWriter();
+        XMLStreamBuilder builder = XMLStreamBuilder
+            .create("NamespaceTest", "urn:default", writer)
+                .namespace("prefix1", "urn:ns1")
+                .element("NSDefaultImplicit").up()
+                .element("prefix1:NS1WithPrefixImplicit").up()
+                .element("NS2Explicit", "urn:ns2")
+                    .comment("A comment")
+                    .instruction("target", "data")
+                    .cdata("Some <CDATA>")
+                    .text("Some <text> & more")
+                .up();
+        builder.close();
+        assertEquals(
+            "<NamespaceTest xmlns=\"urn:default\" xmlns:prefix1=\"urn:ns1\">"
+            + "<NSDefaultImplicit></NSDefaultImplicit>"
+            + "<prefix1:NS1WithPrefixImplicit></prefix1:NS1WithPrefixImplicit>"
+            + "<NS2Explicit xmlns=\"urn:ns2\"><!--A comment--><?target data?>"
+            + "<![CDATA[Some <CDATA>]]>Some &lt;text&gt; &amp; more</NS2Explicit>"
+            + "</NamespaceTest>",
+            writer.toString());
+    }
+
+    public void testStreamingBuilderFailsOnOutOfOrderOperations() throws Exception {
+        XMLStreamBuilder root = XMLStreamBuilder.create("Root", new StringWriter());
+        XMLStreamBuilder first = root.e("First");
+        root.e("Second");
+
+        // Builders for elements that have been closed cannot be used
+        try {
+            first.e("TooLate");
+            fail("Closed streaming builder node should not be usable");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        // Attributes must be written before element content
+        try {
+            root.a("attr", "value");
+            fail("Attribute after element content should fail");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        // Same text node restriction as the DOM builder
+        XMLStreamBuilder text = root.e("Text").t("Value");
+        try {
+            text.e("Child");
+            fail("Element after text should fail");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        // Operations that need a document tree fail clearly
+        try {
+            root.xpathFind("//First");
+            fail("XPath queries are not supported in streaming mode");
+        } catch (UnsupportedOperationException e) {
+            assertTrue(e.getMessage().contains("xpathFind"));
+        }
+        try {
+            text.elementBefore("Before");
+            fail("elementBefore is not supported in streaming mode");
+        } catch (UnsupportedOperationException e) {
+            assertTrue(e.getMessage().contains("elementBefore"));
+        }
+    }
+
+    public void testDocumentBuilderPool() throws Exception {
+        DocumentBuilderPool defaultPool = XMLBuilder.getDocumentBuilderPool();
+        assertSame(defaultPool, XMLBuilder.getDocumentBuilderPool());
+        assertTrue(defaultPool.isNamespaceAware());
+
+        // Plug in a specific factory implementation, skipping JAXP lookup
+        DocumentBuilderPool pool = DocumentBuilderPool.newInstance(
+            defaultPool.getFactory().getClass().getName(), null, true);
+        XMLBuilder.setDocumentBuilderPool(pool);
+        try {
+            assertSame(pool, XMLBuilder.getDocumentBuilderPool());
+            assertEquals(EXAMPLE_XML_DOC, XMLBuilder.parse(EXAMPLE_XML_DOC).asString());
+
+            // Pooled builders are reusable, including after a failed parse
+            try {
+                XMLBuilder.parse("<Broken>");
+                fail("Invalid XML should not parse");
+            } catch (SAXException e) {
+                // Expected
+            }
+            assertEquals(EXAMPLE_XML_DOC, XMLBuilder.parse(EXAMPLE_XML_DOC).asString());
+            assertEquals("<Fresh/>", XMLBuilder.create("Fresh").asString());
+
+            // Pool is safe to use from many threads at once
+            final String[] results = new String[8];
+            Thread[] threads = new Thread[results.length];
+            for (int i = 0; i < threads.length; i++) {
+                final int index = i;
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int j = 0; j < 50; j++) {
+                                results[index] = XMLBuilder.parse(EXAMPLE_XML_DOC)
+                                    .e("Thread").t("" + index).up().asString();
+                            }
+                        } catch (Exception e) {
+                            results[index] = e.toString();
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            for (int i = 0; i < threads.length; i++) {
+                threads[i].join();
+                assertEquals(EXAMPLE_XML_DOC.replace("</Projects>",
+                    "<Thread>" + i + "</Thread></Projects>"), results[i]);
+            }
+        } finally {
+            XMLBuilder.setDocumentBuilderPool(null);
+        }
+        assertNotSame(pool, XMLBuilder.getDocumentBuilderPool());
+    }
+
+    public void testCachedTransformerSerializer() throws Exception {
+        assertTrue(XMLBuilder.getSerializer() instanceof TransformerSerializer);
+        XMLBuilder builder = XMLBuilder.parse(EXAMPLE_XML_DOC);
+
+        // Alternate between distinct output settings, each reusing its own Transformer
+        Properties indented = new Properties();
+        indented.put(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        indented.put(OutputKeys.INDENT, "yes");
+        for (int i = 0; i < 3; i++) {
+            assertEquals(EXAMPLE_XML_DOC, builder.asString());
+            assertTrue(builder.asString(indented).contains("\n"));
+            assertTrue(builder.asString(null).startsWith("<?xml"));
+        }
+
+        // Custom serializers can be plugged in
+        final int[] calls = new int[1];
+        XMLBuilder.setSerializer(new XMLSerializer() {
+            public void serialize(Node node, java.io.Writer writer,
+                Properties outputProperties) throws TransformerException
+            {
+                calls[0]++;
+                new TransformerSerializer().serialize(node, writer, outputProperties);
+            }
+        });
+        try {
+            assertEquals("<Location type=\"URL\">http://code.google.com/p/java-xmlbuilder/"
+                + "</Location>", builder.xpathFind("//Location").elementAsString());
+            assertEquals(1, calls[0]);
+        } finally {
+            XMLBuilder.setSerializer(null);
+        }
+        assertTrue(XMLBuilder.getSerializer() instanceof TransformerSerializer);
+    }
+
+    public void testDirectSerializerConformsToTransformer() throws Exception {
+        XMLSerializer transformerSerializer = new TransformerSerializer();
+        XMLSerializer directSerializer = new DirectSerializer();
+
+        List<XMLBuilder> documents = new ArrayList<XMLBuilder>();
+        documents.add(XMLBuilder.parse(EXAMPLE_XML_DOC));
+        documents.add(XMLBuilder.create("NamespaceTest", "urn:default")
+            .namespace("prefix1", "urn:ns1")
+            .element("NSDefaultImplicit").up()
+            .element("NSDefaultExplicit", "urn:default").up()
+            .element("NS1Explicit", "urn:ns1").up()
+            .element("prefix1:NS1WithPrefixExplicit", "urn:ns1").up()
+            .element("prefix1:NS1WithPrefixImplicit").up()
+            .element("prefix2:Undeclared", "urn:ns2")
+                .element("prefix2:Nested", "urn:ns2").up()
+                .element("Redefined", "urn:ns3").root());
+        documents.add(XMLBuilder.create("Escaping")
+            .e("Text").t("Markup <&> \"quotes\" 'apos' \r\n\t\u00e9\u4e2d").up()
+            .e("Attribute").a("value", "Markup <&> \"quotes\" 'apos' \r\n\t\u00e9\u4e2d").up()
+            .e("CDATA").cdata("Unescaped <&> with ]]> terminator").up()
+            .e("Comment").comment(" A <comment> ").up()
+            .e("Instruction").instruction("target", "some data").up()
+            .e("Empty").up()
+            .document().comment("Trailing comment")
+            .root().insertInstruction("leading", "instruction"));
+        documents.add(XMLBuilder.parse(
+            "<Root xmlns='urn:a' xmlns:b='urn:b'>\n  <b:Child b:attr='1' plain='2'>\n"
+            + "    <Grandchild xmlns='urn:c' xmlns:b='urn:b'/>\n  </b:Child>\n</Root>"));
+
+        // The Transformer's default output method orders the root element's
+        // namespace declarations differently, so always use the "xml" method.
+        List<Properties> settings = new ArrayList<Properties>();
+        Properties defaults = new Properties();
+        defaults.put(OutputKeys.METHOD, "xml");
+        settings.add(defaults);
+        Properties omitDeclaration = new Properties();
+        omitDeclaration.put(OutputKeys.METHOD, "xml");
+        omitDeclaration.put(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        settings.add(omitDeclaration);
+        for (String encoding : new String[] {"US-ASCII", "ISO-8859-1", "UTF-16"}) {
+            Properties encoded = new Properties();
+            encoded.put(OutputKeys.METHOD, "xml");
+            encoded.put(OutputKeys.ENCODING, encoding);
+            settings.add(encoded);
+        }
+
+        for (XMLBuilder document : documents) {
+            for (Properties outputProperties : settings) {
+                StringWriter expected = new StringWriter();
+                transformerSerializer.serialize(
+                    document.getDocument(), expected, outputProperties);
+                StringWriter actual = new StringWriter();
+                directSerializer.serialize(document.getDocument(), actual, outputProperties);
+                assertEquals(expected.toString(), actual.toString());
+
+                // Serialize just the root element too
+                expected = new StringWriter();
+                transformerSerializer.serialize(
+                    document.root().getElement(), expected, outputProperties);
+                StringBuilder appendable = new StringBuilder();
+                ((DirectSerializer) directSerializer).serialize(
+                    document.root().getElement(), appendable, outputProperties);
+                assertEquals(expected.toString(), appendable.toString());
+            }
+        }
+    }
+
+    public void testDirectSerializer() throws Exception {
+        XMLBuilder.setSerializer(new DirectSerializer());
+        try {
+            // Entity references are kept, not dropped
+            assertEquals("<Doc>&custom;</Doc>",
+                XMLBuilder.create("Doc").reference("custom").asString());
+
+            // Indenting replaces whitespace-only text, but not mixed content
+            Properties outputProperties = new Properties();
+            outputProperties.put(OutputKeys.OMIT_XML_DECLARATION, "yes");
+            outputProperties.put(OutputKeys.INDENT, "yes");
+            outputProperties.put("{http://xml.apache.org/xslt}indent-amount", "2");
+            assertEquals(
+                "<Projects>\n"
+                + "  <java-xmlbuilder language=\"Java\" scm=\"SVN\">\n"
+                + "    <Location type=\"URL\">http://code.google.com/p/java-xmlbuilder/</Location>\n"
+                + "  </java-xmlbuilder>\n"
+                + "  <Mixed>Text<Child/></Mixed>\n"
+                + "</Projects>\n",
+                XMLBuilder.parse(EXAMPLE_XML_DOC_START.substring(0,
+                        EXAMPLE_XML_DOC_START.indexOf("<JetS3t"))
+                    + "\n<Mixed>Text<Child/></Mixed></Projects>")
+                    .asString(outputProperties));
+
+            // Unsupported output settings are handled by the fallback serializer
+            outputProperties = new Properties();
+            outputProperties.put(OutputKeys.METHOD, "html");
+            assertEquals("<p>text</p>",
+                XMLBuilder.create("p").t("text").asString(outputProperties).trim());
+        } finally {
+            XMLBuilder.setSerializer(null);
+        }
+    }
+
+    public void testXPathExpressionCache() throws Exception {
+        XPathExpressionCache cache = new XPathExpressionCache(2);
+        XMLBuilder.setXPathExpressionCache(cache);
+        try {
+            XMLBuilder builder = XMLBuilder.parse(EXAMPLE_XML_DOC);
+            NamespaceContext nsContext = builder.buildDocumentNamespaceContext();
+
+            assertEquals("Location", builder.xpathFind("//Location").getElement().getNodeName());
+            assertEquals(0, cache.getHitCount());
+            assertEquals(1, cache.getMissCount());
+
+            // Repeated queries reuse the compiled expression
+            assertEquals("Location", builder.xpathFind("//Location").getElement().getNodeName());
+            assertEquals("JetS3t", ((Node) builder.xpathQuery(
+                "//JetS3t", XPathConstants.NODE)).getNodeName());
+            assertEquals(1, cache.getHitCount());
+            assertEquals(2, cache.getMissCount());
+
+            // The namespace context is part of the key
+            builder.xpathQuery("//JetS3t", XPathConstants.NODE, nsContext);
+            assertEquals(1, cache.getHitCount());
+            assertEquals(3, cache.getMissCount());
+
+            // Least recently used expressions are evicted beyond the maximum size
+            builder.xpathFind("//Location");
+            assertEquals(4, cache.getMissCount());
+            builder.xpathQuery("//JetS3t", XPathConstants.NODE, nsContext);
+            assertEquals(2, cache.getHitCount());
+
+            // Each thread compiles its own expressions
+            final XMLBuilder sharedBuilder = builder;
+            final List<Throwable> failures = new ArrayList<Throwable>();
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        sharedBuilder.xpathFind("//Location");
+                    } catch (Throwable t) {
+                        failures.add(t);
+                    }
+                }
+            };
+            thread.start();
+            thread.join();
+            assertTrue(failures.isEmpty());
+            assertEquals(5, cache.getMissCount());
+
+            // Invalid expressions are reported and not cached
+            try {
+                builder.xpathFind("//[");
+                fail("Invalid XPath expression should fail");
+            } catch (XPathExpressionException e) {
+            }
+            assertEquals(6, cache.getMissCount());
+
+            // Stripping whitespace walks the tree without using XPath
+            builder.stripWhitespaceOnlyTextNodes();
+            assertEquals(2, cache.getHitCount());
+            assertEquals(6, cache.getMissCount());
+
+            // Separate snapshots of the same namespaces share expressions
+            builder.xpathQuery("//JetS3t", XPathConstants.NODE,
+                builder.buildDocumentNamespaceContext());
+            assertEquals(3, cache.getHitCount());
+
+            // Contexts that read an element's namespaces are never cached
+            NamespaceContext elementContext = new NamespaceContextImpl(builder.getElement());
+            builder.xpathQuery("//JetS3t", XPathConstants.NODE, elementContext);
+            builder.xpathQuery("//JetS3t", XPathConstants.NODE, elementContext);
+            assertEquals(3, cache.getHitCount());
+            assertEquals(8, cache.getMissCount());
+
+            // Subclasses may resolve prefixes their own way, so they never
+            // share expressions with other contexts
+            XMLBuilder prefixed = XMLBuilder.parse(
+                "<r xmlns:a='urn:a' xmlns:b='urn:b'><a:e>A</a:e><b:e>B</b:e></r>");
+            assertEquals("A", prefixed.xpathQuery("//x:e/text()", XPathConstants.STRING,
+                new FixedPrefixContext("urn:a")));
+            assertEquals("B", prefixed.xpathQuery("//x:e/text()", XPathConstants.STRING,
+                new FixedPrefixContext("urn:b")));
+        } finally {
+            XMLBuilder.setXPathExpressionCache(null);
+        }
+    }
+
+    public void testTextCheckOnlyExaminesNewChildren() throws Exception {
+        XMLBuilder parent = XMLBuilder.create("Rows");
+        for (int i = 0; i < 100000; i++) {
+            parent.e("Row").up().t("\n  ");
+        }
+        assertEquals(200000, parent.getElement().getChildNodes().getLength());
+
+        // Text appended after the last check is still detected
+        parent.t("text");
+        try {
+            parent.e("Row");
+            fail("Cannot add element after non-whitespace text");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("text"));
+        }
+        // And detected again if the check is repeated
+        try {
+            parent.e("Row");
+            fail("Cannot add element after non-whitespace text");
+        } catch (IllegalStateException e) {
+        }
+
+        // Removing the last checked child forces a full re-check
+        Node textNode = parent.getElement().getLastChild();
+        parent.getElement().removeChild(textNode);
+        parent.e("Row");
+        parent.getElement().removeChild(parent.getElement().getLastChild());
+        parent.getElement().insertBefore(textNode, parent.getElement().getFirstChild());
+        parent.getElement().removeChild(parent.getElement().getLastChild());
+        try {
+            parent.e("Row");
+            fail("Cannot add element after non-whitespace text");
+        } catch (IllegalStateException e) {
+        }
+        parent.getElement().removeChild(parent.getElement().getFirstChild());
+
+        // All the children after the last element are checked
+        parent.getElement().removeChild(parent.getElement().getLastChild());
+        parent.e("Row").up().t("\n  ").t("text").t("\n  ");
+        try {
+            parent.e("Row");
+            fail("Cannot add element after non-whitespace text");
+        } catch (IllegalStateException e) {
+        }
+        parent.getElement().removeChild(
+            parent.getElement().getLastChild().getPreviousSibling());
+        parent.e("Row");
+
+        // Replacing the element's text content replaces the checked children
+        parent.text("   ", true);
+        parent.e("Row");
+        parent.text("text", true);
+        try {
+            parent.e("Row");
+            fail("Cannot add element after non-whitespace text");
+        } catch (IllegalStateException e) {
+        }
+
+        // Parsed content is checked in full the first time it is extended
+        try {
+            XMLBuilder.parse("<a>foo<b/></a>").e("c");
+            fail("Cannot add element to parsed mixed content");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("foo"));
+        }
+        try {
+            XMLBuilder.parse("<a>foo<b/></a>").cursor().e("c");
+            fail("Cannot add element to parsed mixed content");
+        } catch (IllegalStateException e) {
+        }
+
+        // Cursors keep each element's checks as they move up and down
+        XMLCursor cursor = XMLBuilder.create("Rows").cursor();
+        for (int i = 0; i < 1000; i++) {
+            cursor.e("Row").e("Cell").up().up().t("\n");
+        }
+        cursor.t("text");
+        try {
+            cursor.e("Row");
+            fail("Cannot add element after non-whitespace text");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    public void testParseFromFilesAndChannels() throws Exception {
+        // The parser detects the encoding named in the XML declaration
+        File xmlFile = File.createTempFile("TestXmlBuilder", ".xml");
+        try {
+            String xml = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>"
+                + "<Caf\u00e9>cr\u00e8me br\u00fbl\u00e9e</Caf\u00e9>";
+            FileOutputStream out = new FileOutputStream(xmlFile);
+            try {
+                out.write(xml.getBytes("ISO-8859-1"));
+            } finally {
+                out.close();
+            }
+            XMLBuilder builder = XMLBuilder.parse(xmlFile);
+            assertEquals("Caf\u00e9", builder.getElement().getNodeName());
+            assertEquals("cr\u00e8me br\u00fbl\u00e9e",
+                builder.getElement().getTextContent());
+            // The file's location is available for resolving relative references
+            assertTrue(builder.getDocument().getDocumentURI().endsWith(
+                "/" + xmlFile.getName()));
+
+            // Large files are memory-mapped
+            StringBuilder largeXml = new StringBuilder("<Rows>");
+            int rows = 0;
+            while (largeXml.length() < XMLBuilder.MEMORY_MAPPED_PARSE_THRESHOLD) {
+                largeXml.append("<Row>Row number ").append(rows++).append("</Row>");
+            }
+            largeXml.append("</Rows>");
+            out = new FileOutputStream(xmlFile);
+            try {
+                out.write(largeXml.toString().getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            builder = XMLBuilder.parse(xmlFile.toPath());
+            assertEquals(rows, builder.getElement().getChildNodes().getLength());
+            assertEquals("Row number " + (rows - 1),
+                builder.getElement().getLastChild().getTextContent());
+        } finally {
+            assertTrue(xmlFile.delete());
+        }
+
+        // Channels are read to the end but left open for the caller
+        ReadableByteChannel channel = Channels.newChannel(
+            new ByteArrayInputStream(EXAMPLE_XML_DOC.getBytes("UTF-8")));
+        assertEquals(EXAMPLE_XML_DOC, XMLBuilder.parse(channel).asString());
+        assertTrue(channel.isOpen());
+        channel.close();
+    }
+
+    public void testCDataFromStreamsAndChannels() throws Exception {
+        // Large enough to span several encoding chunks, and not a multiple of 3
+        byte[] data = new byte[Base64ChunkEncoder.CHUNK_SIZE * 2 + 1000];
+        new Random(42).nextBytes(data);
+        String encoded = Base64.encodeBytes(data);
+
+        XMLBuilder builder = XMLBuilder.create("Data")
+            .e("Stream").cdata(new ByteArrayInputStream(data)).up()
+            .e("Channel").d(Channels.newChannel(new ByteArrayInputStream(data))).up()
+            .e("Empty").data(new ByteArrayInputStream(new byte[0])).up();
+        assertEquals(encoded, builder.xpathFind("//Stream").getElement().getTextContent());
+        assertEquals(encoded, builder.xpathFind("//Channel").getElement().getTextContent());
+        // Each chunk is added as a separate CDATA section
+        assertEquals(3, builder.xpathFind("//Stream").getElement().getChildNodes().getLength());
+        assertEquals(65536, builder.xpathFind("//Stream").getElement()
+            .getFirstChild().getNodeValue().length());
+        assertEquals(XMLBuilder.create("Data").cdata(new byte[0]).asString(),
+            XMLBuilder.create("Data").cdata(new ByteArrayInputStream(new byte[0])).asString());
+
+        // The streaming builder writes each chunk as a separate CDATA section
+        StringWriter writer = new StringWriter();
+        XMLStreamBuilder.create("Data", writer)
+            .e("Stream").cdata(new ByteArrayInputStream(data)).up()
+            .e("Empty").cdata(new ByteArrayInputStream(new byte[0]))
+            .close();
+        String xml = writer.toString();
+        assertTrue(xml.contains("<Stream><![CDATA[" + encoded.substring(0, 65536)
+            + "]]><![CDATA[" + encoded.substring(65536, 131072)
+            + "]]><![CDATA[" + encoded.substring(131072) + "]]></Stream>"));
+        assertEquals(encoded,
+            XMLBuilder.parse(xml).xpathFind("//Stream").getElement().getTextContent());
+        assertTrue(xml.endsWith("<Empty><![CDATA[]]></Empty></Data>"));
+    }
+
+    public void testBuilderContext() throws Exception {
+        final XPathExpressionCache cache = new XPathExpressionCache();
+        final XMLBuilderContext context = XMLBuilderContext.newInstance()
+            .withSerializer(new DirectSerializer())
+            .withXPathExpressionCache(cache);
+        assertTrue(context.isNamespaceAware());
+        assertFalse(XMLBuilderContext.newInstance(false).isNamespaceAware());
+
+        // Builders created with a context, and all builders derived from
+        // them, use its components rather than the defaults.
+        XMLBuilder builder = XMLBuilder.create("Doc", null, context);
+        assertSame(context, builder.getContext());
+        XMLBuilder child = builder.e("Child").reference("custom").up().e("Other");
+        assertSame(context, child.getContext());
+        assertSame(context, child.root().getContext());
+        assertSame(context, child.xpathFind("/Doc/Child").getContext());
+        assertEquals(1, cache.getMissCount());
+        // The DirectSerializer keeps entity references
+        assertEquals("<Doc><Child>&custom;</Child><Other/></Doc>", child.asString());
+
+        builder = XMLBuilder.parse(EXAMPLE_XML_DOC, context);
+        assertSame(context, builder.getContext());
+        builder.xpathQuery("//*", XPathConstants.NODESET);
+        assertEquals(2, cache.getMissCount());
+
+        // Builders without a context follow the default context, even when
+        // it changes after they are created.
+        XMLBuilder defaultBuilder = XMLBuilder.create("Doc").reference("custom");
+        assertSame(XMLBuilder.getDefaultContext(), defaultBuilder.getContext());
+        assertEquals("<Doc/>", defaultBuilder.asString());
+        XMLBuilder.setSerializer(new DirectSerializer());
+        try {
+            assertEquals("<Doc>&custom;</Doc>", defaultBuilder.asString());
+            assertSame(XMLBuilder.getSerializer(),
+                XMLBuilder.getDefaultContext().getSerializer());
+            // Changing the defaults does not affect builders with a context
+            XMLBuilder.setXPathExpressionCache(new XPathExpressionCache());
+            assertSame(cache, builder.getContext().getXPathExpressionCache());
+        } finally {
+            XMLBuilder.setDefaultContext(null);
+        }
+        assertEquals("<Doc/>", defaultBuilder.asString());
+
+        // A context can be shared by many threads
+        final String[] results = new String[8];
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int repeat = 0; repeat < 20; repeat++) {
+                            results[index] = XMLBuilder.parse(EXAMPLE_XML_DOC, context)
+                                .xpathFind("//JetS3t").up().asString();
+                        }
+                    } catch (Throwable t) {
+                        synchronized (failures) {
+                            failures.add(t);
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+        for (String result : results) {
+            assertEquals(XMLBuilder.parse(EXAMPLE_XML_DOC).asString(), result);
+        }
+    }
+
+    public void testCursor() throws Exception {
+        XMLCursor cursor = XMLBuilder.create("Projects").cursor();
+        assertEquals(0, cursor.getDepth());
+        cursor
+            .e("java-xmlbuilder").a("language", "Java").a("scm","SVN")
+                .e("Location").a("type", "URL")
+                    .t("http://code.google.com/p/java-xmlbuilder/")
+                .up()
+            .up()
+            .e("JetS3t").a("language", "Java").a("scm","CVS")
+                .e("Location").a("type", "URL")
+                    .t("http://jets3t.s3.amazonaws.com/index.html");
+        assertEquals(2, cursor.getDepth());
+        assertEquals("Location", cursor.getElement().getNodeName());
+        assertEquals(EXAMPLE_XML_DOC, cursor.toBuilder().asString());
+
+        // Moving up stops at the root element
+        assertEquals("Projects", cursor.up(10).getElement().getNodeName());
+        assertEquals(0, cursor.getDepth());
+        assertEquals("Projects", cursor.up().getElement().getNodeName());
+
+        // A cursor can start anywhere, and move up past its starting point
+        XMLBuilder location = XMLBuilder.parse(EXAMPLE_XML_DOC).xpathFind("//JetS3t/Location");
+        cursor = location.cursor();
+        assertEquals(2, cursor.getDepth());
+        cursor.elementBefore("Before").t("text");
+        assertEquals("Before", cursor.getElement().getNodeName());
+        assertEquals("JetS3t", cursor.up().getElement().getNodeName());
+        assertEquals("Projects", cursor.root().getElement().getNodeName());
+        assertEquals("Before",
+            location.up().getElement().getFirstChild().getNodeName());
+
+        // Deep documents grow the stack, and builders keep their position
+        cursor = XMLBuilder.create("Levels").cursor();
+        XMLBuilder[] levels = new XMLBuilder[50];
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = cursor.e("Level").a("depth", String.valueOf(i)).toBuilder();
+        }
+        assertEquals(50, cursor.getDepth());
+        cursor.up(25);
+        assertEquals("24", cursor.getElement().getAttribute("depth"));
+        assertEquals(levels[24].getElement(), cursor.getElement());
+        assertEquals(levels[49].up(25), cursor.toBuilder());
+
+        // The same rules as the builder apply to text and elements
+        cursor.t("text");
+        try {
+            cursor.e("Level");
+            fail("Cannot add element after non-whitespace text");
+        } catch (IllegalStateException e) {
+        }
+
+        // Builders from a cursor share the original builder's context
+        XMLBuilderContext context = XMLBuilderContext.newInstance();
+        XMLBuilder builder = XMLBuilder.create("Doc", null, context);
+        assertSame(context, builder.cursor().e("Child").toBuilder().getContext());
+    }
+
+    public void testAdoptXMLBuilder() throws Exception {
+        XMLBuilder importer = XMLBuilder.create("Importer").e("Here");
+        XMLBuilder importee = XMLBuilder.create("Importee")
+            .a("awating-my", "new-home").e("IsEntireSubtree").e("Included");
+        Element importeeRoot = importee.root().getElement();
+
+        // Adopting moves the nodes rather than copying them
+        assertSame(importer, importer.adoptXMLBuilder(importee));
+        assertSame(importeeRoot, importer.getElement().getFirstChild());
+        assertSame(importer.getDocument(), importeeRoot.getOwnerDocument());
+        assertNull(importee.getDocument().getDocumentElement());
+        importer.xpathFind("/Importer/Here/Importee/IsEntireSubtree/Included");
+
+        // Bulk variants graft builders in order
+        List<XMLBuilder> fragments = new ArrayList<XMLBuilder>();
+        for (int i = 0; i < 3; i++) {
+            fragments.add(XMLBuilder.create("Fragment").a("index", String.valueOf(i)));
+        }
+        XMLBuilder imported = XMLBuilder.create("Imported").importXMLBuilders(fragments);
+        XMLBuilder adopted = XMLBuilder.create("Imported").adoptXMLBuilders(fragments);
+        assertEquals(imported.asString(), adopted.asString());
+        assertEquals("<Imported><Fragment index=\"0\"/><Fragment index=\"1\"/>"
+            + "<Fragment index=\"2\"/></Imported>", adopted.asString());
+        for (XMLBuilder fragment : fragments) {
+            assertNull(fragment.getDocument().getDocumentElement());
+        }
+
+        // The target element is still checked for text content
+        try {
+            XMLBuilder.create("InvalidImporter").text("BadBadBad")
+                .adoptXMLBuilders(Arrays.asList(XMLBuilder.create("Fragment")));
+            fail("Should not be able to adopt XMLBuilder into "
+                + "an element containing text nodes");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    public void testAssembleFragments() throws Exception {
+        final XMLBuilderContext context = XMLBuilderContext.newInstance();
+        List<Callable<XMLBuilder>> tasks = new ArrayList<Callable<XMLBuilder>>();
+        for (int i = 0; i < 50; i++) {
+            final int index = i;
+            tasks.add(new Callable<XMLBuilder>() {
+                public XMLBuilder call() throws Exception {
+                    // Finish tasks out of order
+                    Thread.sleep((50 - index) % 7);
+                    XMLBuilder section = XMLBuilder.create("Section", null, context)
+                        .a("index", String.valueOf(index));
+                    for (int row = 0; row < 10; row++) {
+                        section.e("Row").t("Row " + row);
+                    }
+                    return section;
+                }
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            XMLBuilder report = XMLBuilder.create("Report", null, context)
+                .e("Sections");
+            assertSame(report, report.assembleFragments(tasks, executor));
+            NodeList sections = report.getElement().getChildNodes();
+            assertEquals(50, sections.getLength());
+            for (int i = 0; i < sections.getLength(); i++) {
+                Element section = (Element) sections.item(i);
+                assertEquals(String.valueOf(i), section.getAttribute("index"));
+                assertEquals(10, section.getChildNodes().getLength());
+                assertSame(report.getDocument(), section.getOwnerDocument());
+            }
+
+            // A failed task adds nothing
+            tasks.add(5, new Callable<XMLBuilder>() {
+                public XMLBuilder call() throws Exception {
+                    throw new IOException("Failed section");
+                }
+            });
+            XMLBuilder failed = XMLBuilder.create("Report");
+            try {
+                failed.assembleFragments(tasks, executor);
+                fail("Failed task should fail assembly");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+            assertFalse(failed.getElement().hasChildNodes());
+        } finally {
+            executor.shutdown();
+        }
+
+        // Tasks run on the common pool by default
+        XMLBuilder report = XMLBuilder.create("Report")
+            .assembleFragments(tasks.subList(0, 5));
+        assertEquals(5, report.getElement().getChildNodes().getLength());
+    }
+
+    public void testTemplate() throws Exception {
+        XMLBuilder source = XMLBuilder.create("Order", "urn:orders")
+            .a("id", "${id}")
+            .e("Customer").t("Dear ${first} ${last},").up()
+            .e("Note").t("No slots").up()
+            .e("Total").a("currency", "USD").d("${total}");
+        XMLTemplate template = XMLTemplate.compile(source);
+        assertEquals(Arrays.asList("id", "first", "last", "total"),
+            new ArrayList<String>(template.getSlotNames()));
+
+        // Changes to the source do not affect the template
+        source.e("Extra");
+
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("id", 42);
+        values.put("first", "Jo");
+        values.put("last", "<Smith & Co>");
+        values.put("total", "9.99");
+        XMLBuilder first = template.fill(values);
+        Document document = first.getDocument();
+        assertEquals("42", first.getElement().getAttribute("id"));
+        assertEquals("Dear Jo <Smith & Co>,", document
+            .getElementsByTagNameNS("urn:orders", "Customer").item(0).getTextContent());
+        Element total = (Element) document
+            .getElementsByTagNameNS("urn:orders", "Total").item(0);
+        assertEquals("9.99", total.getTextContent());
+        assertEquals(Node.CDATA_SECTION_NODE, total.getFirstChild().getNodeType());
+        assertEquals("USD", total.getAttribute("currency"));
+        assertEquals(0, document
+            .getElementsByTagNameNS("urn:orders", "Extra").getLength());
+
+        // Each fill produces an independent document
+        values.put("first", "Sam");
+        XMLBuilder second = template.fill(values);
+        assertNotSame(first.getDocument(), second.getDocument());
+        assertTrue(second.asString().contains("Dear Sam"));
+        assertTrue(first.asString().contains("Dear Jo"));
+
+        // Templates compile from XML text too, with slots in namespaced attributes
+        XMLTemplate parsed = XMLTemplate.compile(
+            "<a xmlns:x=\"urn:x\" x:ref=\"r-${ref}\"><b>${ref}</b></a>");
+        values.put("ref", "7");
+        XMLBuilder filled = parsed.fill(values);
+        assertEquals("r-7", filled.getElement().getAttributeNS("urn:x", "ref"));
+        assertEquals("7", filled.getElement().getTextContent());
+
+        values.remove("ref");
+        try {
+            parsed.fill(values);
+            fail("Missing slot value should be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("ref"));
+        }
+    }
+
+    public void testRenderPlan() throws Exception {
+        XMLTemplate template = XMLTemplate.compile(
+            XMLBuilder.create("Response")
+                .a("status", "${status}")
+                .e("Message").a("title", "Re: ${name}").t("Hello ${name}!").up()
+                .e("Payload").d("${payload}").up()
+                .e("Fixed").t("Static & unchanged"));
+        Properties outputProperties = new Properties();
+        outputProperties.put(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        XMLRenderPlan plan = template.toRenderPlan(outputProperties);
+        assertEquals(Arrays.asList("status", "name", "name", "payload"),
+            plan.getSlotNames());
+
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("status", "\"OK\"\n");
+        values.put("name", "Tom & Jerry <\u00e9\u4e2d\ud83d\ude00>");
+        values.put("payload", "a]]>b");
+
+        // Rendered bytes match serializing a filled document
+        StringBuilder expected = new StringBuilder();
+        new DirectSerializer().serialize(
+            template.fill(values).getDocument(), expected, outputProperties);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        long written = plan.render(values, stream);
+        assertEquals(expected.toString(), new String(stream.toByteArray(), "UTF-8"));
+        assertEquals(stream.size(), written);
+        assertTrue(written > plan.getStaticLength());
+
+        // Channels receive the same bytes
+        ByteArrayOutputStream channelStream = new ByteArrayOutputStream();
+        WritableByteChannel channel = Channels.newChannel(channelStream);
+        assertEquals(written, plan.render(values, channel));
+        assertTrue(Arrays.equals(stream.toByteArray(), channelStream.toByteArray()));
+
+        values.remove("payload");
+        try {
+            plan.render(values, new ByteArrayOutputStream());
+            fail("Missing slot value should be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("payload"));
+        }
+
+        outputProperties.put(OutputKeys.ENCODING, "ISO-8859-1");
+        try {
+            template.toRenderPlan(outputProperties);
+            fail("Render plans only write UTF-8");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    public void testStripWhitespaceOnlyTextNodesWithinElement() throws Exception {
+        XMLBuilder builder = XMLBuilder.parse(
+            "<Doc>\n  <A>\n    <B> </B>\n    <C>text</C>\n  </A>\n"
+            + "  <D>\n    <E/>\n  </D>\n"
+            + "  <F>  <![CDATA[data]]>  </F>\n  <G>  <![CDATA[ ]]>\t</G>\n</Doc>");
+
+        // Strip only within the current element
+        XMLBuilder a = builder.xpathFind("/Doc/A");
+        assertSame(a, a.stripWhitespaceOnlyTextNodes(false));
+        assertEquals("<A><B/><C>text</C></A>", a.elementAsString());
+        assertTrue(builder.asString().contains("<D>\n    <E/>\n  </D>"));
+
+        // Strip the whole document from any node. Whitespace next to CDATA
+        // content is kept, as it is by the XPath text() node test.
+        builder.xpathFind("/Doc/D/E").stripWhitespaceOnlyTextNodes(true);
+        Element f = builder.xpathFind("/Doc/F").getElement();
+        assertEquals(3, f.getChildNodes().getLength());
+        assertEquals("<Doc><A><B/><C>text</C></A><D><E/></D>"
+            + "<F>  <![CDATA[data]]>  </F><G/></Doc>", builder.asString());
+    }
+
+    public void testParseOptions() throws Exception {
+        String xml = "<?xml version=\"1.0\"?>\n<!-- Feed -->\n"
+            + "<f:Feed xmlns:f=\"urn:feed\" xmlns=\"urn:default\" f:id=\"1\" plain=\"a&amp;b\">\n"
+            + "  <?sort ascending?>\n"
+            + "  <Item>\n    <!-- First -->\n    <Name>One &amp; only</Name>\n"
+            + "    <Data>  <![CDATA[<raw>]]>  </Data>\n"
+            + "    <Blank> <![CDATA[ ]]> </Blank>\n  </Item>\n</f:Feed>\n";
+
+        // Filtering while parsing matches stripping afterwards
+        XMLBuilder stripped = XMLBuilder.parse(xml).stripWhitespaceOnlyTextNodes();
+        XMLBuilder filtered = XMLBuilder.parse(xml, null,
+            XMLParseOption.STRIP_WHITESPACE_ONLY_TEXT);
+        assertEquals(stripped.asString(), filtered.asString());
+        assertEquals("urn:feed", filtered.getElement().getNamespaceURI());
+        assertEquals("1", filtered.getElement().getAttributeNS("urn:feed", "id"));
+        assertEquals("a&b", filtered.getElement().getAttribute("plain"));
+        Element data = (Element) filtered.getDocument()
+            .getElementsByTagNameNS("urn:default", "Data").item(0);
+        assertEquals(3, data.getChildNodes().getLength());
+        assertEquals(Node.CDATA_SECTION_NODE, data.getChildNodes().item(1).getNodeType());
+        assertEquals(0, filtered.getDocument()
+            .getElementsByTagNameNS("urn:default", "Blank").item(0)
+            .getChildNodes().getLength());
+        assertTrue(filtered.asString().contains("<!-- First -->"));
+        assertTrue(filtered.asString().contains("<?sort ascending?>"));
+
+        // Comments and processing instructions can be left out too
+        XMLBuilder bare = XMLBuilder.parse(xml, null,
+            XMLParseOption.STRIP_WHITESPACE_ONLY_TEXT,
+            XMLParseOption.STRIP_COMMENTS,
+            XMLParseOption.STRIP_PROCESSING_INSTRUCTIONS);
+        assertFalse(bare.asString().contains("<!--"));
+        assertFalse(bare.asString().contains("<?sort"));
+        assertEquals("One & only", bare.xpathFind("//*[local-name()='Name']")
+            .getElement().getTextContent());
+        assertNull(bare.getElement().getPreviousSibling());
+
+        // Comments alone are left out without touching whitespace
+        XMLBuilder noComments = XMLBuilder.parse(xml, null, XMLParseOption.STRIP_COMMENTS);
+        assertEquals(XMLBuilder.parse(xml).asString()
+            .replace("<!-- Feed -->", "").replace("<!-- First -->", ""),
+            noComments.asString());
+
+        // Namespace-unaware contexts keep qualified names as they are
+        XMLBuilder unaware = XMLBuilder.parse(xml, XMLBuilderContext.newInstance(false),
+            XMLParseOption.STRIP_WHITESPACE_ONLY_TEXT);
+        assertNull(unaware.getElement().getNamespaceURI());
+        assertEquals("f:Feed", unaware.getElement().getNodeName());
+        assertEquals("urn:feed", unaware.getElement().getAttribute("xmlns:f"));
+    }
+
+    public void testParseMatching() throws Exception {
+        StringBuilder feed = new StringBuilder(
+            "<Feed xmlns=\"urn:feed\" xmlns:p=\"urn:price\"><Header><Price>0</Price></Header>");
+        for (int i = 0; i < 100; i++) {
+            feed.append("<Item id=\"").append(i).append("\"><Name>Item ").append(i)
+                .append("</Name><!-- note --><p:Price p:currency=\"USD\">")
+                .append(i).append(".99</p:Price><Data><![CDATA[<").append(i)
+                .append(">]]></Data></Item>");
+        }
+        feed.append("</Feed>");
+        String xml = feed.toString();
+
+        // Child paths match only at the given position
+        List<XMLBuilder> prices = XMLBuilder.parseMatching(
+            new InputSource(new StringReader(xml)), null, "/Feed/Item/Price");
+        assertEquals(100, prices.size());
+        XMLBuilder price = prices.get(42);
+        assertEquals("42.99", price.getElement().getTextContent());
+        assertEquals("urn:price", price.getElement().getNamespaceURI());
+        assertEquals("USD", price.getElement().getAttributeNS("urn:price", "currency"));
+        assertSame(price.getElement(), price.getDocument().getDocumentElement());
+        assertNotSame(prices.get(0).getDocument(), prices.get(1).getDocument());
+        // The minimal document declares the namespaces in scope
+        assertEquals("urn:feed", price.getElement().getAttribute("xmlns"));
+        assertEquals("urn:price", price.getElement().getAttribute("xmlns:p"));
+        assertTrue(price.asString().endsWith(">42.99</p:Price>"));
+
+        // Descendant paths, prefixed names and wildcards
+        assertEquals(101, XMLBuilder.parseMatching(
+            new InputSource(new StringReader(xml)), null, "//Price").size());
+        assertEquals(100, XMLBuilder.parseMatching(
+            new InputSource(new StringReader(xml)), null, "/Feed//p:Price").size());
+        assertEquals(1, XMLBuilder.parseMatching(
+            new InputSource(new StringReader(xml)), null, "/*/Header/*").size());
+
+        // Matches are returned in document order and do not nest
+        List<XMLBuilder> items = XMLBuilder.parseMatching(
+            new InputSource(new StringReader(xml)), null, "//Item", "//Name");
+        assertEquals(100, items.size());
+        Element item = items.get(7).getElement();
+        assertEquals("7", item.getAttribute("id"));
+        assertEquals(4, item.getChildNodes().getLength());
+        assertEquals(Node.COMMENT_NODE, item.getChildNodes().item(1).getNodeType());
+        assertEquals(Node.CDATA_SECTION_NODE,
+            item.getLastChild().getFirstChild().getNodeType());
+        assertEquals("Item 7", item.getElementsByTagNameNS("urn:feed", "Name")
+            .item(0).getTextContent());
+
+        // Files are streamed too
+        File xmlFile = File.createTempFile("feed", ".xml");
+        try {
+            FileOutputStream out = new FileOutputStream(xmlFile);
+            out.write(xml.getBytes("UTF-8"));
+            out.close();
+            List<XMLBuilder> names = XMLBuilder.parseMatching(
+                xmlFile.toPath(), XMLBuilderContext.newInstance(false), "/Feed/Item/Name");
+            assertEquals(100, names.size());
+            assertNull(names.get(0).getElement().getNamespaceURI());
+        } finally {
+            xmlFile.delete();
+        }
+
+        try {
+            XMLBuilder.parseMatching(
+                new InputSource(new StringReader(xml)), null, "Feed/Item[1]");
+            fail("Relative paths and predicates are not supported");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    public void testRecordReader() throws Exception {
+        StringBuilder xml = new StringBuilder(
+            "<r:records xmlns:r=\"urn:records\"><r:header><r:record>Not a record</r:record></r:header>");
+        for (int i = 0; i < 1000; i++) {
+            xml.append("<r:record id=\"").append(i).append("\"><r:value>")
+                .append(i).append("</r:value></r:record>");
+        }
+        xml.append("</r:records>");
+
+        // An element name matches records at any depth, a path is exact
+        XMLRecordReader records = new XMLRecordReader(
+            new InputSource(new StringReader(xml.toString())), null, "/r:records/r:record");
+        int count = 0;
+        while (records.hasNext()) {
+            XMLBuilder record = records.next();
+            assertEquals(String.valueOf(count), record.getElement().getAttribute("id"));
+            assertEquals("urn:records", record.getElement().getNamespaceURI());
+            assertEquals("urn:records", record.getElement().getAttribute("xmlns:r"));
+            assertSame(record.getElement(), record.getDocument().getDocumentElement());
+            count++;
+        }
+        assertEquals(1000, count);
+        try {
+            records.next();
+            fail("No records should remain");
+        } catch (NoSuchElementException e) {
+            // Expected
+        }
+        records.close();
+
+        // Files are read as a stream of records, optionally in parallel
+        File xmlFile = File.createTempFile("records", ".xml");
+        try {
+            FileOutputStream out = new FileOutputStream(xmlFile);
+            out.write(xml.toString().getBytes("UTF-8"));
+            out.close();
+
+            records = XMLRecordReader.open(xmlFile.toPath(), null, "record");
+            try {
+                assertEquals(1001, records.stream().count());
+            } finally {
+                records.close();
+            }
+
+            records = XMLRecordReader.open(xmlFile.toPath(), null, "/r:records/r:record");
+            long total;
+            try {
+                total = records.stream().parallel()
+                    .mapToLong(new ToLongFunction<XMLBuilder>() {
+                        public long applyAsLong(XMLBuilder record) {
+                            return Long.parseLong(record.getElement().getTextContent());
+                        }
+                    }).sum();
+            } finally {
+                records.close();
+            }
+            assertEquals(999 * 1000 / 2, total);
+        } finally {
+            xmlFile.delete();
+        }
+
+        // Malformed documents fail while reading records
+        records = new XMLRecordReader(
+            new InputSource(new StringReader("<records><record/><record></records>")),
+            null, "record");
+        assertTrue(records.hasNext());
+        records.next();
+        try {
+            records.hasNext();
+            fail("Malformed document should fail");
+        } catch (XMLBuilderRuntimeException e) {
+            // Expected
+        }
+        records.close();
+    }
+
+    public void testDocumentNamespaceContextSnapshot() throws Exception {
+        XMLBuilder builder = XMLBuilder.parse(
+            "<soap:Envelope xmlns:soap=\"urn:soap\" xmlns=\"urn:default\">"
+            + "<soap:Body><m:Quote xmlns:m=\"urn:market\" xmlns:alias=\"urn:soap\">"
+            + "<m:Price alias:unit=\"USD\">1</m:Price></m:Quote>"
+            + "<Other xmlns:m=\"urn:other\"/></soap:Body></soap:Envelope>");
+        final NamespaceContextImpl context = builder.buildDocumentNamespaceContext();
+
+        // Bindings anywhere in the document are found, the first one wins
+        assertEquals("urn:soap", context.getNamespaceURI("soap"));
+        assertEquals("urn:default", context.getNamespaceURI(""));
+        assertEquals("urn:market", context.getNamespaceURI("m"));
+        assertEquals(XMLConstants.XML_NS_URI, context.getNamespaceURI("xml"));
+        assertNull(context.getNamespaceURI("unbound"));
+        assertEquals("m", context.getPrefix("urn:market"));
+        assertNull(context.getPrefix("urn:other"));
+
+        List<String> prefixes = new ArrayList<String>();
+        for (Iterator<?> iter = context.getPrefixes("urn:soap"); iter.hasNext();) {
+            prefixes.add((String) iter.next());
+        }
+        assertEquals(Arrays.asList("alias", "soap"), prefixes);
+        assertFalse(context.getPrefixes("urn:unknown").hasNext());
+
+        // Queries may use prefixes declared below the root element
+        assertEquals("1", builder.xpathFind("//m:Price[@alias:unit='USD']", context)
+            .getElement().getTextContent());
+
+        // The snapshot can be shared between threads
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        final XMLBuilder sharedBuilder = builder;
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 100; j++) {
+                            sharedBuilder.xpathFind("/soap:Envelope/soap:Body/:Other", context);
+                        }
+                    } catch (Throwable t) {
+                        failures.add(t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(failures.isEmpty());
+
+        // Custom mappings take precedence over the snapshot
+        context.addNamespace("m", "urn:other");
+        assertEquals("urn:other", context.getNamespaceURI("m"));
+        assertEquals("m", context.getPrefix("urn:other"));
+        assertNull(context.getPrefix("urn:market"));
+        assertFalse(context.getPrefixes("urn:market").hasNext());
+    }
+
+    public void testNamespacePrefixResolution() throws Exception {
+        XMLBuilder root = XMLBuilder.create("Root", "urn:default")
+            .namespace("a", "urn:a");
+        XMLBuilder level = root;
+        XMLBuilder middle = null;
+        for (int i = 0; i < 50; i++) {
+            level = level.e("Level");
+            if (i == 1) {
+                middle = level;
+            }
+        }
+        XMLBuilder deepest = level;
+        for (int i = 0; i < 10; i++) {
+            assertEquals("urn:a", deepest.e("a:Item").getElement().getNamespaceURI());
+            assertEquals("urn:default", deepest.e("Plain").getElement().getNamespaceURI());
+            assertNull(deepest.e("b:Unbound").getElement().getNamespaceURI());
+        }
+
+        // Declaring a namespace updates resolution below the declaration
+        middle.namespace("a", "urn:a2").namespace("b", "urn:b");
+        assertEquals("urn:a2", deepest.e("a:Item").getElement().getNamespaceURI());
+        assertEquals("urn:b", deepest.e("b:Bound").getElement().getNamespaceURI());
+        assertEquals("urn:a", root.e("a:Item").getElement().getNamespaceURI());
+        XMLBuilder holder = root.element("h:Holder", "urn:h");
+        assertEquals("urn:default", holder.e("Plain").getElement().getNamespaceURI());
+        holder.namespace("urn:other");
+        assertEquals("urn:other", holder.e("Plain").getElement().getNamespaceURI());
+        // An empty declaration un-binds the default namespace
+        holder.namespace("");
+        assertNull(holder.e("Plain").getElement().getNamespaceURI());
+
+        // Prefixed elements bind their prefix for their descendants
+        XMLBuilder implicit = root.element("c:Implicit", "urn:c");
+        assertEquals("urn:c", implicit.e("c:Child").getElement().getNamespaceURI());
+
+        // Resolution always agrees with the DOM's own lookups
+        XMLCursor cursor = deepest.cursor();
+        for (String prefix : new String[] {null, "a", "b", "c"}) {
+            String name = (prefix == null ? "Check" : prefix + ":Check");
+            Element check = cursor.e(name).getElement();
+            assertEquals(check.getParentNode().lookupNamespaceURI(prefix),
+                check.getNamespaceURI());
+            cursor.up();
+        }
+
+        // Adopted subtrees resolve prefixes in their new document
+        XMLBuilder fragment = XMLBuilder.create("a:Fragment", "urn:fragment");
+        fragment.e("a:Inner");
+        root.adoptXMLBuilder(fragment);
+        NamespaceContextImpl nsContext = root.buildDocumentNamespaceContext();
+        nsContext.addNamespace("f", "urn:fragment");
+        XMLBuilder adopted = root.xpathFind("//f:Fragment", nsContext);
+        assertEquals("urn:fragment", adopted.e("a:New").getElement().getNamespaceURI());
+
+        // Declarations added or changed outside namespace() are seen
+        XMLBuilder plain = XMLBuilder.create("Plain");
+        assertNull(plain.e("A").getElement().getNamespaceURI());
+        plain.getElement().setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "xmlns", "urn:d");
+        assertEquals("urn:d", plain.e("B").getElement().getNamespaceURI());
+        plain.attribute("xmlns", "urn:d2");
+        assertEquals("urn:d2", plain.e("C").getElement().getNamespaceURI());
+        plain.getElement().removeAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "xmlns");
+        assertNull(plain.e("D").getElement().getNamespaceURI());
+    }
+
+    public void testBulkAttributesAndElements() throws Exception {
+        Map<String, String> columns = new LinkedHashMap<String, String>();
+        columns.put("id", "1");
+        columns.put("name", "A & B");
+        List<String> values = Arrays.asList("one", "two", "three");
+        String expected = "<Table xmlns=\"urn:t\"><Columns id=\"1\" name=\"A &amp; B\"/>"
+            + "<Row id=\"one\" type=\"row\">one</Row>"
+            + "<Row id=\"two\" type=\"row\">two</Row>"
+            + "<Row id=\"three\" type=\"row\">three</Row></Table>";
+
+        XMLBuilder builder = XMLBuilder.create("Table", "urn:t");
+        builder.e("Columns").attributes(columns);
+        XMLBuilder result = builder.elements("Row", values,
+            new BiConsumer<XMLBuilder, String>() {
+                public void accept(XMLBuilder row, String value) {
+                    row.attributes("id", value, "type", "row").t(value);
+                }
+            });
+        assertSame(builder, result);
+        assertEquals(expected, builder.asString());
+        assertEquals("urn:t", builder.xpathFind("//:Row[3]",
+            builder.buildDocumentNamespaceContext()).getElement().getNamespaceURI());
+
+        XMLCursor cursor = XMLBuilder.create("Table", "urn:t").cursor();
+        cursor.e("Columns").attributes(columns).up();
+        cursor.elements("Row", values,
+            new BiConsumer<XMLCursor, String>() {
+                public void accept(XMLCursor row, String value) {
+                    row.attributes("id", value, "type", "row").t(value);
+                }
+            });
+        assertEquals("Table", cursor.getElement().getNodeName());
+        assertEquals(expected, cursor.toBuilder().asString());
+
+        StringWriter writer = new StringWriter();
+        XMLStreamBuilder stream = XMLStreamBuilder.create("Table", "urn:t", writer);
+        stream.e("Columns").attributes(columns);
+        stream.elements("Row", values,
+            new BiConsumer<XMLStreamBuilder, String>() {
+                public void accept(XMLStreamBuilder row, String value) {
+                    row.attributes("id", value, "type", "row").t(value);
+                }
+            });
+        stream.close();
+        // The streaming writer does not write empty-element tags
+        assertEquals(expected.replace("\"/>", "\"></Columns>"), writer.toString());
+
+        try {
+            builder.attributes("id", "1", "name");
+            fail("Expected IllegalArgumentException for an unpaired name");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        try {
+            XMLBuilder.create("Text").t("text").elements("Row", values,
+                new BiConsumer<XMLBuilder, String>() {
+                    public void accept(XMLBuilder row, String value) {
+                    }
+                });
+            fail("Expected IllegalStateException for an element with text");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    public void testByteOutput() throws Exception {
+        XMLSerializer[] serializers = new XMLSerializer[] {
+            new TransformerSerializer(), new DirectSerializer()};
+        for (XMLSerializer serializer : serializers) {
+            XMLBuilderContext context = XMLBuilderContext.newInstance()
+                .withSerializer(serializer);
+            XMLBuilder builder = XMLBuilder.create("Root", null, context)
+                .e("Text").t("caf\u00e9 \u20ac \ud83d\ude00 & <").up()
+                .e("Attr").a("value", "\u00e9\u20ac\ud83d\ude00").up();
+
+            assertTrue(Arrays.equals(builder.asString().getBytes("UTF-8"),
+                builder.asBytes()));
+
+            Properties outputProperties = new Properties();
+            outputProperties.put(OutputKeys.ENCODING, "ISO-8859-1");
+            String latin1 = new String(builder.asBytes(outputProperties), "ISO-8859-1");
+            assertTrue(latin1.startsWith("<?xml version=\"1.0\" encoding=\"ISO-8859-1\""));
+            assertTrue(latin1.contains("caf\u00e9 &#8364; &#128512; &amp; &lt;"));
+
+            ByteArrayOutputStream elementBytes = new ByteArrayOutputStream();
+            XMLBuilder text = builder.xpathFind("//Text");
+            text.toOutputStream(false, elementBytes, null);
+            assertEquals(text.elementAsString(null),
+                new String(elementBytes.toByteArray(), "UTF-8"));
+            assertTrue(text.elementAsString(null).contains("caf\u00e9 \u20ac "));
+        }
+
+        // Surrogate pairs straddling the direct serializer's buffer boundary
+        XMLBuilderContext context = XMLBuilderContext.newInstance()
+            .withSerializer(new DirectSerializer());
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 8200; i++) {
+            padding.append('x');
+        }
+        for (int offset = 8170; offset < 8200; offset++) {
+            XMLBuilder builder = XMLBuilder.create("R", null, context)
+                .t(padding.substring(0, offset) + "\ud83d\ude00\u00e9");
+            assertEquals(builder.asString(), new String(builder.asBytes(), "UTF-8"));
+        }
+    }
+
+    public void testMetricsListener() throws Exception {
+        assertSame(XMLMetricsListener.NONE, XMLBuilderContext.newInstance().getMetricsListener());
+
+        HistogramMetricsListener metrics = new HistogramMetricsListener();
+        XMLBuilderContext context = XMLBuilderContext.newInstance()
+            .withMetricsListener(metrics);
+        assertSame(metrics, context.withSerializer(new DirectSerializer()).getMetricsListener());
+
+        XMLBuilder builder = XMLBuilder.parse(
+            "<Root><A>text</A><!--comment--><B b=\"1\"/></Root>", context);
+        assertEquals(1, metrics.getParseTimes().getCount());
+        assertEquals(5, metrics.getParsedNodeCounts().getMax());
+
+        builder.xpathFind("//A");
+        builder.xpathFind("//A");
+        assertEquals(2, metrics.getXPathTimes().getCount());
+        assertEquals(1, metrics.getXPathCacheHitCount());
+        assertEquals(1, metrics.getXPathCacheMissCount());
+        assertEquals(0.5, metrics.getXPathCacheHitRate(), 0.0);
+
+        String xml = builder.asString();
+        byte[] bytes = builder.asBytes();
+        assertEquals(2, metrics.getSerializeTimes().getCount());
+        assertEquals(xml.length() + bytes.length, metrics.getOutputLengths().getTotal());
+
+        XMLTemplate.compile("<T><V>${v}</V></T>", context)
+            .fill(Collections.singletonMap("v", "x"));
+        assertEquals(1, metrics.getBuildTimes().getCount());
+        assertEquals(3, metrics.getBuiltNodeCounts().getTotal());
+
+        List<Callable<XMLBuilder>> tasks = new ArrayList<Callable<XMLBuilder>>();
+        for (int i = 0; i < 3; i++) {
+            tasks.add(new Callable<XMLBuilder>() {
+                public XMLBuilder call() throws Exception {
+                    return XMLBuilder.create("F").e("G").t("g").root();
+                }
+            });
+        }
+        builder.assembleFragments(tasks);
+        assertEquals(2, metrics.getBuildTimes().getCount());
+        assertEquals(3 + 9, metrics.getBuiltNodeCounts().getTotal());
+
+        // Histogram percentiles are accurate to within an eighth
+        HistogramMetricsListener.Histogram histogram = new HistogramMetricsListener.Histogram();
+        assertEquals(0, histogram.getValueAtPercentile(99));
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500.5, histogram.getMean(), 0.0);
+        assertEquals(1000, histogram.getValueAtPercentile(100));
+        long median = histogram.getValueAtPercentile(50);
+        assertTrue(median >= 500 && median <= 500 * 9 / 8);
+        long p99 = histogram.getValueAtPercentile(99);
+        assertTrue(p99 >= 990 && p99 <= 1000);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(100));
+        try {
+            histogram.getValueAtPercentile(101);
+            fail("Expected IllegalArgumentException for an invalid percentile");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    public void testFlightRecorderEvents() throws Exception {
+        if (!XMLBuilderEvents.AVAILABLE) {
+            return;
+        }
+        String[] eventNames = new String[] {
+            "Parse", "XPath", "StripWhitespace", "Import", "Serialize"};
+        File recordingFile = File.createTempFile("xmlbuilder-events", ".jfr");
+        recordingFile.deleteOnExit();
+        byte[] bytes;
+        String text;
+        Recording recording = new Recording();
+        try {
+            for (String eventName : eventNames) {
+                recording.enable("com.jamesmurty.utils." + eventName).withoutThreshold();
+            }
+            recording.start();
+            XMLBuilder builder = XMLBuilder.parse(
+                "<Root>\n  <Item>a</Item>\n  <Item>b</Item>\n</Root>");
+            builder.xpathQuery("//Item", XPathConstants.NODESET);
+            builder.stripWhitespaceOnlyTextNodes();
+            XMLBuilder holder = XMLBuilder.create("Holder").importXMLBuilder(builder);
+            bytes = holder.asBytes();
+            text = holder.elementAsString();
+            recording.stop();
+            recording.dump(recordingFile.toPath());
+        } finally {
+            recording.close();
+        }
+
+        Map<String, List<RecordedEvent>> eventsByName =
+            new HashMap<String, List<RecordedEvent>>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(recordingFile.toPath())) {
+            String name = event.getEventType().getName();
+            if (!eventsByName.containsKey(name)) {
+                eventsByName.put(name, new ArrayList<RecordedEvent>());
+            }
+            eventsByName.get(name).add(event);
+        }
+        for (String eventName : eventNames) {
+            assertTrue(eventName,
+                eventsByName.containsKey("com.jamesmurty.utils." + eventName));
+        }
+
+        RecordedEvent parse = eventsByName.get("com.jamesmurty.utils.Parse").get(0);
+        assertEquals(8, parse.getLong("nodeCount"));
+        assertFalse(parse.getDuration().isNegative());
+
+        RecordedEvent xpath = eventsByName.get("com.jamesmurty.utils.XPath").get(0);
+        assertEquals("//Item", xpath.getString("expression"));
+        assertEquals(2, xpath.getLong("nodeCount"));
+
+        RecordedEvent strip = eventsByName.get("com.jamesmurty.utils.StripWhitespace").get(0);
+        assertEquals(3, strip.getLong("nodeCount"));
+
+        RecordedEvent graft = eventsByName.get("com.jamesmurty.utils.Import").get(0);
+        assertEquals(5, graft.getLong("nodeCount"));
+        assertFalse(graft.getBoolean("adopted"));
+
+        List<RecordedEvent> serializeEvents =
+            eventsByName.get("com.jamesmurty.utils.Serialize");
+        assertEquals(2, serializeEvents.size());
+        RecordedEvent byteOutput = serializeEvents.get(0);
+        assertEquals(6, byteOutput.getLong("nodeCount"));
+        assertEquals(bytes.length, byteOutput.getLong("byteCount"));
+        RecordedEvent textOutput = serializeEvents.get(1);
+        assertEquals(6, textOutput.getLong("nodeCount"));
+        assertEquals(text.length(), textOutput.getLong("characterCount"));
+    }
+
+    public void testParseOptionsFollowParserFactorySettings() throws Exception {
+        String doctypeXml = "<!DOCTYPE Root [<!ENTITY name 'value'>]><Root>&name;</Root>";
+        assertEquals("value", XMLBuilder.parse(new InputSource(new StringReader(doctypeXml)),
+            null, XMLParseOption.STRIP_COMMENTS).getElement().getTextContent());
+
+        // Documents are rejected the same way with and without options
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        XMLBuilderContext context = XMLBuilderContext.newInstance()
+            .withDocumentBuilderPool(new DocumentBuilderPool(factory));
+        for (int i = 0; i < 2; i++) {
+            XMLParseOption[] options = (i == 0 ? new XMLParseOption[0]
+                : new XMLParseOption[] {XMLParseOption.STRIP_COMMENTS});
+            try {
+                XMLBuilder.parse(new InputSource(new StringReader(doctypeXml)), context, options);
+                fail("Document type declaration should be rejected");
+            } catch (SAXException e) {
+            }
+        }
+
+        File entityFile = File.createTempFile("TestXmlBuilder", ".ent");
+        try {
+            FileOutputStream out = new FileOutputStream(entityFile);
+            try {
+                out.write("secret".getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            String externalXml = "<!DOCTYPE Root [<!ENTITY ext SYSTEM '"
+                + entityFile.toURI() + "'>]><Root>&ext;</Root>";
+            assertEquals("secret", XMLBuilder.parse(
+                new InputSource(new StringReader(externalXml)), null,
+                XMLParseOption.STRIP_COMMENTS).getElement().getTextContent());
+
+            // External entities stay unresolved
+            factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+            context = XMLBuilderContext.newInstance()
+                .withDocumentBuilderPool(new DocumentBuilderPool(factory));
+            assertEquals("", XMLBuilder.parse(
+                new InputSource(new StringReader(externalXml)), context,
+                XMLParseOption.STRIP_COMMENTS).getElement().getTextContent());
+
+            // External access restrictions apply to every parse
+            factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            factory.setAttribute(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+            context = XMLBuilderContext.newInstance()
+                .withDocumentBuilderPool(new DocumentBuilderPool(factory));
+            for (int i = 0; i < 2; i++) {
+                try {
+                    XMLBuilder.parse(new InputSource(new StringReader(externalXml)),
+                        context, XMLParseOption.STRIP_COMMENTS);
+                    fail("External entity access should be refused");
+                } catch (SAXException e) {
+                }
+            }
+        } finally {
+            assertTrue(entityFile.delete());
+        }
+
+        // A SAX factory can be given explicitly
+        SAXParserFactory saxParserFactory = SAXParserFactory.newInstance();
+        saxParserFactory.setNamespaceAware(true);
+        DocumentBuilderPool pool = new DocumentBuilderPool(factory, saxParserFactory);
+        assertSame(saxParserFactory, pool.getSAXParserFactory());
+        assertTrue(new DocumentBuilderPool(factory).getSAXParserFactory().isNamespaceAware());
+    }
+
+    public void testStreamingFollowsParserFactorySettings() throws Exception {
+        String doctypeXml = "<!DOCTYPE Root [<!ENTITY name 'value'>]><Root><Item>&name;</Item></Root>";
+        assertEquals("value", XMLBuilder.parseMatching(
+            new InputSource(new StringReader(doctypeXml)), null, "/Root/Item")
+            .get(0).getElement().getTextContent());
+
+        // Documents with a document type declaration are rejected
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        XMLBuilderContext context = XMLBuilderContext.newInstance()
+            .withDocumentBuilderPool(new DocumentBuilderPool(factory));
+        assertTrue(context.getDocumentBuilderPool().getXMLInputFactory().isPropertySupported(
+            XMLInputFactory.SUPPORT_DTD));
+        try {
+            XMLBuilder.parseMatching(
+                new InputSource(new StringReader(doctypeXml)), context, "/Root/Item");
+            fail("Document type declaration should be rejected");
+        } catch (XMLStreamException e) {
+            // Expected
+        }
+        XMLRecordReader records = new XMLRecordReader(
+            new InputSource(new StringReader(doctypeXml)), context, "Item");
+        try {
+            records.hasNext();
+            fail("Document type declaration should be rejected");
+        } catch (XMLBuilderRuntimeException e) {
+            assertTrue(e.getCause() instanceof XMLStreamException);
+        }
+        records.close();
+        assertEquals(1, XMLBuilder.parseMatching(
+            new InputSource(new StringReader("<Root><Item/></Root>")), context,
+            "/Root/Item").size());
+
+        File entityFile = File.createTempFile("TestXmlBuilder", ".ent");
+        try {
+            FileOutputStream out = new FileOutputStream(entityFile);
+            try {
+                out.write("secret".getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            String externalXml = "<!DOCTYPE Root [<!ENTITY ext SYSTEM '"
+                + entityFile.toURI() + "'>]><Root><Item>&ext;</Item></Root>";
+            assertEquals("secret", XMLBuilder.parseMatching(
+                new InputSource(new StringReader(externalXml)), null, "/Root/Item")
+                .get(0).getElement().getTextContent());
+
+            // External entities are not read
+            factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+            context = XMLBuilderContext.newInstance()
+                .withDocumentBuilderPool(new DocumentBuilderPool(factory));
+            assertEquals("", XMLBuilder.parseMatching(
+                new InputSource(new StringReader(externalXml)), context, "/Root/Item")
+                .get(0).getElement().getTextContent());
+
+            // External access restrictions apply
+            factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            factory.setAttribute(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+            context = XMLBuilderContext.newInstance()
+                .withDocumentBuilderPool(new DocumentBuilderPool(factory));
+            try {
+                XMLBuilder.parseMatching(
+                    new InputSource(new StringReader(externalXml)), context, "/Root/Item");
+                fail("External entity access should be refused");
+            } catch (XMLStreamException e) {
+                // Expected
+            }
+        } finally {
+            assertTrue(entityFile.delete());
+        }
+
+        // Namespace awareness follows the pool's factory
+        assertFalse((Boolean) XMLBuilderContext.newInstance(false).getDocumentBuilderPool()
+            .getXMLInputFactory().getProperty(XMLInputFactory.IS_NAMESPACE_AWARE));
+    }
+
+    private static class FixedPrefixContext extends NamespaceContextImpl {
+        private final String namespaceURI;
+
+        FixedPrefixContext(String namespaceURI) {
+            this.namespaceURI = namespaceURI;
+        }
+
+        @Override
+        public String getNamespaceURI(String prefix) {
+            return ("x".equals(prefix) ? this.namespaceURI : super.getNamespaceURI(prefix));
+        }
+    }
+
 }